@@ -19,26 +19,56 @@
 
 package fr.pilato.elasticsearch.tools;
 
+import fr.pilato.elasticsearch.tools.updaters.ElasticsearchCheckpointUpdater;
+import fr.pilato.elasticsearch.tools.updaters.ElasticsearchClusterSnapshot;
+import fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexTemplateUpdater;
+import fr.pilato.elasticsearch.tools.updaters.ElasticsearchLease;
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
 import fr.pilato.elasticsearch.tools.util.DefaultSettings;
 import fr.pilato.elasticsearch.tools.util.ResourceList;
+import fr.pilato.elasticsearch.tools.util.SettingsReader;
+import fr.pilato.elasticsearch.tools.util.TaskGraph;
+import fr.pilato.elasticsearch.tools.util.VariableSources;
 import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchAliasUpdater.manageAliases;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchCheckpointUpdater.clearLoad;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchCheckpointUpdater.hasUnfinishedLoad;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchCheckpointUpdater.initCheckpoints;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchCheckpointUpdater.startLoad;
 import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchComponentTemplateUpdater.createComponentTemplate;
 import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchDataUpdater.loadBulkData;
 import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchDataUpdater.loadJsonData;
 import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexLifecycleUpdater.createIndexLifecycle;
 import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.createIndex;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.restoreIndexAfterLoad;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.tuneIndexForLoad;
 import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.updateMapping;
 import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.updateSettings;
 import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexTemplateUpdater.createIndexTemplate;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexTemplateUpdater.readDependencies;
 import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchPipelineUpdater.createPipeline;
+import static java.util.Collections.emptyList;
 
 /**
  * By default, indexes are created with their default Elasticsearch settings. You can specify
@@ -109,57 +139,436 @@ public class ElasticsearchBeyonder {
 	 * @throws Exception when beyonder can not start
 	 */
 	public static void start(RestClient client, String root, boolean force) throws Exception {
+		start(client, root, force, new BeyonderOptions());
+	}
+
+	/**
+	 * Automatically scan classpath and create indices, mappings, templates, and other settings.
+	 * @param client elasticsearch client
+	 * @param root dir within the classpath
+	 * @param force whether or not to force creation of indices and templates
+	 * @param options options to tune how beyonder behaves
+	 * @throws Exception when beyonder can not start
+	 */
+	public static void start(RestClient client, String root, boolean force, BeyonderOptions options) throws Exception {
 		logger.info("starting automatic settings/mappings discovery");
 
+		try {
+			if (!options.isLease()) {
+				apply(client, root, force, options, null);
+				return;
+			}
+
+			// Only one instance applies the configuration at a time, and only once. Forcing it always applies it.
+			String configuration = force ? null : hashConfiguration(root, options);
+			ElasticsearchLease lease = ElasticsearchLease.acquire(client, root, configuration, options);
+			if (lease == null) {
+				logger.info("configuration has been applied by another instance. Rock & roll!");
+				return;
+			}
+			boolean completed = false;
+			try {
+				apply(client, root, force, options, lease);
+				completed = true;
+			} finally {
+				lease.release(completed);
+			}
+		} finally {
+			ResourceList.clearJarIndexes();
+		}
+	}
+
+	private static void apply(RestClient client, String root, boolean force, BeyonderOptions options,
+							  ElasticsearchLease lease) throws Exception {
+		// Read what already exists with a few calls instead of one call per resource
+		ElasticsearchClusterSnapshot snapshot = options.isClusterSnapshot() ? ElasticsearchClusterSnapshot.take(client) : null;
+		if (options.isResumableLoad()) {
+			initCheckpoints(client, options);
+		}
+
+		// Each resource only waits for the resources it depends on
+		TaskGraph schema = new TaskGraph("beyonder-schema-");
+		boolean parallel = options.getSchemaParallelism() > 1;
+		List<String> indexDependencies = new ArrayList<>();
+
 		// create index lifecycles
 		List<String> indexLifecycles = ResourceList.getResourceNames(root, DefaultSettings.IndexLifecyclesDir);
 		for (String indexLifecycleName : indexLifecycles) {
-			createIndexLifecycle(client, root, indexLifecycleName);
+			String task = "index_lifecycle:" + indexLifecycleName;
+			schema.add(task, emptyList(), () -> {
+				checkLease(lease);
+				createIndexLifecycle(client, root, indexLifecycleName, options);
+			});
+			indexDependencies.add(task);
 		}
 
 		// create component templates
 		List<String> componentTemplates = ResourceList.getResourceNames(root, DefaultSettings.ComponentTemplatesDir);
 		for (String componentTemplateName : componentTemplates) {
-			createComponentTemplate(client, root, componentTemplateName);
+			schema.add("component_template:" + componentTemplateName, emptyList(),
+					() -> {
+						checkLease(lease);
+						createComponentTemplate(client, root, componentTemplateName, options);
+					});
 		}
 
 		// create index templates
 		List<String> indexTemplateNames = ResourceList.getResourceNames(root, DefaultSettings.IndexTemplatesDir);
+		Map<String, ElasticsearchIndexTemplateUpdater.Dependencies> indexTemplates = new LinkedHashMap<>();
 		for (String indexTemplateName : indexTemplateNames) {
-			createIndexTemplate(client, root, indexTemplateName);
+			List<String> dependencies = new ArrayList<>();
+			if (parallel) {
+				ElasticsearchIndexTemplateUpdater.Dependencies templateDependencies = readDependencies(root, indexTemplateName,
+						options.getVariableSources());
+				indexTemplates.put(indexTemplateName, templateDependencies);
+				for (String componentTemplateName : templateDependencies.getComposedOf()) {
+					// Component templates which are not ours must already exist
+					if (schema.contains("component_template:" + componentTemplateName)) {
+						dependencies.add("component_template:" + componentTemplateName);
+					}
+				}
+			}
+			schema.add("index_template:" + indexTemplateName, dependencies,
+					() -> {
+						checkLease(lease);
+						createIndexTemplate(client, root, indexTemplateName, options);
+					});
 		}
 
 		// create pipelines
 		List<String> pipelineNames = ResourceList.getResourceNames(root, DefaultSettings.PipelinesDir);
 		for (String pipelineName : pipelineNames) {
-			createPipeline(client, root, pipelineName);
+			String task = "pipeline:" + pipelineName;
+			schema.add(task, emptyList(), () -> {
+				checkLease(lease);
+				createPipeline(client, root, pipelineName, options);
+			});
+			indexDependencies.add(task);
 		}
 
 		// create indices
 		Collection<String> indexNames = ResourceList.findIndexNames(root);
-		// Save the list of created indices within a Collection
-		Collection<String> createdIndices = new ArrayList<>();
+		Set<String> created = ConcurrentHashMap.newKeySet();
+		List<String> indexTasks = new ArrayList<>();
 		for (String indexName : indexNames) {
-			if (createIndex(client, root, indexName, force)) {
-				createdIndices.add(indexName);
+			List<String> dependencies = new ArrayList<>(parallel ? indexDependencies : emptyList());
+			for (Map.Entry<String, ElasticsearchIndexTemplateUpdater.Dependencies> indexTemplate : indexTemplates.entrySet()) {
+				if (indexTemplate.getValue().matches(indexName)) {
+					dependencies.add("index_template:" + indexTemplate.getKey());
+				}
 			}
-			updateSettings(client, root, indexName);
-			updateMapping(client, root, indexName);
+			String task = "index:" + indexName;
+			schema.add(task, dependencies, () -> {
+				checkLease(lease);
+				if (createIndexAndStartLoad(client, root, indexName, force, options, snapshot)) {
+					created.add(indexName);
+				}
+				updateSettings(client, root, indexName, options);
+				updateMapping(client, root, indexName, options);
+			});
+			indexTasks.add(task);
 		}
 
 		// Manage aliases
-		manageAliases(client, root);
+		schema.add("aliases", indexTasks, () -> {
+			checkLease(lease);
+			manageAliases(client, root, options);
+		});
+
+		// Read the definition files while the first resources are sent
+		if (options.isPrefetch()) {
+			List<String> paths = new ArrayList<>();
+			addPaths(paths, DefaultSettings.IndexLifecyclesDir, indexLifecycles);
+			addPaths(paths, DefaultSettings.ComponentTemplatesDir, componentTemplates);
+			addPaths(paths, DefaultSettings.IndexTemplatesDir, indexTemplateNames);
+			addPaths(paths, DefaultSettings.PipelinesDir, pipelineNames);
+			for (String indexName : indexNames) {
+				paths.add(indexName + "/" + DefaultSettings.IndexSettingsFileName);
+				paths.add(indexName + "/" + DefaultSettings.UpdateIndexSettingsFileName);
+				paths.add(indexName + "/" + DefaultSettings.UpdateIndexMappingFileName);
+			}
+			paths.add(DefaultSettings.AliasesFile);
+			options.getResourcePrefetcher().prefetch(root, paths);
+		}
+
+		try {
+			schema.run(options.getSchemaParallelism());
+		} finally {
+			options.getResourcePrefetcher().clear();
+		}
+
+		// Save the list of created indices within a Collection, in a predictable order
+		Collection<String> createdIndices = new ArrayList<>();
+		for (String indexName : indexNames) {
+			if (created.contains(indexName)) {
+				createdIndices.add(indexName);
+			}
+		}
 
 		// index sample data if any
-		for (String indexName : createdIndices) {
-			Collection<String> bulkFiles = ResourceList.findBulkFiles(root, indexName);
-			loadBulkData(client, root, indexName, bulkFiles);
-			Collection<String> singleFiles = ResourceList.findJsonFiles(root, indexName);
-			loadJsonData(client, root, indexName, singleFiles);
+		loadData(client, root, indexNames, createdIndices, options, lease);
+
+		options.getLoadMetrics().loadDone();
+		if (options.isAdaptiveBulk()) {
+			logger.info("adaptive bulk operating point: {}", options.getAdaptiveBulkSizing());
+		}
+		if (options.isRequestCompression()) {
+			logger.info("request compression: {}", options.getRequestCompression());
+		}
+		if (options.isSkipUnchangedResources()) {
+			logger.info("unchanged resources: {}", options.getResourceHashing());
+		}
+		if (options.isPrefetch()) {
+			logger.info("prefetch: {}", options.getResourcePrefetcher());
 		}
-		Collection<String> bulkFiles = ResourceList.findBulkFiles(root, null);
-		loadBulkData(client, root, null, bulkFiles);
 
 		logger.info("start done. Rock & roll!");
 	}
+
+	/**
+	 * Stop applying the configuration when another instance took our lease over, so we don't apply it together
+	 */
+	private static void checkLease(ElasticsearchLease lease) throws Exception {
+		if (lease != null) {
+			lease.check();
+		}
+	}
+
+	/**
+	 * Hash what {@link #apply(RestClient, String, boolean, BeyonderOptions, ElasticsearchLease)} sends: the definition files once their
+	 * variables are replaced, and the identity of the data files.
+	 */
+	private static String hashConfiguration(String root, BeyonderOptions options) throws Exception {
+		logger.trace("hashConfiguration([{}])", root);
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		VariableSources sources = options.getVariableSources();
+		for (String dir : List.of(DefaultSettings.IndexLifecyclesDir, DefaultSettings.ComponentTemplatesDir,
+				DefaultSettings.IndexTemplatesDir, DefaultSettings.PipelinesDir)) {
+			for (String name : ResourceList.getResourceNames(root, dir)) {
+				String file = name + DefaultSettings.JsonFileExtension;
+				hashEntry(digest, dir + "/" + file, SettingsReader.getJsonBytes(root, dir, file, sources));
+			}
+		}
+		hashEntry(digest, DefaultSettings.AliasesFile, SettingsReader.getJsonBytes(root, null, DefaultSettings.AliasesFile, sources));
+		hashDataFiles(digest, root, null);
+		for (String indexName : ResourceList.findIndexNames(root)) {
+			for (String file : List.of(DefaultSettings.IndexSettingsFileName, DefaultSettings.UpdateIndexSettingsFileName,
+					DefaultSettings.UpdateIndexMappingFileName)) {
+				hashEntry(digest, indexName + "/" + file, SettingsReader.getJsonBytes(root, indexName, file, sources));
+			}
+			hashDataFiles(digest, root, indexName);
+		}
+		String hash = HexFormat.of().formatHex(digest.digest());
+		logger.trace("/hashConfiguration([{}]): [{}]", root, hash);
+		return hash;
+	}
+
+	private static void hashDataFiles(MessageDigest digest, String root, String indexName) throws Exception {
+		String subdir = indexName == null ? DefaultSettings.DataDir : indexName + "/" + DefaultSettings.DataDir;
+		List<String> files = new ArrayList<>(ResourceList.findBulkFiles(root, indexName));
+		files.addAll(ResourceList.findJsonFiles(root, indexName));
+		for (String file : files) {
+			String identity = SettingsReader.getFileIdentity(root, subdir, file);
+			hashEntry(digest, subdir + "/" + file, identity == null ? null : identity.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void hashEntry(MessageDigest digest, String name, byte[] content) {
+		// The name ends with a 0 and the content starts with its length, so two configurations never give the same bytes
+		digest.update(name.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(ByteBuffer.allocate(Long.BYTES).putLong(content == null ? -1 : content.length).flip());
+		if (content != null) {
+			digest.update(content);
+		}
+	}
+
+	private static void addPaths(List<String> paths, String dir, List<String> names) {
+		for (String name : names) {
+			paths.add(dir + "/" + name + DefaultSettings.JsonFileExtension);
+		}
+	}
+
+	private static void loadData(RestClient client, String root, Collection<String> indexNames, Collection<String> createdIndices,
+								 BeyonderOptions options, ElasticsearchLease lease) throws Exception {
+		options.getBulkInFlight().reset();
+		options.getAdaptiveBulkSizing().reset();
+		Collection<String> globalBulkFiles = ResourceList.findBulkFiles(root, null);
+		Collection<String> loadedIndices = createdIndices;
+		if (options.isResumableLoad()) {
+			loadedIndices = startResumableLoad(client, root, indexNames, createdIndices, globalBulkFiles, options);
+		}
+
+		// Tune the indices we created and which will receive data. We don't know which indices the global
+		// bulk files are sending data to, so when there are some, all the indices we created are tuned.
+		Map<String, Map<String, String>> tunedIndices = new LinkedHashMap<>();
+		Exception failure = null;
+		try {
+			if (options.isTuneIndicesForLoad()) {
+				for (String indexName : createdIndices) {
+					if (!globalBulkFiles.isEmpty() || !ResourceList.findBulkFiles(root, indexName).isEmpty()
+							|| !ResourceList.findJsonFiles(root, indexName).isEmpty()) {
+						tunedIndices.put(indexName, tuneIndexForLoad(client, indexName, options));
+					}
+				}
+			}
+
+			if (options.getIndexLoadParallelism() > 1) {
+				loadIndicesConcurrently(client, root, loadedIndices, globalBulkFiles, options, lease);
+			} else {
+				for (String indexName : loadedIndices) {
+					loadIndex(client, root, indexName, options, lease);
+				}
+				checkLease(lease);
+				loadBulkData(client, root, null, globalBulkFiles, options);
+			}
+		} catch (Exception e) {
+			failure = e;
+		} finally {
+			// Restore the settings even if the load failed
+			for (Map.Entry<String, Map<String, String>> tunedIndex : tunedIndices.entrySet()) {
+				try {
+					restoreIndexAfterLoad(client, tunedIndex.getKey(), tunedIndex.getValue(), options);
+				} catch (Exception e) {
+					logger.warn("Could not restore the settings of index [{}]: {}", tunedIndex.getKey(), e.getMessage());
+					if (failure == null) {
+						failure = e;
+					} else {
+						failure.addSuppressed(e);
+					}
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static void loadIndex(RestClient client, String root, String indexName, BeyonderOptions options,
+								  ElasticsearchLease lease) throws Exception {
+		checkLease(lease);
+		Collection<String> bulkFiles = ResourceList.findBulkFiles(root, indexName);
+		loadBulkData(client, root, indexName, bulkFiles, options);
+		Collection<String> singleFiles = ResourceList.findJsonFiles(root, indexName);
+		loadJsonData(client, root, indexName, singleFiles, options);
+	}
+
+	/**
+	 * Load the indices, and the root data directory, at the same time. An index which fails does not stop the others.
+	 */
+	private static void loadIndicesConcurrently(RestClient client, String root, Collection<String> indexNames,
+												Collection<String> globalBulkFiles, BeyonderOptions options, ElasticsearchLease lease) throws Exception {
+		Map<String, Callable<Void>> tasks = new LinkedHashMap<>();
+		for (String indexName : indexNames) {
+			tasks.put(indexName, () -> {
+				loadIndex(client, root, indexName, options, lease);
+				return null;
+			});
+		}
+		if (!globalBulkFiles.isEmpty()) {
+			tasks.put(DefaultSettings.DataDir, () -> {
+				checkLease(lease);
+				loadBulkData(client, root, null, globalBulkFiles, options);
+				return null;
+			});
+		}
+		if (tasks.isEmpty()) {
+			return;
+		}
+
+		AtomicInteger threads = new AtomicInteger();
+		ExecutorService loaders = Executors.newFixedThreadPool(Math.min(tasks.size(), options.getIndexLoadParallelism()), runnable -> {
+			Thread thread = new Thread(runnable, "beyonder-index-loader-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		Map<String, Exception> failures = new LinkedHashMap<>();
+		try {
+			Map<String, Future<Void>> loads = new LinkedHashMap<>();
+			for (Map.Entry<String, Callable<Void>> task : tasks.entrySet()) {
+				loads.put(task.getKey(), loaders.submit(task.getValue()));
+			}
+			for (Map.Entry<String, Future<Void>> load : loads.entrySet()) {
+				try {
+					load.getValue().get();
+				} catch (ExecutionException e) {
+					Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					logger.warn("Could not load data into [{}]: {}", load.getKey(), cause.getMessage());
+					failures.put(load.getKey(), cause);
+				}
+			}
+		} finally {
+			loaders.shutdownNow();
+		}
+
+		if (failures.size() == 1) {
+			throw failures.values().iterator().next();
+		}
+		if (!failures.isEmpty()) {
+			Exception failure = new Exception("Could not load data into " + failures.keySet() + ".");
+			failures.values().forEach(failure::addSuppressed);
+			throw failure;
+		}
+	}
+
+	/**
+	 * Create an index. With resumable loads, its data files are marked as not loaded before creating it, so a start
+	 * stopped right after the creation resumes the load instead of skipping it. The marks are cleared if the index
+	 * already existed.
+	 * @return true if we created the index
+	 */
+	private static boolean createIndexAndStartLoad(RestClient client, String root, String indexName, boolean force,
+												   BeyonderOptions options, ElasticsearchClusterSnapshot snapshot) throws Exception {
+		Collection<String> files = options.isResumableLoad() ? dataFiles(root, indexName) : emptyList();
+		if (files.isEmpty()) {
+			return createIndex(client, root, indexName, force, options, snapshot);
+		}
+
+		// An unfinished load is kept until we know whether the index is a new one
+		String group = ElasticsearchCheckpointUpdater.group(root, indexName);
+		boolean unfinished = hasUnfinishedLoad(client, options, group);
+		if (!unfinished) {
+			startLoad(client, options, group, files);
+		}
+		boolean created = createIndex(client, root, indexName, force, options, snapshot);
+		if (created && unfinished) {
+			// The checkpoints of the previous load do not apply to a new index
+			startLoad(client, options, group, files);
+		} else if (!created && !unfinished) {
+			clearLoad(client, options, group);
+		}
+		return created;
+	}
+
+	/**
+	 * Find the existing indices which have a load to resume. The load of the indices we just created has been started
+	 * when creating them.
+	 * @return the indices to load data into
+	 */
+	private static Collection<String> startResumableLoad(RestClient client, String root, Collection<String> indexNames,
+														 Collection<String> createdIndices, Collection<String> globalBulkFiles,
+														 BeyonderOptions options) throws Exception {
+		Collection<String> loadedIndices = new ArrayList<>();
+		for (String indexName : indexNames) {
+			String group = ElasticsearchCheckpointUpdater.group(root, indexName);
+			if (createdIndices.contains(indexName)) {
+				loadedIndices.add(indexName);
+			} else if (hasUnfinishedLoad(client, options, group)) {
+				logger.info("Resuming the data load of index [{}]", indexName);
+				loadedIndices.add(indexName);
+			}
+		}
+
+		String globalGroup = ElasticsearchCheckpointUpdater.group(root, null);
+		if (!globalBulkFiles.isEmpty() && !hasUnfinishedLoad(client, options, globalGroup)) {
+			startLoad(client, options, globalGroup, globalBulkFiles);
+		}
+		return loadedIndices;
+	}
+
+	private static Collection<String> dataFiles(String root, String indexName) throws Exception {
+		Collection<String> files = new ArrayList<>(ResourceList.findBulkFiles(root, indexName));
+		files.addAll(ResourceList.findJsonFiles(root, indexName));
+		return files;
+	}
 }
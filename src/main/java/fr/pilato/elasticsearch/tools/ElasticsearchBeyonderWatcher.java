@@ -0,0 +1,317 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.ResourceHashing;
+import fr.pilato.elasticsearch.tools.util.SettingsReader;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchAliasUpdater.manageAliases;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchComponentTemplateUpdater.createComponentTemplate;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexLifecycleUpdater.createIndexLifecycle;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexTemplateUpdater.createIndexTemplate;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.createIndex;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.updateMapping;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.updateSettings;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchPipelineUpdater.createPipeline;
+
+/**
+ * Watch a root dir on the file system and apply again the resources whose files changed, without restarting.
+ * <pre>
+ * Path dir = Paths.get("/etc/beyonder");
+ * ElasticsearchBeyonder.start(client, SettingsReader.fileRoot(dir), false, options);
+ * ElasticsearchBeyonderWatcher watcher = ElasticsearchBeyonderWatcher.watch(client, dir, options);
+ * ...
+ * watcher.close();
+ * </pre>
+ * Only the changed resources are applied: an index lifecycle, a component template, an index template, a pipeline,
+ * the {@code _update_settings.json} or {@code _update_mapping.json} of an index, or the aliases. A new index dir
+ * creates the index. The changes are applied once no file changed for {@link BeyonderOptions#getWatchDebounce()}
+ * milliseconds, and a file which has been written with the same content is ignored.
+ * <br>
+ * Removing a file does not remove anything from elasticsearch, and the data files are never loaded again.
+ */
+public class ElasticsearchBeyonderWatcher implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchBeyonderWatcher.class);
+
+	private final RestClient client;
+	private final Path dir;
+	private final String root;
+	private final BeyonderOptions options;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+	private final Map<Path, String> hashes = new HashMap<>();
+	private final AtomicLong applied = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final Thread thread;
+
+	private ElasticsearchBeyonderWatcher(RestClient client, Path dir, BeyonderOptions options) throws IOException {
+		this.client = client;
+		this.dir = dir.toAbsolutePath();
+		this.root = SettingsReader.fileRoot(dir);
+		this.options = options;
+		this.watchService = dir.getFileSystem().newWatchService();
+		register(this.dir, true);
+		this.thread = new Thread(this::run, "beyonder-watcher");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Start watching a root dir. The resources are not applied when starting: call
+	 * {@link ElasticsearchBeyonder#start(RestClient, String, boolean, BeyonderOptions)} first.
+	 * @param client elasticsearch client
+	 * @param dir the root dir on the file system
+	 * @param options options to use when applying the resources
+	 * @return the watcher, which must be closed
+	 * @throws IOException if the root dir can not be watched
+	 */
+	public static ElasticsearchBeyonderWatcher watch(RestClient client, Path dir, BeyonderOptions options) throws IOException {
+		if (!Files.isDirectory(dir)) {
+			throw new IOException("Can not find root dir [" + dir + "].");
+		}
+		ElasticsearchBeyonderWatcher watcher = new ElasticsearchBeyonderWatcher(client, dir, options);
+		watcher.thread.start();
+		logger.info("watching [{}] for changes", watcher.dir);
+		return watcher;
+	}
+
+	/**
+	 * @return the number of resources which have been applied again since we are watching
+	 */
+	public long getApplied() {
+		return applied.get();
+	}
+
+	/**
+	 * @return the number of resources which could not be applied again
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Watch a directory and its sub directories, except the data ones
+	 * @param remember true to remember the content of their files, as it has already been applied
+	 * @return the files within these directories
+	 */
+	private List<Path> register(Path start, boolean remember) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (Stream<Path> paths = Files.walk(start)) {
+			for (Path path : (Iterable<Path>) paths::iterator) {
+				if (isData(path)) {
+					continue;
+				}
+				if (Files.isDirectory(path)) {
+					WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+					watchedDirs.put(key, path);
+				} else {
+					if (remember) {
+						hashes.put(path, hash(path));
+					}
+					files.add(path);
+				}
+			}
+		}
+		return files;
+	}
+
+	private boolean isData(Path path) {
+		Path relative = dir.relativize(path);
+		for (Path name : relative) {
+			if (name.toString().equals(DefaultSettings.DataDir)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String hash(Path file) {
+		try {
+			return ResourceHashing.hash(Files.readAllBytes(file));
+		} catch (IOException e) {
+			// It could be written right now. We will read it again when we are notified.
+			return null;
+		}
+	}
+
+	private void run() {
+		Set<Path> changed = new TreeSet<>();
+		try {
+			while (true) {
+				// Wait for the changes to settle before applying them
+				WatchKey key = changed.isEmpty() ? watchService.take() : watchService.poll(options.getWatchDebounce(), TimeUnit.MILLISECONDS);
+				if (key == null) {
+					apply(changed);
+					changed.clear();
+					continue;
+				}
+				Path watchedDir = watchedDirs.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW || watchedDir == null) {
+						continue;
+					}
+					Path path = watchedDir.resolve((Path) event.context());
+					if (isData(path)) {
+						continue;
+					}
+					if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+						logger.debug("[{}] has been removed. Nothing is removed from elasticsearch.", path);
+						hashes.remove(path);
+					} else if (Files.isDirectory(path)) {
+						if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+							// The files could have been created before we watch the directory
+							changed.addAll(register(path, false));
+						}
+					} else {
+						changed.add(path);
+					}
+				}
+				if (!key.reset()) {
+					watchedDirs.remove(key);
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			logger.debug("stopped watching [{}]", dir);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			logger.warn("stopped watching [{}]: {}", dir, e.getMessage());
+		}
+	}
+
+	private void apply(Set<Path> changed) {
+		// Apply the resources in the same order as when starting, so they exist before they are used
+		List<List<Runnable>> steps = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			steps.add(new ArrayList<>());
+		}
+		for (Path path : changed) {
+			String hash = hash(path);
+			if (hash == null || hash.equals(hashes.get(path))) {
+				logger.trace("[{}] did not change", path);
+				continue;
+			}
+			hashes.put(path, hash);
+			addStep(steps, path);
+		}
+		for (List<Runnable> step : steps) {
+			for (Runnable action : step) {
+				action.run();
+			}
+		}
+	}
+
+	private void addStep(List<List<Runnable>> steps, Path path) {
+		Path relative = dir.relativize(path);
+		String file = relative.getFileName().toString();
+		if (relative.getNameCount() == 1) {
+			if (file.equals(DefaultSettings.AliasesFile)) {
+				steps.get(5).add(() -> apply(path, () -> manageAliases(client, root, options)));
+				return;
+			}
+		} else if (relative.getNameCount() == 2) {
+			String parent = relative.getName(0).toString();
+			if (file.endsWith(DefaultSettings.JsonFileExtension)) {
+				String name = file.substring(0, file.length() - DefaultSettings.JsonFileExtension.length());
+				switch (parent) {
+					case DefaultSettings.IndexLifecyclesDir:
+						steps.get(0).add(() -> apply(path, () -> createIndexLifecycle(client, root, name, options)));
+						return;
+					case DefaultSettings.ComponentTemplatesDir:
+						steps.get(1).add(() -> apply(path, () -> createComponentTemplate(client, root, name, options)));
+						return;
+					case DefaultSettings.IndexTemplatesDir:
+						steps.get(2).add(() -> apply(path, () -> createIndexTemplate(client, root, name, options)));
+						return;
+					case DefaultSettings.PipelinesDir:
+						steps.get(3).add(() -> apply(path, () -> createPipeline(client, root, name, options)));
+						return;
+					default:
+						break;
+				}
+			}
+			switch (file) {
+				case DefaultSettings.IndexSettingsFileName:
+					steps.get(4).add(() -> apply(path, () -> createIndex(client, root, parent, false, options)));
+					return;
+				case DefaultSettings.UpdateIndexSettingsFileName:
+					steps.get(4).add(() -> apply(path, () -> updateSettings(client, root, parent, options)));
+					return;
+				case DefaultSettings.UpdateIndexMappingFileName:
+					steps.get(4).add(() -> apply(path, () -> updateMapping(client, root, parent, options)));
+					return;
+				default:
+					break;
+			}
+		}
+		logger.debug("[{}] is not a resource which can be applied again. Ignoring it.", path);
+	}
+
+	private void apply(Path path, Update update) {
+		try {
+			logger.info("[{}] changed. Applying it.", dir.relativize(path));
+			update.run();
+			applied.incrementAndGet();
+		} catch (Exception e) {
+			// We keep watching: the file can be fixed
+			logger.warn("Could not apply [{}]: {}", path, e.getMessage());
+			failed.incrementAndGet();
+		}
+	}
+
+	private interface Update {
+		void run() throws Exception;
+	}
+}
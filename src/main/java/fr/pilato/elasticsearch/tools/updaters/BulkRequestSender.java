@@ -0,0 +1,373 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.updaters;
+
+import fr.pilato.elasticsearch.tools.util.AdaptiveBulkSizing;
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.BulkInFlight;
+import fr.pilato.elasticsearch.tools.util.BulkResponseParser;
+import fr.pilato.elasticsearch.tools.util.LoadMetrics;
+import fr.pilato.elasticsearch.tools.util.NdJsonBulkReader;
+import fr.pilato.elasticsearch.tools.util.RequestCompression;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Send bulk requests to elasticsearch using the async API. The number of requests and the number
+ * of bytes in flight are bounded by the {@link BulkInFlight} of the run, which is shared by all the senders
+ * of the indices loaded at the same time: when a limit is reached, {@link #send(String, NdJsonBulkReader.Chunk)}
+ * blocks until some responses come back, which pauses the reader.
+ * When the bulk requests are adaptive, the number of requests in flight and the size of the chunks to read
+ * come from {@link AdaptiveBulkSizing}, which is told about the latency and the rejections of every request.
+ * <br>
+ * Each response is checked item by item. Items rejected because the cluster is busy are sent again
+ * with an exponential backoff. Items which can not be indexed are written to the dead letter file if any,
+ * or make the load fail.
+ */
+class BulkRequestSender {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkRequestSender.class);
+
+	// Shared by all the senders which could write to the same dead letter file
+	private static final Object deadLetterLock = new Object();
+
+	private final RestClient client;
+	private final String index;
+	private final String endpoint;
+	private final int maxRetries;
+	private final long retryInitialDelay;
+	private final Path deadLetterFile;
+	private final RequestCompression compression;
+	private final AdaptiveBulkSizing adaptive;
+	private final LoadMetrics metrics;
+	private final int bulkMaxBytes;
+	private final int bulkMaxActions;
+	private final BulkInFlight inFlight;
+	private final Object requestsLock = new Object();
+	private int requestsInFlight = 0;
+	private final AtomicReference<Exception> failure = new AtomicReference<>();
+	private ScheduledExecutorService retryScheduler;
+
+	/**
+	 * Create a sender for a given index
+	 * @param client Elasticsearch client
+	 * @param index Index name or null if the bulk files contain the index names
+	 * @param options Options which define the number of concurrent requests and bytes in flight
+	 */
+	BulkRequestSender(RestClient client, String index, BeyonderOptions options) {
+		this.client = client;
+		this.index = index;
+		this.endpoint = index == null ? "/_bulk" : "/" + index + "/_bulk";
+		this.maxRetries = options.getBulkMaxRetries();
+		this.retryInitialDelay = options.getBulkRetryInitialDelay();
+		this.deadLetterFile = options.getDeadLetterFile();
+		this.compression = options.getRequestCompression();
+		this.metrics = options.getLoadMetrics();
+		this.adaptive = options.isAdaptiveBulk() ? options.getAdaptiveBulkSizing() : null;
+		if (adaptive != null) {
+			adaptive.start(options);
+		}
+		this.bulkMaxBytes = options.getBulkMaxBytes();
+		this.bulkMaxActions = options.getBulkMaxActions();
+		this.inFlight = options.getBulkInFlight();
+		inFlight.start(options);
+	}
+
+	/**
+	 * @return the maximum size in bytes of the next chunk to send
+	 */
+	int getBulkMaxBytes() {
+		return adaptive == null ? bulkMaxBytes : adaptive.getBulkMaxBytes();
+	}
+
+	/**
+	 * @return the maximum number of actions of the next chunk to send
+	 */
+	int getBulkMaxActions() {
+		return adaptive == null ? bulkMaxActions : adaptive.getBulkMaxActions();
+	}
+
+	/**
+	 * Send a chunk as a bulk request. This method returns as soon as the request has been sent
+	 * unless there are already too many requests or bytes in flight.
+	 * @param bulkFile the file the chunk is coming from
+	 * @param chunk the chunk to send
+	 * @throws Exception if a previous request failed or if we have been interrupted
+	 */
+	void send(String bulkFile, NdJsonBulkReader.Chunk chunk) throws Exception {
+		send(bulkFile, chunk, null);
+	}
+
+	/**
+	 * Send a chunk as a bulk request. This method returns as soon as the request has been sent
+	 * unless there are already too many requests or bytes in flight.
+	 * @param bulkFile the file the chunk is coming from
+	 * @param chunk the chunk to send
+	 * @param acknowledged called once all the items of the chunk have been indexed or written to the
+	 *                     dead letter file. It is never called if some items could not be indexed. Could be null.
+	 * @throws Exception if a previous request failed or if we have been interrupted
+	 */
+	void send(String bulkFile, NdJsonBulkReader.Chunk chunk, Runnable acknowledged) throws Exception {
+		throwIfFailed();
+
+		// A chunk bigger than the limit is allowed but will be the only one in flight
+		synchronized (requestsLock) {
+			requestsInFlight++;
+		}
+		int permits;
+		try {
+			permits = inFlight.acquire(chunk.getLength());
+		} catch (InterruptedException e) {
+			releaseRequest();
+			throw e;
+		}
+
+		// Permits are kept until the chunk is fully indexed, retries included
+		execute(bulkFile, chunk, permits, 0, acknowledged);
+	}
+
+	private void execute(String bulkFile, NdJsonBulkReader.Chunk chunk, int permits, int attempt, Runnable acknowledged) {
+		logger.trace("sending bulk request of [{}] bytes from [{}] to [{}], attempt [{}]",
+				chunk.getLength(), bulkFile, endpoint, attempt);
+		Request request = new Request("POST", endpoint);
+		request.addParameter("filter_path", BulkResponseParser.FILTER_PATH);
+		request.setEntity(compression.jsonEntity(chunk.getBuffer()));
+		long generation = adaptive == null ? 0 : adaptive.getGeneration();
+		metrics.started(index, bulkFile);
+		long start = System.nanoTime();
+		client.performRequestAsync(request, new ResponseListener() {
+			@Override
+			public void onSuccess(Response response) {
+				boolean retried = false;
+				try {
+					if (response.getStatusLine().getStatusCode() != 200) {
+						completed(bulkFile, chunk, attempt, generation, start, 0, chunk.getActions());
+						logger.warn("Could not load bulk file [{}] of size [{}] into Elasticsearch", bulkFile, chunk.getLength());
+						failure.compareAndSet(null, new Exception("Could not load bulk data from file [" + bulkFile + "]."));
+					} else {
+						List<BulkResponseParser.ItemFailure> failures;
+						try (InputStream content = response.getEntity().getContent()) {
+							failures = BulkResponseParser.parseFailures(content);
+						}
+						int rejected = (int) failures.stream().filter(BulkResponseParser.ItemFailure::isRetryable).count();
+						completed(bulkFile, chunk, attempt, generation, start, rejected, failures.size() - rejected);
+						retried = handleFailures(bulkFile, chunk, failures, permits, attempt, acknowledged);
+					}
+				} catch (Exception e) {
+					logger.warn("Could not read the bulk response for file [{}]: {}", bulkFile, e.getMessage());
+					failure.compareAndSet(null, new Exception("Could not load bulk data from file [" + bulkFile + "].", e));
+				} finally {
+					if (!retried) {
+						release(permits);
+					}
+				}
+			}
+
+			@Override
+			public void onFailure(Exception exception) {
+				boolean rejected = isRejected(exception);
+				completed(bulkFile, chunk, attempt, generation, start,
+						rejected ? chunk.getActions() : 0, rejected ? 0 : chunk.getActions());
+				if (isRejected(exception) && attempt < maxRetries) {
+					logger.debug("Bulk request from file [{}] has been rejected. Retrying.", bulkFile);
+					scheduleRetry(bulkFile, chunk, permits, attempt + 1, acknowledged);
+					return;
+				}
+				try {
+					logger.warn("Could not load bulk file [{}] of size [{}] into Elasticsearch: {}",
+							bulkFile, chunk.getLength(), exception.getMessage());
+					failure.compareAndSet(null, new Exception("Could not load bulk data from file [" + bulkFile + "].", exception));
+				} finally {
+					release(permits);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Retry the rejected items and deal with the items which failed for good
+	 * @return true if a retry has been scheduled, which means that the permits are still in use
+	 */
+	private boolean handleFailures(String bulkFile, NdJsonBulkReader.Chunk chunk, List<BulkResponseParser.ItemFailure> failures,
+								   int permits, int attempt, Runnable acknowledged) throws IOException {
+		if (failures.isEmpty()) {
+			acknowledge(acknowledged);
+			return false;
+		}
+
+		List<Integer> toRetry = new ArrayList<>();
+		List<BulkResponseParser.ItemFailure> permanentFailures = new ArrayList<>();
+		for (BulkResponseParser.ItemFailure itemFailure : failures) {
+			if (itemFailure.isRetryable() && attempt < maxRetries) {
+				toRetry.add(itemFailure.getPosition());
+			} else {
+				permanentFailures.add(itemFailure);
+			}
+		}
+
+		boolean lost = !permanentFailures.isEmpty() && !deadLetter(bulkFile, chunk, permanentFailures);
+		if (!toRetry.isEmpty()) {
+			logger.debug("[{}] items from file [{}] have been rejected. Retrying them.", toRetry.size(), bulkFile);
+			scheduleRetry(bulkFile, chunk.subset(toRetry), permits, attempt + 1, lost ? null : acknowledged);
+			return true;
+		}
+		if (!lost) {
+			acknowledge(acknowledged);
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the items have been written to the dead letter file, false if they are lost
+	 */
+	private boolean deadLetter(String bulkFile, NdJsonBulkReader.Chunk chunk,
+							   List<BulkResponseParser.ItemFailure> itemFailures) throws IOException {
+		BulkResponseParser.ItemFailure first = itemFailures.get(0);
+		if (deadLetterFile == null) {
+			logger.warn("[{}] items from file [{}] could not be indexed. First failure: {}", itemFailures.size(), bulkFile, first);
+			failure.compareAndSet(null, new Exception("Could not load [" + itemFailures.size() + "] items from file ["
+					+ bulkFile + "]: " + first.getType() + ": " + first.getReason()));
+			return false;
+		}
+
+		logger.warn("[{}] items from file [{}] could not be indexed into [{}]. Writing them to [{}]. First failure: {}",
+				itemFailures.size(), bulkFile, index == null ? "_bulk" : index, deadLetterFile, first);
+		synchronized (deadLetterLock) {
+			try (FileChannel out = FileChannel.open(deadLetterFile,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				for (BulkResponseParser.ItemFailure itemFailure : itemFailures) {
+					ByteBuffer item = chunk.getBuffer()
+							.limit(chunk.getActionEnd(itemFailure.getPosition()))
+							.position(chunk.getActionStart(itemFailure.getPosition()));
+					while (item.hasRemaining()) {
+						out.write(item);
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Record the outcome of a request in the metrics and let the adaptive bulk sizing know about it
+	 */
+	private void completed(String bulkFile, NdJsonBulkReader.Chunk chunk, int attempt, long generation, long start,
+						   int rejectedItems, int failedItems) {
+		long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		metrics.record(index, bulkFile, attempt, chunk.getActions(), chunk.getLength(), latency, rejectedItems, failedItems);
+		if (adaptive != null) {
+			adaptive.onResponse(generation, latency, rejectedItems > 0);
+		}
+	}
+
+	private static void acknowledge(Runnable acknowledged) {
+		if (acknowledged != null) {
+			acknowledged.run();
+		}
+	}
+
+	private synchronized void scheduleRetry(String bulkFile, NdJsonBulkReader.Chunk chunk, int permits, int attempt,
+											Runnable acknowledged) {
+		if (retryScheduler == null) {
+			retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "beyonder-bulk-retry");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		// Exponential backoff with jitter: between half and the full delay
+		long delay = retryInitialDelay << Math.min(attempt - 1, 20);
+		delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		retryScheduler.schedule(() -> execute(bulkFile, chunk, permits, attempt, acknowledged), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private static boolean isRejected(Exception exception) {
+		if (exception instanceof ResponseException) {
+			int status = ((ResponseException) exception).getResponse().getStatusLine().getStatusCode();
+			return status == 429 || status == 503;
+		}
+		return false;
+	}
+
+	/**
+	 * Wait for all the requests in flight to complete
+	 * @throws Exception if one of the requests failed or if we have been interrupted
+	 */
+	void flush() throws Exception {
+		awaitInFlight();
+		throwIfFailed();
+	}
+
+	/**
+	 * Wait for all the requests in flight, retries included, to complete whatever their outcome
+	 * @throws InterruptedException if we have been interrupted
+	 */
+	void awaitInFlight() throws InterruptedException {
+		synchronized (requestsLock) {
+			while (requestsInFlight > 0) {
+				requestsLock.wait();
+			}
+		}
+		synchronized (this) {
+			if (retryScheduler != null) {
+				retryScheduler.shutdown();
+				retryScheduler = null;
+			}
+		}
+	}
+
+	private void releaseRequest() {
+		synchronized (requestsLock) {
+			requestsInFlight--;
+			requestsLock.notifyAll();
+		}
+	}
+
+	private void release(int permits) {
+		inFlight.release(permits);
+		releaseRequest();
+	}
+
+	private void throwIfFailed() throws Exception {
+		Exception e = failure.get();
+		if (e != null) {
+			throw e;
+		}
+	}
+}
@@ -19,6 +19,7 @@
 
 package fr.pilato.elasticsearch.tools.updaters;
 
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
 import fr.pilato.elasticsearch.tools.util.DefaultSettings;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.Response;
@@ -26,8 +27,6 @@ import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static fr.pilato.elasticsearch.tools.util.SettingsReader.getJsonContent;
-
 /**
  * Manage aliases in Elasticsearch.
  */
@@ -46,10 +45,21 @@ public class ElasticsearchAliasUpdater {
      * @throws Exception if something goes wrong
      */
     public static void manageAliases(RestClient client, String root) throws Exception {
-        String json = getJsonContent(root, null, DefaultSettings.AliasesFile);
+        manageAliases(client, root, new BeyonderOptions());
+    }
+
+    /**
+     * Manage global aliases in Elasticsearch.
+     * @param client Elasticsearch client
+     * @param root dir within the classpath
+     * @param options Options to use
+     * @throws Exception if something goes wrong
+     */
+    public static void manageAliases(RestClient client, String root, BeyonderOptions options) throws Exception {
+        byte[] json = options.getResourcePrefetcher().getJsonBytes(root, null, DefaultSettings.AliasesFile);
         if (json != null) {
             logger.debug("Found [{}/{}] file", root, DefaultSettings.AliasesFile);
-            manageAliasesWithJsonInElasticsearch(client, json);
+            manageAliasesWithJsonInElasticsearch(client, json, options);
         }
     }
 
@@ -57,16 +67,17 @@ public class ElasticsearchAliasUpdater {
      *
      * @param client Client to use
      * @param json JSon content for the aliases
+     * @param options Options to use
      * @throws Exception if something goes wrong
      */
-    private static void manageAliasesWithJsonInElasticsearch(RestClient client, String json) throws Exception {
+    private static void manageAliasesWithJsonInElasticsearch(RestClient client, byte[] json, BeyonderOptions options) throws Exception {
         logger.trace("manageAliases()");
 
         assert client != null;
         assert json != null;
 
         Request request = new Request("POST", "/_aliases/");
-        request.setJsonEntity(json);
+        request.setEntity(options.getRequestCompression().jsonEntity(json));
         Response response = client.performRequest(request);
 
         if (response.getStatusLine().getStatusCode() != 200) {
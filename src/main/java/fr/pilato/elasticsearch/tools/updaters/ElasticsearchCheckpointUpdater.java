@@ -0,0 +1,209 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.updaters;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.LoadCheckpoint;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+
+/**
+ * Store the data load checkpoints in elasticsearch, so an interrupted load can be resumed.
+ * <br>
+ * Checkpoints are grouped by data directory: a group is unfinished as long as one of its files has not been
+ * fully loaded.
+ */
+public class ElasticsearchCheckpointUpdater {
+
+	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchCheckpointUpdater.class);
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private static final String CHECKPOINT_INDEX_DEFINITION = "{" +
+			"\"settings\":{\"index\":{\"hidden\":true,\"number_of_shards\":1,\"auto_expand_replicas\":\"0-1\"}}," +
+			"\"mappings\":{\"dynamic\":\"strict\",\"properties\":{" +
+			"\"group\":{\"type\":\"keyword\"},\"file\":{\"type\":\"keyword\"},\"hash\":{\"type\":\"keyword\"}," +
+			"\"offset\":{\"type\":\"long\"},\"completed\":{\"type\":\"boolean\"},\"updated\":{\"type\":\"date\"}}}}";
+
+	private ElasticsearchCheckpointUpdater() {
+		// empty
+	}
+
+	/**
+	 * @param root dir within the classpath
+	 * @param index Index name or null for the root data directory
+	 * @return the group of the checkpoints of the data files of an index
+	 */
+	public static String group(String root, String index) {
+		String path = root == null ? DefaultSettings.ConfigDir : root;
+		return path + "/" + (index == null ? DefaultSettings.DataDir : index + "/" + DefaultSettings.DataDir);
+	}
+
+	/**
+	 * Create the checkpoint index if needed and make the checkpoints of the previous runs searchable
+	 * @param client Elasticsearch client
+	 * @param options Options which define the checkpoint index
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static void initCheckpoints(RestClient client, BeyonderOptions options) throws Exception {
+		logger.trace("initCheckpoints([{}])", options.getCheckpointIndex());
+
+		String index = options.getCheckpointIndex();
+		Request create = new Request("PUT", "/" + index);
+		create.setJsonEntity(CHECKPOINT_INDEX_DEFINITION);
+		try {
+			client.performRequest(create);
+			logger.debug("Checkpoint index [{}] created", index);
+		} catch (ResponseException e) {
+			if (e.getResponse().getStatusLine().getStatusCode() != 400
+					|| !"resource_already_exists_exception".equals(ElasticsearchLease.readErrorType(e))) {
+				logger.warn("Could not create checkpoint index [{}]", index);
+				throw new Exception("Could not create checkpoint index [" + index + "].", e);
+			}
+			// The index already exists
+		}
+		client.performRequest(new Request("POST", "/" + index + "/_refresh"));
+
+		logger.trace("/initCheckpoints([{}])", options.getCheckpointIndex());
+	}
+
+	/**
+	 * Start a new load of a data directory: forget the checkpoints of the previous loads and mark all the files
+	 * as not loaded yet, so we know the load is unfinished even if we stop before reaching the last file.
+	 * @param client Elasticsearch client
+	 * @param options Options which define the checkpoint index
+	 * @param group the data directory
+	 * @param files the files which will be loaded
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static void startLoad(RestClient client, BeyonderOptions options, String group, Collection<String> files) throws Exception {
+		logger.trace("startLoad([{}])", group);
+
+		clearLoad(client, options, group);
+		for (String file : files) {
+			saveCheckpoint(client, options, new LoadCheckpoint(group, file, null, 0, false));
+		}
+
+		logger.trace("/startLoad([{}])", group);
+	}
+
+	/**
+	 * Forget the checkpoints of a data directory, including the ones saved since the last refresh
+	 * @param client Elasticsearch client
+	 * @param options Options which define the checkpoint index
+	 * @param group the data directory
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static void clearLoad(RestClient client, BeyonderOptions options, String group) throws Exception {
+		logger.trace("clearLoad([{}])", group);
+
+		client.performRequest(new Request("POST", "/" + options.getCheckpointIndex() + "/_refresh"));
+		Request delete = new Request("POST", "/" + options.getCheckpointIndex() + "/_delete_by_query");
+		delete.addParameter("refresh", "true");
+		delete.setJsonEntity("{\"query\":{\"term\":{\"group\":\"" + escape(group) + "\"}}}");
+		client.performRequest(delete);
+
+		logger.trace("/clearLoad([{}])", group);
+	}
+
+	/**
+	 * Check if a previous load of a data directory has been interrupted
+	 * @param client Elasticsearch client
+	 * @param options Options which define the checkpoint index
+	 * @param group the data directory
+	 * @return true if at least one file of this directory has not been fully loaded
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static boolean hasUnfinishedLoad(RestClient client, BeyonderOptions options, String group) throws Exception {
+		Request count = new Request("POST", "/" + options.getCheckpointIndex() + "/_count");
+		count.setJsonEntity("{\"query\":{\"bool\":{\"filter\":[{\"term\":{\"group\":\"" + escape(group) + "\"}}," +
+				"{\"term\":{\"completed\":false}}]}}}");
+		Response response = client.performRequest(count);
+		try (InputStream body = response.getEntity().getContent();
+			 JsonParser parser = jsonFactory.createParser(body)) {
+			JsonToken token;
+			while ((token = parser.nextToken()) != null) {
+				if (token.isNumeric() && "count".equals(parser.currentName())) {
+					return parser.getLongValue() > 0;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read the checkpoint of a file
+	 * @param client Elasticsearch client
+	 * @param options Options which define the checkpoint index
+	 * @param group the data directory
+	 * @param file the file name
+	 * @return the checkpoint or null if there is none
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static LoadCheckpoint getCheckpoint(RestClient client, BeyonderOptions options, String group, String file) throws Exception {
+		try {
+			Response response = client.performRequest(new Request("GET",
+					"/" + options.getCheckpointIndex() + "/_doc/" + LoadCheckpoint.id(group, file)));
+			try (InputStream body = response.getEntity().getContent()) {
+				return LoadCheckpoint.fromGetResponse(body);
+			}
+		} catch (ResponseException e) {
+			if (e.getResponse().getStatusLine().getStatusCode() == 404) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Save the checkpoint of a file
+	 * @param client Elasticsearch client
+	 * @param options Options which define the checkpoint index
+	 * @param checkpoint the checkpoint
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static void saveCheckpoint(RestClient client, BeyonderOptions options, LoadCheckpoint checkpoint) throws Exception {
+		logger.trace("saving checkpoint {}", checkpoint);
+		Request request = new Request("PUT", "/" + options.getCheckpointIndex() + "/_doc/" + checkpoint.getId());
+		request.setJsonEntity(checkpoint.toJson());
+		Response response = client.performRequest(request);
+		int status = response.getStatusLine().getStatusCode();
+		if (status != 200 && status != 201) {
+			logger.warn("Could not save checkpoint [{}]", checkpoint);
+			throw new Exception("Could not save checkpoint [" + checkpoint + "].");
+		}
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.updaters;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import static fr.pilato.elasticsearch.tools.util.ResourceList.replaceIndexName;
+
+/**
+ * What exists in the cluster when Beyonder starts: indices, aliases and data streams. It is read with a single call,
+ * whatever the number of indices, so the existence of each index does not need its own call.
+ * <br>
+ * The indices Beyonder creates or removes are recorded so the snapshot stays accurate during the start.
+ * Changes made by someone else after the snapshot has been taken are not seen.
+ */
+public class ElasticsearchClusterSnapshot {
+
+	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchClusterSnapshot.class);
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	// Names which can be found with a wildcard: open and not hidden indices, aliases and data streams
+	private final Set<String> visibleIndices = ConcurrentHashMap.newKeySet();
+	// Hidden or closed indices can only be found with their exact name
+	private final Set<String> otherIndices = ConcurrentHashMap.newKeySet();
+	// Index names, or patterns for date math names, of the indices Beyonder created since the snapshot
+	private final Set<String> createdIndices = ConcurrentHashMap.newKeySet();
+
+	private ElasticsearchClusterSnapshot() {
+		// empty
+	}
+
+	/**
+	 * Read what exists in the cluster
+	 * @param client Elasticsearch client
+	 * @return the snapshot
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static ElasticsearchClusterSnapshot take(RestClient client) throws Exception {
+		logger.trace("takeClusterSnapshot()");
+		ElasticsearchClusterSnapshot snapshot = new ElasticsearchClusterSnapshot();
+
+		Request resolve = new Request("GET", "/_resolve/index/*");
+		resolve.addParameter("expand_wildcards", "all");
+		resolve.addParameter("filter_path", "indices.name,indices.attributes,aliases.name,data_streams.name");
+		try (InputStream in = client.performRequest(resolve).getEntity().getContent()) {
+			snapshot.readResolvedIndices(in);
+		}
+
+		logger.debug("cluster snapshot: [{}] visible indices, [{}] hidden or closed indices", snapshot.visibleIndices.size(),
+				snapshot.otherIndices.size());
+		logger.trace("/takeClusterSnapshot()");
+		return snapshot;
+	}
+
+	/**
+	 * Check if an index exists, the same way {@link ElasticsearchIndexUpdater#isIndexExist(RestClient, String)} does:
+	 * date math and rollover index names match any index following the same pattern, and aliases or data streams
+	 * with this name count as well.
+	 * @param index Index name
+	 * @return true if the index exists
+	 */
+	public boolean isIndexExist(String index) {
+		String pattern = replaceIndexName(index);
+		if (createdIndices.contains(pattern)) {
+			return true;
+		}
+		if (!pattern.contains("*")) {
+			return visibleIndices.contains(pattern) || otherIndices.contains(pattern);
+		}
+		StringBuilder regex = new StringBuilder();
+		for (String part : pattern.split("\\*", -1)) {
+			regex.append(regex.length() == 0 ? "" : ".*").append(Pattern.quote(part));
+		}
+		Pattern compiled = Pattern.compile(regex.toString());
+		return visibleIndices.stream().anyMatch(name -> compiled.matcher(name).matches());
+	}
+
+	/**
+	 * Record that an index has been created
+	 * @param index Index name as sent to elasticsearch
+	 */
+	void indexCreated(String index) {
+		createdIndices.add(replaceIndexName(index));
+	}
+
+	/**
+	 * Record that an index has been removed
+	 * @param index Index name as sent to elasticsearch
+	 */
+	void indexRemoved(String index) {
+		createdIndices.remove(replaceIndexName(index));
+		visibleIndices.remove(index);
+		otherIndices.remove(index);
+	}
+
+	/**
+	 * Read {"indices":[{"name":"a","attributes":["open"]}],"aliases":[{"name":"b"}],"data_streams":[{"name":"c"}]}
+	 */
+	private void readResolvedIndices(InputStream in) throws IOException {
+		try (JsonParser parser = jsonFactory.createParser(in)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				parser.nextToken();
+				if (parser.currentToken() != JsonToken.START_ARRAY) {
+					parser.skipChildren();
+					continue;
+				}
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					String name = null;
+					boolean visible = true;
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String field = parser.currentName();
+						parser.nextToken();
+						if ("name".equals(field)) {
+							name = parser.getText();
+						} else if ("attributes".equals(field) && parser.currentToken() == JsonToken.START_ARRAY) {
+							while (parser.nextToken() != JsonToken.END_ARRAY) {
+								String attribute = parser.getText();
+								if ("hidden".equals(attribute) || "closed".equals(attribute)) {
+									visible = false;
+								}
+							}
+						} else {
+							parser.skipChildren();
+						}
+					}
+					if (name != null) {
+						(visible ? visibleIndices : otherIndices).add(name);
+					}
+				}
+			}
+		}
+	}
+}
@@ -19,15 +19,15 @@
 
 package fr.pilato.elasticsearch.tools.updaters;
 
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
 import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.ResourceHashing;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static fr.pilato.elasticsearch.tools.util.SettingsReader.getJsonContent;
-
 /**
  * Manage elasticsearch component templates
  * @author David Pilato
@@ -48,8 +48,20 @@ public class ElasticsearchComponentTemplateUpdater {
 	 * @throws Exception if something goes wrong
 	 */
 	public static void createComponentTemplate(RestClient client, String root, String template) throws Exception {
-		String json = getJsonContent(root, DefaultSettings.ComponentTemplatesDir, template + DefaultSettings.JsonFileExtension);
-		createComponentTemplateWithJsonInElasticsearch(client, template, json);
+		createComponentTemplate(client, root, template, new BeyonderOptions());
+	}
+
+	/**
+	 * Create a component template in Elasticsearch.
+	 * @param client Elasticsearch client
+	 * @param root dir within the classpath
+	 * @param template Template name
+	 * @param options Options to use
+	 * @throws Exception if something goes wrong
+	 */
+	public static void createComponentTemplate(RestClient client, String root, String template, BeyonderOptions options) throws Exception {
+		byte[] json = options.getResourcePrefetcher().getJsonBytes(root, DefaultSettings.ComponentTemplatesDir, template + DefaultSettings.JsonFileExtension);
+		createComponentTemplateWithJsonInElasticsearch(client, template, json, options);
 	}
 
 	/**
@@ -57,16 +69,24 @@ public class ElasticsearchComponentTemplateUpdater {
 	 * @param client Elasticsearch client
 	 * @param template Template name
 	 * @param json JSon content for the template
+	 * @param options Options to use
 	 * @throws Exception if something goes wrong
 	 */
-	private static void createComponentTemplateWithJsonInElasticsearch(RestClient client, String template, String json) throws Exception {
+	private static void createComponentTemplateWithJsonInElasticsearch(RestClient client, String template, byte[] json, BeyonderOptions options) throws Exception {
 		logger.trace("createComponentTemplate([{}])", template);
 
 		assert client != null;
 		assert template != null;
 
+		byte[] body = ElasticsearchResourceHash.prepare(client, "/_component_template/" + template,
+				"component_templates.component_template._meta." + ResourceHashing.HASH_FIELD, json, options);
+		if (body == null) {
+			logger.trace("/createComponentTemplate([{}])", template);
+			return;
+		}
+
 		Request request = new Request("PUT", "/_component_template/" + template);
-		request.setJsonEntity(json);
+		request.setEntity(options.getRequestCompression().jsonEntity(body));
 		Response response = client.performRequest(request);
 
 		if (response.getStatusLine().getStatusCode() != 200) {
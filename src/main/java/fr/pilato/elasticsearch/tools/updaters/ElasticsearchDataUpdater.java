@@ -19,16 +19,45 @@
 
 package fr.pilato.elasticsearch.tools.updaters;
 
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
 import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.JsonToNdJson;
+import fr.pilato.elasticsearch.tools.util.LoadCheckpoint;
+import fr.pilato.elasticsearch.tools.util.MappedNdJsonBulkReader;
+import fr.pilato.elasticsearch.tools.util.NdJsonBulkReader;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static fr.pilato.elasticsearch.tools.util.SettingsReader.getFileContent;
+import static fr.pilato.elasticsearch.tools.util.SettingsReader.getDataFileAsStream;
+import static fr.pilato.elasticsearch.tools.util.SettingsReader.getDataFilePath;
+import static fr.pilato.elasticsearch.tools.util.SettingsReader.getFileAsStream;
+import static fr.pilato.elasticsearch.tools.util.SettingsReader.getFileBytes;
+import static fr.pilato.elasticsearch.tools.util.SettingsReader.getFileIdentity;
 
 /**
  * Manage elasticsearch data when you want to preload some data
@@ -52,17 +81,161 @@ public class ElasticsearchDataUpdater {
 	 * @throws Exception if the elasticsearch API call is failing
 	 */
 	public static void loadBulkData(RestClient client, String root, String index, Collection<String> bulkFiles) throws Exception {
+		loadBulkData(client, root, index, bulkFiles, new BeyonderOptions());
+	}
+
+	/**
+	 * Load data from a given ndjson file within the classpath and send it to elasticsearch using the Bulk API.
+	 * Compressed files (*.ndjson.gz and *.ndjson.zst) are decompressed on the fly. The file is streamed
+	 * and cut into bulk requests bounded by {@link BeyonderOptions#getBulkMaxBytes()}
+	 * and {@link BeyonderOptions#getBulkMaxActions()}, so it is never fully loaded in memory.
+	 * Up to {@link BeyonderOptions#getBulkConcurrentRequests()} bulk requests are sent concurrently.
+	 * When {@link BeyonderOptions#getBulkFileReaders()} is more than 1, big files which are on the file system are
+	 * memory mapped and read in parallel.
+	 * When {@link BeyonderOptions#isResumableLoad()} is set, the progress of each file is saved as a checkpoint:
+	 * files which have already been loaded are skipped and files which have been partially loaded are resumed.
+	 *
+	 * @param client    Elasticsearch client
+	 * @param root      dir within the classpath
+	 * @param index     Index name
+	 * @param bulkFiles The list of bulk files to load
+	 * @param options   Options to use
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static void loadBulkData(RestClient client, String root, String index, Collection<String> bulkFiles,
+									BeyonderOptions options) throws Exception {
 		// If we don't have an index name, we will use _bulk as the subdir to use
 		String subdir = index == null ? DefaultSettings.DataDir : index + "/" + DefaultSettings.DataDir;
-		for (String bulkFile : bulkFiles) {
-			String ndjson = getFileContent(root, subdir, bulkFile);
-			if (ndjson != null) {
-				logger.debug("Found [{}/{}/{}] file", root, subdir, bulkFile);
-				loadBulkDataToElasticsearch(client, index, bulkFile, ndjson);
+		BulkRequestSender sender = new BulkRequestSender(client, index, options);
+		List<LoadCheckpointer> checkpointers = new ArrayList<>();
+		try {
+			for (String bulkFile : bulkFiles) {
+				LoadCheckpointer checkpointer = null;
+				long from = 0;
+				if (options.isResumableLoad()) {
+					checkpointer = LoadCheckpointer.open(client, options, root, subdir,
+							ElasticsearchCheckpointUpdater.group(root, index), bulkFile);
+					if (checkpointer.isCompleted()) {
+						continue;
+					}
+					checkpointers.add(checkpointer);
+					from = checkpointer.getOffset();
+				}
+
+				Path path = options.getBulkFileReaders() > 1 ? getDataFilePath(root, subdir, bulkFile) : null;
+				if (path != null && Files.size(path) - from > options.getBulkMaxBytes()) {
+					logger.debug("Found [{}/{}/{}] file. Reading it with [{}] threads.", root, subdir, bulkFile, options.getBulkFileReaders());
+					sendMappedNdJson(sender, bulkFile, path, from, checkpointer, options);
+					continue;
+				}
+				InputStream ndjson = getDataFileAsStream(root, subdir, bulkFile);
+				if (ndjson != null) {
+					logger.debug("Found [{}/{}/{}] file", root, subdir, bulkFile);
+					ndjson.skipNBytes(from);
+					sendNdJson(sender, bulkFile, ndjson, from, checkpointer, options);
+				}
+			}
+		} finally {
+			// We never leave requests in flight behind us
+			sender.awaitInFlight();
+			saveCheckpoints(checkpointers);
+		}
+		sender.flush();
+	}
+
+	private static void sendNdJson(BulkRequestSender sender, String name, InputStream ndjson, BeyonderOptions options) throws Exception {
+		sendNdJson(sender, name, ndjson, 0, null, options);
+	}
+
+	private static void sendNdJson(BulkRequestSender sender, String name, InputStream ndjson, long from,
+								   LoadCheckpointer checkpointer, BeyonderOptions options) throws Exception {
+		try (NdJsonBulkReader reader = new NdJsonBulkReader(ndjson, options.getBulkMaxBytes(), options.getBulkMaxActions(), from)) {
+			sendChunks(sender, name, (maxBytes, maxActions) -> {
+				reader.setLimits(maxBytes, maxActions);
+				return reader.next();
+			}, checkpointer);
+		}
+		if (checkpointer != null) {
+			checkpointer.readDone();
+		}
+	}
+
+	@FunctionalInterface
+	private interface ChunkSupplier {
+		NdJsonBulkReader.Chunk next(int maxBytes, int maxActions) throws IOException;
+	}
+
+	private static void sendChunks(BulkRequestSender sender, String name, ChunkSupplier chunks,
+								   LoadCheckpointer checkpointer) throws Exception {
+		NdJsonBulkReader.Chunk chunk;
+		while ((chunk = chunks.next(sender.getBulkMaxBytes(), sender.getBulkMaxActions())) != null) {
+			if (checkpointer == null) {
+				sender.send(name, chunk);
+			} else {
+				NdJsonBulkReader.Chunk sent = chunk;
+				checkpointer.sent();
+				sender.send(name, chunk, () -> checkpointer.acknowledge(sent));
+				checkpointer.maybeSave();
+			}
+		}
+	}
+
+	/**
+	 * Save the last state of the checkpoints. This must not hide the reason why the load failed, if it failed.
+	 */
+	private static void saveCheckpoints(List<LoadCheckpointer> checkpointers) {
+		for (LoadCheckpointer checkpointer : checkpointers) {
+			try {
+				checkpointer.save();
+			} catch (Exception e) {
+				logger.warn("Could not save the load checkpoint: {}", e.getMessage());
 			}
 		}
 	}
 
+	/**
+	 * Split a file into ranges which are read, and sent, by several threads
+	 */
+	private static void sendMappedNdJson(BulkRequestSender sender, String name, Path file, long from,
+										 LoadCheckpointer checkpointer, BeyonderOptions options) throws Exception {
+		List<MappedNdJsonBulkReader> readers = MappedNdJsonBulkReader.open(file, from, options.getBulkFileReaders(),
+				options.getBulkMaxBytes(), options.getBulkMaxActions());
+		AtomicInteger threads = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(readers.size(), options.getBulkFileReaders()), runnable -> {
+			Thread thread = new Thread(runnable, "beyonder-bulk-reader-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<Void>> ranges = new ArrayList<>();
+			for (MappedNdJsonBulkReader reader : readers) {
+				ranges.add(workers.submit(() -> {
+					sendChunks(sender, name, (maxBytes, maxActions) -> {
+						reader.setLimits(maxBytes, maxActions);
+						return reader.next();
+					}, checkpointer);
+					return null;
+				}));
+			}
+			for (Future<Void> range : ranges) {
+				try {
+					range.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+			if (checkpointer != null) {
+				checkpointer.readDone();
+			}
+		} finally {
+			// Stop the other readers if one failed
+			workers.shutdownNow();
+		}
+	}
+
 	/**
 	 * Load data from a json file within the classpath and send it to elasticsearch using the Index API (slow).
 	 *
@@ -73,59 +246,156 @@ public class ElasticsearchDataUpdater {
 	 * @throws Exception if the elasticsearch API call is failing
 	 */
 	public static void loadJsonData(RestClient client, String root, String index, Collection<String> jsonFiles) throws Exception {
+		loadJsonData(client, root, index, jsonFiles, new BeyonderOptions());
+	}
+
+	/**
+	 * Load data from a json file within the classpath and send it to elasticsearch. By default, it uses
+	 * the Index API (slow). When {@link BeyonderOptions#isJsonDataAsBulk()} is set, the documents are
+	 * packed into bulk requests like the ndjson files.
+	 * When {@link BeyonderOptions#isResumableLoad()} is set, each json file is checkpointed once it has been loaded, so
+	 * the files which have already been loaded are skipped. As the bulk requests mix several files, json files sent
+	 * with the Bulk API are only checkpointed once they have all been loaded. Without
+	 * {@link BeyonderOptions#isJsonDataFileNameAsId()}, the documents have no id and loading them again would
+	 * duplicate them, so such a load is not resumed.
+	 *
+	 * @param client    Elasticsearch client
+	 * @param root      dir within the classpath
+	 * @param index     Index name
+	 * @param jsonFiles The list of json files to load
+	 * @param options   Options to use
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static void loadJsonData(RestClient client, String root, String index, Collection<String> jsonFiles,
+									BeyonderOptions options) throws Exception {
 		// If we don't have an index name, we must fail
 		if (index == null) {
 			throw new Exception("You must provide an index name when you want to load data from a json file.");
 		}
 
 		String subdir = index + "/" + DefaultSettings.DataDir;
-		for (String jsonFile : jsonFiles) {
-			String json = getFileContent(root, subdir, jsonFile);
-			if (json != null) {
-				logger.debug("Found [{}/{}/{}] file", root, subdir, jsonFile);
-				loadJsonDataToElasticsearch(client, index, jsonFile, json);
+		String group = ElasticsearchCheckpointUpdater.group(root, index);
+		Map<String, String> identities = new LinkedHashMap<>();
+		if (options.isResumableLoad()) {
+			for (String jsonFile : jsonFiles) {
+				String identity = getFileIdentity(root, subdir, jsonFile);
+				LoadCheckpoint checkpoint = ElasticsearchCheckpointUpdater.getCheckpoint(client, options, group, jsonFile);
+				if (checkpoint != null && checkpoint.isCompleted() && checkpoint.getHash() != null
+						&& checkpoint.getHash().equals(identity)) {
+					logger.debug("File [{}/{}] has already been loaded. Skipping it.", group, jsonFile);
+					continue;
+				}
+				if (checkpoint != null && !checkpoint.isCompleted() && checkpoint.getHash() != null
+						&& options.isJsonDataAsBulk() && !options.isJsonDataFileNameAsId()) {
+					// We can't tell which documents have been indexed, and they have no id
+					logger.warn("Could not resume the load of [{}] as its json documents have no id", group);
+					throw new Exception("Could not resume the load of the json files of [" + group + "] without " +
+							"duplicating their documents. Use BeyonderOptions#setJsonDataFileNameAsId() or remove index [" +
+							index + "] to load them again.");
+				}
+				identities.put(jsonFile, identity);
 			}
+		} else {
+			jsonFiles.forEach(jsonFile -> identities.put(jsonFile, null));
 		}
-	}
 
-	private static void loadBulkDataToElasticsearch(RestClient client, String index, String bulkFile, String ndjson) throws Exception {
-		logger.trace("loadBulkDataToElasticsearch([{}], [{}], [{}])", index, bulkFile, ndjson.length());
-
-		assert client != null;
-
-		String endpoint = "/";
-		if (index != null) {
-			endpoint += index + "/";
+		if (options.isJsonDataAsBulk()) {
+			if (options.isResumableLoad()) {
+				// Mark the files as being loaded, so we know they could have been partially loaded if we stop
+				for (Map.Entry<String, String> file : identities.entrySet()) {
+					ElasticsearchCheckpointUpdater.saveCheckpoint(client, options,
+							new LoadCheckpoint(group, file.getKey(), file.getValue(), 0, false));
+				}
+			}
+			loadJsonDataWithBulk(client, root, index, subdir, identities.keySet(), options);
+			if (options.isResumableLoad()) {
+				for (Map.Entry<String, String> file : identities.entrySet()) {
+					ElasticsearchCheckpointUpdater.saveCheckpoint(client, options,
+							new LoadCheckpoint(group, file.getKey(), file.getValue(), 0, true));
+				}
+			}
+		} else {
+			for (Map.Entry<String, String> file : identities.entrySet()) {
+				String jsonFile = file.getKey();
+				byte[] json = getFileBytes(root, subdir, jsonFile);
+				if (json != null) {
+					logger.debug("Found [{}/{}/{}] file", root, subdir, jsonFile);
+					loadJsonDataToElasticsearch(client, index, jsonFile, json, options);
+				}
+				if (options.isResumableLoad()) {
+					ElasticsearchCheckpointUpdater.saveCheckpoint(client, options,
+							new LoadCheckpoint(group, jsonFile, file.getValue(), 0, true));
+				}
+			}
 		}
-		endpoint += "_bulk";
-
-		Request request = new Request("POST", endpoint);
-		request.setJsonEntity(ndjson);
-		Response response = client.performRequest(request);
+	}
 
-		if (response.getStatusLine().getStatusCode() != 200) {
-			logger.warn("Could not load bulk file [{}] of size [{}] into Elasticsearch", bulkFile, ndjson.length());
-			throw new Exception("Could not load bulk data from file [" + bulkFile + "].");
+	private static void loadJsonDataWithBulk(RestClient client, String root, String index, String subdir,
+											 Collection<String> jsonFiles, BeyonderOptions options) throws Exception {
+		logger.debug("Loading [{}] json files from [{}/{}] using the bulk API", jsonFiles.size(), root, subdir);
+		BulkRequestSender sender = new BulkRequestSender(client, index, options);
+		try {
+			sendNdJson(sender, subdir, jsonFilesAsNdJson(root, subdir, jsonFiles, options.isJsonDataFileNameAsId()), options);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			// We never leave requests in flight behind us
+			sender.awaitInFlight();
 		}
+		sender.flush();
+	}
+
+	/**
+	 * Read the json files one after the other, only when needed, as a single ndjson stream
+	 */
+	private static InputStream jsonFilesAsNdJson(String root, String subdir, Collection<String> jsonFiles, boolean fileNameAsId) {
+		Iterator<String> files = jsonFiles.iterator();
+		return new SequenceInputStream(new Enumeration<>() {
+			@Override
+			public boolean hasMoreElements() {
+				return files.hasNext();
+			}
 
-		logger.trace("/loadBulkDataToElasticsearch([{}], [{}], [{}])", index, bulkFile, ndjson.length());
+			@Override
+			public InputStream nextElement() {
+				String jsonFile = files.next();
+				ByteArrayOutputStream item = new ByteArrayOutputStream();
+				try (InputStream json = getFileAsStream(root, subdir, jsonFile)) {
+					if (json != null) {
+						logger.trace("Found [{}/{}/{}] file", root, subdir, jsonFile);
+						String id = fileNameAsId ?
+								jsonFile.substring(0, jsonFile.length() - DefaultSettings.JsonFileExtension.length()) : null;
+						JsonToNdJson.writeIndexItem(json, id, item);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException("Could not read json data from file [" + jsonFile + "].", e);
+				}
+				return new ByteArrayInputStream(item.toByteArray());
+			}
+		});
 	}
 
-	private static void loadJsonDataToElasticsearch(RestClient client, String index, String jsonFile, String json) throws Exception {
-		logger.trace("loadJsonDataToElasticsearch([{}], [{}], [{}])", index, jsonFile, json.length());
+	private static void loadJsonDataToElasticsearch(RestClient client, String index, String jsonFile, byte[] json,
+													BeyonderOptions options) throws Exception {
+		logger.trace("loadJsonDataToElasticsearch([{}], [{}], [{}])", index, jsonFile, json.length);
 
 		assert client != null;
 
 		String endpoint = "/" + index + "/_doc/";
 		Request request = new Request("POST", endpoint);
-		request.setJsonEntity(json);
+		request.setEntity(options.getRequestCompression().jsonEntity(json));
+		options.getLoadMetrics().started(index, jsonFile);
+		long start = System.nanoTime();
 		Response response = client.performRequest(request);
+		boolean created = response.getStatusLine().getStatusCode() == 201;
+		options.getLoadMetrics().record(index, jsonFile, 0, 1, json.length,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 0, created ? 0 : 1);
 
-		if (response.getStatusLine().getStatusCode() != 201) {
-			logger.warn("Could not load json file [{}] of size [{}] into Elasticsearch", jsonFile, json.length());
+		if (!created) {
+			logger.warn("Could not load json file [{}] of size [{}] into Elasticsearch", jsonFile, json.length);
 			throw new Exception("Could not load json data from file [" + jsonFile + "].");
 		}
 
-		logger.trace("/loadJsonDataToElasticsearch([{}], [{}], [{}])", index, jsonFile, json.length());
+		logger.trace("/loadJsonDataToElasticsearch([{}], [{}], [{}])", index, jsonFile, json.length);
 	}
 }
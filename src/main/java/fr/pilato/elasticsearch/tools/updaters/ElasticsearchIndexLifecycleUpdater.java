@@ -19,15 +19,15 @@
 
 package fr.pilato.elasticsearch.tools.updaters;
 
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
 import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.ResourceHashing;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static fr.pilato.elasticsearch.tools.util.SettingsReader.getJsonContent;
-
 /**
  * Manage elasticsearch index lifecycles
  */
@@ -47,8 +47,20 @@ public class ElasticsearchIndexLifecycleUpdater {
 	 * @throws Exception if something goes wrong
 	 */
 	public static void createIndexLifecycle(RestClient client, String root, String policy) throws Exception {
-		String json = getJsonContent(root, DefaultSettings.IndexLifecyclesDir, policy  + DefaultSettings.JsonFileExtension);
-		createIndexLifecycleWithJsonInElasticsearch(client, policy, json);
+		createIndexLifecycle(client, root, policy, new BeyonderOptions());
+	}
+
+	/**
+	 * Create an index lifecycle policy in Elasticsearch.
+	 * @param client Elasticsearch client
+	 * @param root dir within the classpath
+	 * @param policy Lifecycle policy name
+	 * @param options Options to use
+	 * @throws Exception if something goes wrong
+	 */
+	public static void createIndexLifecycle(RestClient client, String root, String policy, BeyonderOptions options) throws Exception {
+		byte[] json = options.getResourcePrefetcher().getJsonBytes(root, DefaultSettings.IndexLifecyclesDir, policy  + DefaultSettings.JsonFileExtension);
+		createIndexLifecycleWithJsonInElasticsearch(client, policy, json, options);
 	}
 
 	/**
@@ -56,16 +68,24 @@ public class ElasticsearchIndexLifecycleUpdater {
 	 * @param client Elasticsearch client
 	 * @param policy Lifecycle policy name
 	 * @param json JSon content for the policy
+	 * @param options Options to use
 	 * @throws Exception if something goes wrong
 	 */
-	private static void createIndexLifecycleWithJsonInElasticsearch(RestClient client, String policy, String json) throws Exception {
+	private static void createIndexLifecycleWithJsonInElasticsearch(RestClient client, String policy, byte[] json, BeyonderOptions options) throws Exception {
 		logger.trace("createIndexLifecycle([{}])", policy);
 
 		assert client != null;
 		assert policy != null;
 
+		byte[] body = ElasticsearchResourceHash.prepare(client, "/_ilm/policy/" + policy,
+				"*.policy._meta." + ResourceHashing.HASH_FIELD, json, options, "policy");
+		if (body == null) {
+			logger.trace("/createIndexLifecycle([{}])", policy);
+			return;
+		}
+
 		Request request = new Request("PUT", "/_ilm/policy/" + policy);
-		request.setJsonEntity(json);
+		request.setEntity(options.getRequestCompression().jsonEntity(body));
 		Response response = client.performRequest(request);
 
 		if (response.getStatusLine().getStatusCode() != 200) {
@@ -73,6 +93,6 @@ public class ElasticsearchIndexLifecycleUpdater {
 			throw new Exception("Could not create index lifecycle policy ["+policy+"].");
 		}
 
-		logger.trace("/createIndexTemplate([{}])", policy);
+		logger.trace("/createIndexLifecycle([{}])", policy);
 	}
 }
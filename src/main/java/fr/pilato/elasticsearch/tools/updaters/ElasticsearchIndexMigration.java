@@ -0,0 +1,435 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.updaters;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.ResourceHashing;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.isIndexExist;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.restoreIndexAfterLoad;
+import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.tuneIndexForLoad;
+
+/**
+ * Migrate an index to new settings without losing its documents nor its writes.
+ * <br>
+ * The index name is an alias pointing to a version of the index, like {@code twitter} pointing to
+ * {@code twitter-v2}. The hash of the settings of a version is stored in its mapping {@code _meta}. When the
+ * settings change, a new version is created and the documents are copied with an asynchronous, sliced and
+ * throttled {@code _reindex} while the writes still go to the old version. The documents written to it in the meantime
+ * are copied again, still accepting writes. The writes of the old version are then blocked, the documents written
+ * during this second copy are copied once more, the alias is moved atomically to the new version and the old version
+ * is removed. These catch up copies only read the documents whose sequence number is above the one recorded before
+ * the previous copy, so the writes are only rejected for the time it takes to copy the last few writes, whatever the
+ * size of the index, and no write is lost.
+ * <br>
+ * The copies keep the version of the documents ({@code version_type: external}), so a document is never
+ * overwritten by an older copy. Documents deleted from the old version during the copy are not deleted from the
+ * new version.
+ * <br>
+ * An existing index which is not behind an alias yet is replaced by the alias in the same atomic call. As it has no
+ * hash, it is always migrated once, even if its settings did not change.
+ */
+public class ElasticsearchIndexMigration {
+
+	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchIndexMigration.class);
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private static final String VERSION_SEPARATOR = "-v";
+	private static final byte[] NO_SETTINGS = "{}".getBytes(StandardCharsets.UTF_8);
+
+	private ElasticsearchIndexMigration() {
+		// empty
+	}
+
+	/**
+	 * Create the first version of an index, or migrate it to a new version if its settings changed
+	 * @param client Elasticsearch client
+	 * @param index Index name, which is an alias of its current version
+	 * @param settings Settings if any, null if no specific settings
+	 * @param force Migrate the index even if its settings did not change
+	 * @param options Options to use
+	 * @return true if we created the first version of the index, which is empty
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static boolean migrate(RestClient client, String index, byte[] settings, boolean force, BeyonderOptions options) throws Exception {
+		logger.trace("migrate([{}])", index);
+
+		byte[] json = settings == null ? NO_SETTINGS : settings;
+		String hash = ResourceHashing.hash(json);
+		byte[] body = ResourceHashing.withHash(json, hash, "mappings");
+
+		String current = getAliasedIndex(client, index);
+		boolean legacy = false;
+		if (current == null) {
+			if (!isIndexExist(client, index)) {
+				String first = version(index, 1);
+				logger.debug("Index [{}] doesn't exist. Creating it as [{}].", index, first);
+				createVersion(client, first, body, options);
+				updateAliases(client, index, "{\"add\":{\"index\":" + quote(first) + ",\"alias\":" + quote(index) +
+						",\"is_write_index\":true}}", options);
+				logger.trace("/migrate([{}])", index);
+				return true;
+			}
+			// The index exists but it is not behind an alias yet
+			current = index;
+			legacy = true;
+		}
+
+		String currentHash = getHash(client, current);
+		if (!force && hash.equals(currentHash)) {
+			logger.debug("Settings of index [{}] did not change.", index);
+			logger.trace("/migrate([{}])", index);
+			return false;
+		}
+		if (!force && currentHash == null) {
+			// We can't tell if the settings changed, so the index is copied once to a version which knows its settings
+			logger.info("index [{}] has no settings hash as it was not created with the index migration. It is migrated " +
+					"once, even if its settings did not change.", current);
+		}
+
+		String next = version(index, legacy ? 1 : versionOf(index, current) + 1);
+		logger.info("migrating index [{}] from [{}] to [{}]", index, current, next);
+		createVersion(client, next, body, options);
+		boolean switched = false;
+		try {
+			Map<String, String> original = tuneIndexForLoad(client, next, options);
+			Map<String, Long> seqNos = maxSeqNos(client, current);
+			reindex(client, current, next, null, options);
+			seqNos = catchUp(client, current, next, seqNos, options);
+			restoreIndexAfterLoad(client, next, original, options);
+
+			// The writes are only blocked for the time needed to copy what was written during the last copy
+			blockWrites(client, current, true);
+			try {
+				catchUp(client, current, next, seqNos, options);
+				if (legacy) {
+					updateAliases(client, index, "{\"add\":{\"index\":" + quote(next) + ",\"alias\":" + quote(index) +
+							",\"is_write_index\":true}},{\"remove_index\":{\"index\":" + quote(current) + "}}", options);
+				} else {
+					updateAliases(client, index, "{\"remove\":{\"index\":" + quote(current) + ",\"alias\":" + quote(index) +
+							"}},{\"add\":{\"index\":" + quote(next) + ",\"alias\":" + quote(index) + ",\"is_write_index\":true}}",
+							options);
+				}
+				switched = true;
+			} finally {
+				if (!switched) {
+					blockWrites(client, current, false);
+				}
+			}
+			if (!legacy) {
+				client.performRequest(new Request("DELETE", "/" + current));
+			}
+		} catch (Exception e) {
+			if (!switched) {
+				// The next start will try again from the old version
+				logger.warn("Could not migrate index [{}] to [{}]. Removing [{}].", index, next, next);
+				try {
+					client.performRequest(new Request("DELETE", "/" + next));
+				} catch (IOException deleteException) {
+					e.addSuppressed(deleteException);
+				}
+			}
+			throw e;
+		}
+		logger.info("index [{}] migrated to [{}]", index, next);
+
+		logger.trace("/migrate([{}])", index);
+		return false;
+	}
+
+	private static String version(String index, int version) {
+		return index + VERSION_SEPARATOR + version;
+	}
+
+	private static int versionOf(String index, String current) {
+		String prefix = index + VERSION_SEPARATOR;
+		if (current.startsWith(prefix)) {
+			try {
+				return Integer.parseInt(current.substring(prefix.length()));
+			} catch (NumberFormatException e) {
+				logger.debug("Index [{}] does not have a version number.", current);
+			}
+		}
+		return 0;
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * Get the index an alias points to
+	 * @return the index or null if the alias does not exist
+	 */
+	private static String getAliasedIndex(RestClient client, String alias) throws Exception {
+		Response response;
+		try {
+			response = client.performRequest(new Request("GET", "/_alias/" + alias));
+		} catch (ResponseException e) {
+			if (e.getResponse().getStatusLine().getStatusCode() == 404) {
+				return null;
+			}
+			throw e;
+		}
+		List<String> indices = new ArrayList<>();
+		try (JsonParser parser = jsonFactory.createParser(response.getEntity().getContent())) {
+			parser.nextToken();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				indices.add(parser.currentName());
+				parser.nextToken();
+				parser.skipChildren();
+			}
+		}
+		if (indices.size() != 1) {
+			logger.warn("Alias [{}] points to {} instead of a single index", alias, indices);
+			throw new Exception("Could not migrate index [" + alias + "] as it points to " + indices + ".");
+		}
+		return indices.get(0);
+	}
+
+	private static String getHash(RestClient client, String index) throws IOException {
+		Request request = new Request("GET", "/" + index + "/_mapping");
+		request.addParameter("filter_path", "*.mappings._meta." + ResourceHashing.HASH_FIELD);
+		try (InputStream body = client.performRequest(request).getEntity().getContent()) {
+			return ResourceHashing.readHash(body);
+		}
+	}
+
+	private static void createVersion(RestClient client, String index, byte[] body, BeyonderOptions options) throws Exception {
+		Request request = new Request("PUT", "/" + index);
+		request.setEntity(options.getRequestCompression().jsonEntity(body));
+		Response response = client.performRequest(request);
+		if (response.getStatusLine().getStatusCode() != 200) {
+			logger.warn("Could not create index [{}]", index);
+			throw new Exception("Could not create index [" + index + "].");
+		}
+	}
+
+	private static void updateAliases(RestClient client, String alias, String actions, BeyonderOptions options) throws Exception {
+		Request request = new Request("POST", "/_aliases");
+		request.setEntity(options.getRequestCompression().jsonEntity("{\"actions\":[" + actions + "]}"));
+		Response response = client.performRequest(request);
+		if (response.getStatusLine().getStatusCode() != 200) {
+			logger.warn("Could not update alias [{}]", alias);
+			throw new Exception("Could not update alias [" + alias + "].");
+		}
+	}
+
+	private static void blockWrites(RestClient client, String index, boolean blocked) throws IOException {
+		logger.debug("{} the writes of index [{}]", blocked ? "Blocking" : "Allowing", index);
+		Request request = new Request("PUT", "/" + index + "/_settings");
+		request.setJsonEntity("{\"index.blocks.write\":" + blocked + "}");
+		client.performRequest(request);
+	}
+
+	/**
+	 * Copy again the documents which have been written to the old version during the previous copy, if any.
+	 * As the sequence numbers are counted by shard and a reindex can not target a shard, the documents above the lowest
+	 * recorded sequence number are copied: a few documents of the other shards may be copied again, which the
+	 * external versions make harmless.
+	 * @param seqNos the sequence numbers recorded before the previous copy
+	 * @return the sequence numbers recorded before this copy
+	 */
+	private static Map<String, Long> catchUp(RestClient client, String from, String to, Map<String, Long> seqNos,
+											 BeyonderOptions options) throws Exception {
+		Map<String, Long> latest = maxSeqNos(client, from);
+		if (!seqNos.isEmpty() && seqNos.equals(latest)) {
+			logger.debug("No document was written to [{}] during the copy.", from);
+			return latest;
+		}
+		logger.debug("Copying the documents written to [{}] during the copy.", from);
+		// Without sequence numbers, everything is copied again
+		Long fromSeqNo = seqNos.isEmpty() ? null : seqNos.values().stream().min(Long::compare).orElse(null);
+		reindex(client, from, to, fromSeqNo, options);
+		client.performRequest(new Request("POST", "/" + to + "/_refresh"));
+		return latest;
+	}
+
+	/**
+	 * Get the highest sequence number of the primary of every shard of an index, which changes with every write.
+	 * The replicas are ignored as they may not have caught up with their primary yet.
+	 * @return the sequence numbers by shard, empty if elasticsearch did not give them
+	 */
+	private static Map<String, Long> maxSeqNos(RestClient client, String index) throws IOException {
+		Request request = new Request("GET", "/" + index + "/_stats");
+		request.addParameter("level", "shards");
+		request.addParameter("filter_path", "indices.*.shards.*.routing.primary,indices.*.shards.*.seq_no.max_seq_no");
+		Map<String, Long> seqNos = new HashMap<>();
+		try (JsonParser parser = jsonFactory.createParser(client.performRequest(request).getEntity().getContent())) {
+			for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+				// Every shard is an array of its copies: {"shards":{"0":[{"routing":{...},"seq_no":{...}}]}}
+				if (token != JsonToken.START_OBJECT || !parser.getParsingContext().getParent().inArray()) {
+					continue;
+				}
+				String shard = parser.getParsingContext().getParent().getParent().getCurrentName();
+				boolean primary = false;
+				Long seqNo = null;
+				for (int depth = 1; depth > 0; ) {
+					token = parser.nextToken();
+					if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+						depth++;
+					} else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+						depth--;
+					} else if (token == JsonToken.VALUE_TRUE && "primary".equals(parser.currentName())) {
+						primary = true;
+					} else if (token == JsonToken.VALUE_NUMBER_INT && "max_seq_no".equals(parser.currentName())) {
+						seqNo = parser.getLongValue();
+					}
+				}
+				if (primary && seqNo != null) {
+					seqNos.put(shard, seqNo);
+				}
+			}
+		}
+		return seqNos;
+	}
+
+	/**
+	 * Copy the documents of an index to another one with an asynchronous reindex task and wait for it
+	 * @param fromSeqNo only copy the documents with a higher sequence number, or null to copy them all
+	 */
+	private static void reindex(RestClient client, String from, String to, Long fromSeqNo, BeyonderOptions options) throws Exception {
+		logger.trace("reindex([{}], [{}])", from, to);
+
+		// Only the documents which are searchable are copied
+		client.performRequest(new Request("POST", "/" + from + "/_refresh"));
+
+		StringWriter json = new StringWriter();
+		try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+			generator.writeStartObject();
+			generator.writeStringField("conflicts", "proceed");
+			generator.writeObjectFieldStart("source");
+			generator.writeStringField("index", from);
+			if (fromSeqNo != null) {
+				generator.writeObjectFieldStart("query");
+				generator.writeObjectFieldStart("range");
+				generator.writeObjectFieldStart("_seq_no");
+				generator.writeNumberField("gt", fromSeqNo);
+				generator.writeEndObject();
+				generator.writeEndObject();
+				generator.writeEndObject();
+			}
+			generator.writeEndObject();
+			generator.writeObjectFieldStart("dest");
+			generator.writeStringField("index", to);
+			generator.writeStringField("version_type", "external");
+			generator.writeEndObject();
+			generator.writeEndObject();
+		}
+		Request request = new Request("POST", "/_reindex");
+		request.addParameter("wait_for_completion", "false");
+		request.addParameter("slices", options.getIndexMigrationSlices() == 0 ? "auto" : String.valueOf(options.getIndexMigrationSlices()));
+		float requestsPerSecond = options.getIndexMigrationRequestsPerSecond();
+		// elasticsearch only knows -1, not -1.0
+		request.addParameter("requests_per_second", requestsPerSecond == -1 ? "-1" : String.valueOf(requestsPerSecond));
+		request.setEntity(options.getRequestCompression().jsonEntity(json.toString()));
+		String task = readFlat(client.performRequest(request).getEntity().getContent()).get("task");
+		if (task == null) {
+			logger.warn("Could not start copying [{}] to [{}]", from, to);
+			throw new Exception("Could not reindex [" + from + "] into [" + to + "].");
+		}
+
+		long deadline = System.currentTimeMillis() + options.getIndexMigrationTimeout();
+		Map<String, String> status;
+		while (true) {
+			Request get = new Request("GET", "/_tasks/" + task);
+			get.addParameter("filter_path", "completed,task.status.total,task.status.created,task.status.updated," +
+					"task.status.version_conflicts,error.reason,response.failures");
+			status = readFlat(client.performRequest(get).getEntity().getContent());
+			if (Boolean.parseBoolean(status.get("completed"))) {
+				break;
+			}
+			logger.debug("Copying [{}] to [{}]: [{}] created and [{}] updated out of [{}] documents", from, to,
+					status.get("task.status.created"), status.get("task.status.updated"), status.get("task.status.total"));
+			if (System.currentTimeMillis() >= deadline) {
+				logger.warn("Could not copy [{}] to [{}] within [{}] ms. Cancelling task [{}].", from, to,
+						options.getIndexMigrationTimeout(), task);
+				Exception e = new Exception("Could not reindex [" + from + "] into [" + to + "] within [" +
+						options.getIndexMigrationTimeout() + "] ms.");
+				try {
+					client.performRequest(new Request("POST", "/_tasks/" + task + "/_cancel"));
+				} catch (IOException cancelException) {
+					e.addSuppressed(cancelException);
+				}
+				throw e;
+			}
+			Thread.sleep(options.getIndexMigrationPollInterval());
+		}
+
+		String error = status.get("error.reason");
+		if (error == null) {
+			error = status.keySet().stream().filter(key -> key.startsWith("response.failures")).findFirst()
+					.map(status::get).orElse(null);
+		}
+		if (error != null) {
+			logger.warn("Could not copy [{}] to [{}]: {}", from, to, error);
+			throw new Exception("Could not reindex [" + from + "] into [" + to + "].");
+		}
+		logger.debug("Copied [{}] to [{}]: [{}] created, [{}] updated and [{}] already newer out of [{}] documents", from, to,
+				status.get("task.status.created"), status.get("task.status.updated"),
+				status.get("task.status.version_conflicts"), status.get("task.status.total"));
+
+		logger.trace("/reindex([{}], [{}])", from, to);
+	}
+
+	/**
+	 * Read the values of a json response by their path, like {@code task.status.total}. Only the first value
+	 * of an array is kept.
+	 */
+	private static Map<String, String> readFlat(InputStream body) throws IOException {
+		Map<String, String> values = new HashMap<>();
+		try (JsonParser parser = jsonFactory.createParser(body)) {
+			for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+				if (!token.isScalarValue()) {
+					continue;
+				}
+				StringBuilder path = new StringBuilder();
+				for (JsonStreamContext context = parser.getParsingContext(); context != null; context = context.getParent()) {
+					if (context.getCurrentName() != null) {
+						path.insert(0, path.length() == 0 ? context.getCurrentName() : context.getCurrentName() + ".");
+					}
+				}
+				values.putIfAbsent(path.toString(), parser.getValueAsString());
+			}
+		}
+		return values;
+	}
+}
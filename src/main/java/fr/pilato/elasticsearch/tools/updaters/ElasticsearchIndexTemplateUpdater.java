@@ -19,13 +19,27 @@
 
 package fr.pilato.elasticsearch.tools.updaters;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
 import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.ResourceHashing;
+import fr.pilato.elasticsearch.tools.util.VariableSources;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static fr.pilato.elasticsearch.tools.util.ResourceList.decodeIndexName;
+import static fr.pilato.elasticsearch.tools.util.ResourceList.isDateMathIndexName;
 import static fr.pilato.elasticsearch.tools.util.SettingsReader.getJsonContent;
 
 /**
@@ -36,6 +50,8 @@ public class ElasticsearchIndexTemplateUpdater {
 
 	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchIndexTemplateUpdater.class);
 
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
 	private ElasticsearchIndexTemplateUpdater() {
 		// empty
 	}
@@ -48,8 +64,20 @@ public class ElasticsearchIndexTemplateUpdater {
 	 * @throws Exception if something goes wrong
 	 */
 	public static void createIndexTemplate(RestClient client, String root, String template) throws Exception {
-		String json = getJsonContent(root, DefaultSettings.IndexTemplatesDir, template + DefaultSettings.JsonFileExtension);
-		createIndexTemplateWithJsonInElasticsearch(client, template, json);
+		createIndexTemplate(client, root, template, new BeyonderOptions());
+	}
+
+	/**
+	 * Create an index template in Elasticsearch.
+	 * @param client Elasticsearch client
+	 * @param root dir within the classpath
+	 * @param template Template name
+	 * @param options Options to use
+	 * @throws Exception if something goes wrong
+	 */
+	public static void createIndexTemplate(RestClient client, String root, String template, BeyonderOptions options) throws Exception {
+		byte[] json = options.getResourcePrefetcher().getJsonBytes(root, DefaultSettings.IndexTemplatesDir, template + DefaultSettings.JsonFileExtension);
+		createIndexTemplateWithJsonInElasticsearch(client, template, json, options);
 	}
 
 	/**
@@ -57,16 +85,24 @@ public class ElasticsearchIndexTemplateUpdater {
 	 * @param client Elasticsearch client
 	 * @param template Template name
 	 * @param json JSon content for the template
+	 * @param options Options to use
 	 * @throws Exception if something goes wrong
 	 */
-	private static void createIndexTemplateWithJsonInElasticsearch(RestClient client, String template, String json) throws Exception {
+	private static void createIndexTemplateWithJsonInElasticsearch(RestClient client, String template, byte[] json, BeyonderOptions options) throws Exception {
 		logger.trace("createIndexTemplate([{}])", template);
 
 		assert client != null;
 		assert template != null;
 
+		byte[] body = ElasticsearchResourceHash.prepare(client, "/_index_template/" + template,
+				"index_templates.index_template._meta." + ResourceHashing.HASH_FIELD, json, options);
+		if (body == null) {
+			logger.trace("/createIndexTemplate([{}])", template);
+			return;
+		}
+
 		Request request = new Request("PUT", "/_index_template/" + template);
-		request.setJsonEntity(json);
+		request.setEntity(options.getRequestCompression().jsonEntity(body));
 		Response response = client.performRequest(request);
 
 		if (response.getStatusLine().getStatusCode() != 200) {
@@ -76,4 +112,101 @@ public class ElasticsearchIndexTemplateUpdater {
 
 		logger.trace("/createIndexTemplate([{}])", template);
 	}
+
+	/**
+	 * Read what an index template depends on and which indices it applies to
+	 * @param root dir within the classpath
+	 * @param template Template name
+	 * @return the dependencies of the template
+	 * @throws IOException if the template is not valid json
+	 */
+	public static Dependencies readDependencies(String root, String template) throws IOException {
+		return readDependencies(root, template, VariableSources.ENVIRONMENT);
+	}
+
+	/**
+	 * Read what an index template depends on and which indices it applies to
+	 * @param root dir within the classpath
+	 * @param template Template name
+	 * @param sources where to read the values of the variables used within the template
+	 * @return the dependencies of the template
+	 * @throws IOException if the template is not valid json
+	 */
+	public static Dependencies readDependencies(String root, String template, VariableSources sources) throws IOException {
+		String json = getJsonContent(root, DefaultSettings.IndexTemplatesDir, template + DefaultSettings.JsonFileExtension, sources);
+		List<String> composedOf = new ArrayList<>();
+		List<String> indexPatterns = new ArrayList<>();
+		try (JsonParser parser = jsonFactory.createParser(json)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Index template [" + template + "] is not a json object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				parser.nextToken();
+				if ("composed_of".equals(field)) {
+					readStrings(parser, composedOf);
+				} else if ("index_patterns".equals(field)) {
+					readStrings(parser, indexPatterns);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		return new Dependencies(composedOf, indexPatterns);
+	}
+
+	private static void readStrings(JsonParser parser, List<String> values) throws IOException {
+		if (parser.currentToken() == JsonToken.START_ARRAY) {
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				values.add(parser.getText());
+			}
+		} else {
+			values.add(parser.getText());
+		}
+	}
+
+	/**
+	 * What an index template depends on and which indices it applies to
+	 */
+	public static class Dependencies {
+		private final List<String> composedOf;
+		private final List<Pattern> indexPatterns;
+
+		Dependencies(List<String> composedOf, List<String> indexPatterns) {
+			this.composedOf = Collections.unmodifiableList(composedOf);
+			this.indexPatterns = new ArrayList<>();
+			for (String indexPattern : indexPatterns) {
+				StringBuilder regex = new StringBuilder();
+				for (String part : indexPattern.split("\\*", -1)) {
+					regex.append(regex.length() == 0 ? "" : ".*").append(Pattern.quote(part));
+				}
+				this.indexPatterns.add(Pattern.compile(regex.toString()));
+			}
+		}
+
+		/**
+		 * @return the names of the component templates the index template is composed of
+		 */
+		public List<String> getComposedOf() {
+			return composedOf;
+		}
+
+		/**
+		 * @param index an index name, as found in the directory name
+		 * @return true if the template applies to the index. Date math index names like {@code <logs-{now/d}>}
+		 * are resolved by elasticsearch, so they could match any template.
+		 */
+		public boolean matches(String index) {
+			if (isDateMathIndexName(index)) {
+				return true;
+			}
+			String name = decodeIndexName(index);
+			for (Pattern indexPattern : indexPatterns) {
+				if (indexPattern.matcher(name).matches()) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
 }
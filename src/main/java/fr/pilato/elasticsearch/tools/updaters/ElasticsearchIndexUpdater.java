@@ -19,6 +19,11 @@
 
 package fr.pilato.elasticsearch.tools.updaters;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
 import fr.pilato.elasticsearch.tools.util.DefaultSettings;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.Response;
@@ -27,11 +32,14 @@ import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 
+import static fr.pilato.elasticsearch.tools.util.ResourceList.isDateMathIndexName;
 import static fr.pilato.elasticsearch.tools.util.ResourceList.replaceIndexName;
-import static fr.pilato.elasticsearch.tools.util.SettingsReader.getJsonContent;
 
 /**
  * Manage elasticsearch index settings
@@ -41,6 +49,13 @@ public class ElasticsearchIndexUpdater {
 
 	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchIndexUpdater.class);
 
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	// The settings used while loading data
+	private static final Map<String, String> LOAD_SETTINGS = Map.of(
+			"index.refresh_interval", "-1",
+			"index.number_of_replicas", "0");
+
 	private ElasticsearchIndexUpdater() {
 		// empty
 	}
@@ -55,8 +70,38 @@ public class ElasticsearchIndexUpdater {
 	 * @throws Exception if the elasticsearch API call is failing
 	 */
 	public static boolean createIndex(RestClient client, String root, String index, boolean force) throws Exception {
-		String json = getJsonContent(root, index, DefaultSettings.IndexSettingsFileName);
-		return createIndexWithSettings(client, index, json, force);
+		return createIndex(client, root, index, force, new BeyonderOptions());
+	}
+
+	/**
+	 * Create a new index in Elasticsearch. Read also _settings.json if exists.
+	 * @param client Elasticsearch client
+	 * @param root dir within the classpath
+	 * @param index Index name
+	 * @param force Remove index if exists (Warning: remove all data)
+	 * @param options Options to use
+	 * @return true if we created the index and false if the index already existed
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static boolean createIndex(RestClient client, String root, String index, boolean force, BeyonderOptions options) throws Exception {
+		return createIndex(client, root, index, force, options, null);
+	}
+
+	/**
+	 * Create a new index in Elasticsearch. Read also _settings.json if exists.
+	 * @param client Elasticsearch client
+	 * @param root dir within the classpath
+	 * @param index Index name
+	 * @param force Remove index if exists (Warning: remove all data)
+	 * @param options Options to use
+	 * @param snapshot What exists in the cluster, or null to check if the index exists with a call
+	 * @return true if we created the index and false if the index already existed
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static boolean createIndex(RestClient client, String root, String index, boolean force, BeyonderOptions options,
+									  ElasticsearchClusterSnapshot snapshot) throws Exception {
+		byte[] json = options.getResourcePrefetcher().getJsonBytes(root, index, DefaultSettings.IndexSettingsFileName);
+		return createIndexWithSettings(client, index, json, force, options, snapshot);
 	}
 
 	/**
@@ -64,18 +109,37 @@ public class ElasticsearchIndexUpdater {
 	 * @param client Elasticsearch client
 	 * @param index Index name
 	 * @param settings Settings if any, null if no specific settings
-	 * @param force Remove index if exists (Warning: remove all data)
+	 * @param force Remove index if exists (Warning: remove all data). With index migration, migrate it even if its
+	 * settings did not change, keeping its data.
+	 * @param options Options to use
+	 * @param snapshot What exists in the cluster, or null to check if the index exists with a call
 	 * @return true if we created the index and false if the index already existed
 	 * @throws Exception if the elasticsearch API call is failing
 	 */
-	private static boolean createIndexWithSettings(RestClient client, String index, String settings, boolean force) throws Exception {
-		if (force && isIndexExist(client, index)) {
+	private static boolean createIndexWithSettings(RestClient client, String index, byte[] settings, boolean force,
+												   BeyonderOptions options, ElasticsearchClusterSnapshot snapshot) throws Exception {
+		// Date math index names get a new index anyway when the date changes
+		if (options.isIndexMigration() && !isDateMathIndexName(index)) {
+			boolean created = ElasticsearchIndexMigration.migrate(client, index, settings, force, options);
+			if (created && snapshot != null) {
+				snapshot.indexCreated(index);
+			}
+			return created;
+		}
+		boolean exists = snapshot == null ? isIndexExist(client, index) : snapshot.isIndexExist(index);
+		if (force && exists) {
 			logger.debug("Index [{}] already exists but force set to true. Removing all data!", index);
 			removeIndexInElasticsearch(client, index);
+			if (snapshot != null) {
+				snapshot.indexRemoved(index);
+			}
 		}
-		if (force || !isIndexExist(client, index)) {
+		if (force || !exists) {
 			logger.debug("Index [{}] doesn't exist. Creating it.", index);
-			createIndexWithSettingsInElasticsearch(client, index, settings);
+			createIndexWithSettingsInElasticsearch(client, index, settings, options);
+			if (snapshot != null) {
+				snapshot.indexCreated(index);
+			}
 			return true;
 		} else {
 			logger.debug("Index [{}] already exists.", index);
@@ -116,9 +180,11 @@ public class ElasticsearchIndexUpdater {
 	 * @param client Elasticsearch client
 	 * @param index Index name
 	 * @param settings Settings if any, null if no specific settings
+	 * @param options Options to use
 	 * @throws Exception if the elasticsearch API call is failing
 	 */
-	private static void createIndexWithSettingsInElasticsearch(RestClient client, String index, String settings) throws Exception {
+	private static void createIndexWithSettingsInElasticsearch(RestClient client, String index, byte[] settings,
+															   BeyonderOptions options) throws Exception {
 		logger.trace("createIndex([{}])", index);
 
 		assert client != null;
@@ -128,8 +194,10 @@ public class ElasticsearchIndexUpdater {
 
 		// If there are settings for this index, we use it. If not, using Elasticsearch defaults.
 		if (settings != null) {
-			logger.trace("Found settings for index [{}]: [{}]", index, settings);
-			request.setJsonEntity(settings);
+			if (logger.isTraceEnabled()) {
+				logger.trace("Found settings for index [{}]: [{}]", index, new String(settings, StandardCharsets.UTF_8));
+			}
+			request.setEntity(options.getRequestCompression().jsonEntity(settings));
 		}
 
         Response response = client.performRequest(request);
@@ -146,9 +214,11 @@ public class ElasticsearchIndexUpdater {
 	 * @param client Elasticsearch client
 	 * @param index Index name
 	 * @param settings Settings if any, null if no update settings
+	 * @param options Options to use
 	 * @throws Exception if the elasticsearch API call is failing
 	 */
-	private static void updateIndexWithSettingsInElasticsearch(RestClient client, String index, String settings) throws Exception {
+	private static void updateIndexWithSettingsInElasticsearch(RestClient client, String index, byte[] settings,
+															   BeyonderOptions options) throws Exception {
 		logger.trace("updateIndex([{}])", index);
 
 		assert client != null;
@@ -156,10 +226,12 @@ public class ElasticsearchIndexUpdater {
 
 
 		if (settings != null) {
-			logger.trace("Found update settings for index [{}]: [{}]", index, settings);
+			if (logger.isTraceEnabled()) {
+				logger.trace("Found update settings for index [{}]: [{}]", index, new String(settings, StandardCharsets.UTF_8));
+			}
 			logger.debug("updating settings for index [{}]", index);
             Request request = new Request("PUT", "/" + index + "/_settings");
-            request.setJsonEntity(settings);
+            request.setEntity(options.getRequestCompression().jsonEntity(settings));
 			client.performRequest(request);
 		}
 
@@ -171,9 +243,11 @@ public class ElasticsearchIndexUpdater {
 	 * @param client Elasticsearch client
 	 * @param index Index name
 	 * @param mapping Mapping if any, null if no update mapping
+	 * @param options Options to use
 	 * @throws Exception if the elasticsearch API call is failing
 	 */
-	private static void updateMappingInElasticsearch(RestClient client, String index, String mapping) throws Exception {
+	private static void updateMappingInElasticsearch(RestClient client, String index, byte[] mapping,
+													 BeyonderOptions options) throws Exception {
 		logger.trace("updateMapping([{}])", index);
 
 		assert client != null;
@@ -181,10 +255,12 @@ public class ElasticsearchIndexUpdater {
 
 
 		if (mapping != null) {
-			logger.trace("Found update mapping for index [{}]: [{}]", index, mapping);
+			if (logger.isTraceEnabled()) {
+				logger.trace("Found update mapping for index [{}]: [{}]", index, new String(mapping, StandardCharsets.UTF_8));
+			}
 			logger.debug("updating mapping for index [{}]", index);
             Request request = new Request("PUT", "/" + index + "/_mapping");
-            request.setJsonEntity(mapping);
+            request.setEntity(options.getRequestCompression().jsonEntity(mapping));
 			client.performRequest(request);
 		}
 
@@ -192,23 +268,33 @@ public class ElasticsearchIndexUpdater {
 	}
 
 	/**
-	 * Check if an index already exists
+	 * Check if an index already exists. The index name can be a pattern, like with date math index names, in which
+	 * case we check if at least one open index matches it. Only the names are resolved, so this does not download
+	 * the settings and mappings of the matching indices.
 	 * @param client Elasticsearch client
 	 * @param index Index name
 	 * @return true if index already exists
 	 * @throws Exception if the elasticsearch API call is failing
 	 */
 	public static boolean isIndexExist(RestClient client, final String index) throws Exception {
+		Request request = new Request("GET", "/_resolve/index/" + replaceIndexName(index));
+		request.addParameter("filter_path", "indices.name,aliases.name,data_streams.name");
 		try {
-			Response response = client.performRequest(new Request("GET", "/" + replaceIndexName(index)));
-
-			// Read the response as a String
-			String responseBody = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))
-					.lines().reduce("", (accumulator, actual) -> accumulator + actual);
-			logger.trace("{}", responseBody);
+			Response response = client.performRequest(request);
+			if (response.getEntity() == null) {
+				return false;
+			}
 
-			// If we don't have an empty response ("{}"), then at least one index exists with the pattern
-			return !"{}".equals(responseBody);
+			// If we don't have an empty response ("{}"), then at least one index, alias or data stream exists with the pattern
+			try (JsonParser parser = jsonFactory.createParser(response.getEntity().getContent())) {
+				for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+					if (token == JsonToken.FIELD_NAME && "name".equals(parser.currentName())) {
+						logger.trace("[{}] exists as [{}]", index, parser.nextTextValue());
+						return true;
+					}
+				}
+			}
+			return false;
 		} catch (ResponseException e) {
 			if (e.getResponse().getStatusLine().getStatusCode() == 404) {
 				return false;
@@ -225,8 +311,20 @@ public class ElasticsearchIndexUpdater {
 	 * @throws Exception if the elasticsearch API call is failing
 	 */
 	public static void updateSettings(RestClient client, String root, String index) throws Exception {
-		String json = getJsonContent(root, index, DefaultSettings.UpdateIndexSettingsFileName);
-		updateIndexWithSettingsInElasticsearch(client, index, json);
+		updateSettings(client, root, index, new BeyonderOptions());
+	}
+
+	/**
+	 * Update index settings in Elasticsearch. Read also _update_settings.json if exists.
+	 * @param client Elasticsearch client
+	 * @param root dir within the classpath
+	 * @param index Index name
+	 * @param options Options to use
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static void updateSettings(RestClient client, String root, String index, BeyonderOptions options) throws Exception {
+		byte[] json = options.getResourcePrefetcher().getJsonBytes(root, index, DefaultSettings.UpdateIndexSettingsFileName);
+		updateIndexWithSettingsInElasticsearch(client, index, json, options);
 	}
 
 	/**
@@ -237,7 +335,116 @@ public class ElasticsearchIndexUpdater {
 	 * @throws Exception if the elasticsearch API call is failing
 	 */
 	public static void updateMapping(RestClient client, String root, String index) throws Exception {
-		String json = getJsonContent(root, index, DefaultSettings.UpdateIndexMappingFileName);
-		updateMappingInElasticsearch(client, index, json);
+		updateMapping(client, root, index, new BeyonderOptions());
+	}
+
+	/**
+	 * Update index mapping in Elasticsearch. Read also _update_mapping.json if exists.
+	 * @param client Elasticsearch client
+	 * @param root dir within the classpath
+	 * @param index Index name
+	 * @param options Options to use
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static void updateMapping(RestClient client, String root, String index, BeyonderOptions options) throws Exception {
+		byte[] json = options.getResourcePrefetcher().getJsonBytes(root, index, DefaultSettings.UpdateIndexMappingFileName);
+		updateMappingInElasticsearch(client, index, json, options);
+	}
+
+	/**
+	 * Make an index faster to load: disable the refresh and remove the replicas. The settings the index had
+	 * are returned so they can be restored with {@link #restoreIndexAfterLoad(RestClient, String, Map, BeyonderOptions)}.
+	 * @param client Elasticsearch client
+	 * @param index Index name
+	 * @param options Options to use
+	 * @return the settings to restore after the load. A null value means that the setting was not set.
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static Map<String, String> tuneIndexForLoad(RestClient client, String index, BeyonderOptions options) throws Exception {
+		logger.trace("tuneIndexForLoad([{}])", index);
+
+		Request get = new Request("GET", "/" + index + "/_settings/" + String.join(",", LOAD_SETTINGS.keySet()));
+		get.addParameter("flat_settings", "true");
+		Map<String, String> current = readFlatSettings(client.performRequest(get));
+		Map<String, String> original = new HashMap<>();
+		for (String setting : LOAD_SETTINGS.keySet()) {
+			original.put(setting, current.get(setting));
+		}
+
+		logger.debug("tuning index [{}] for the load. Original settings: {}", index, original);
+		putFlatSettings(client, index, LOAD_SETTINGS, options);
+
+		logger.trace("/tuneIndexForLoad([{}])", index);
+		return original;
+	}
+
+	/**
+	 * Restore the settings an index had before being tuned for the load, then refresh it and optionally
+	 * wait for its replicas to be allocated.
+	 * @param client Elasticsearch client
+	 * @param index Index name
+	 * @param settings Settings returned by {@link #tuneIndexForLoad(RestClient, String, BeyonderOptions)}
+	 * @param options Options to use
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	public static void restoreIndexAfterLoad(RestClient client, String index, Map<String, String> settings,
+											 BeyonderOptions options) throws Exception {
+		logger.trace("restoreIndexAfterLoad([{}])", index);
+
+		logger.debug("restoring settings {} for index [{}]", settings, index);
+		putFlatSettings(client, index, settings, options);
+		client.performRequest(new Request("POST", "/" + index + "/_refresh"));
+
+		if (options.isWaitForReplicasAfterLoad()) {
+			Request health = new Request("GET", "/_cluster/health/" + index);
+			health.addParameter("wait_for_status", "green");
+			health.addParameter("timeout", DefaultSettings.WaitForReplicasTimeout);
+			try {
+				client.performRequest(health);
+			} catch (ResponseException e) {
+				if (e.getResponse().getStatusLine().getStatusCode() != 408) {
+					throw e;
+				}
+				logger.warn("Replicas of index [{}] are still not allocated after [{}]", index, DefaultSettings.WaitForReplicasTimeout);
+			}
+		}
+
+		logger.trace("/restoreIndexAfterLoad([{}])", index);
+	}
+
+	private static void putFlatSettings(RestClient client, String index, Map<String, String> settings,
+										BeyonderOptions options) throws Exception {
+		StringWriter json = new StringWriter();
+		try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+			generator.writeStartObject();
+			for (Map.Entry<String, String> setting : settings.entrySet()) {
+				// A null value gives the setting its default value back
+				generator.writeStringField(setting.getKey(), setting.getValue());
+			}
+			generator.writeEndObject();
+		}
+		Request request = new Request("PUT", "/" + index + "/_settings");
+		request.setEntity(options.getRequestCompression().jsonEntity(json.toString()));
+		Response response = client.performRequest(request);
+		if (response.getStatusLine().getStatusCode() != 200) {
+			logger.warn("Could not update settings of index [{}]", index);
+			throw new Exception("Could not update settings of index [" + index + "].");
+		}
+	}
+
+	/**
+	 * Read the settings of a GET index/_settings?flat_settings=true response
+	 */
+	private static Map<String, String> readFlatSettings(Response response) throws IOException {
+		Map<String, String> settings = new HashMap<>();
+		try (JsonParser parser = jsonFactory.createParser(response.getEntity().getContent())) {
+			JsonToken token;
+			while ((token = parser.nextToken()) != null) {
+				if (token.isScalarValue() && parser.currentName() != null && parser.currentName().startsWith("index.")) {
+					settings.put(parser.currentName(), parser.getValueAsString());
+				}
+			}
+		}
+		return settings;
 	}
 }
@@ -0,0 +1,386 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.updaters;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A lease stored in elasticsearch, so only one of the instances starting at the same time applies the configuration.
+ * <br>
+ * The lease is a document created with {@code op_type=create}. Its holder renews it while it applies the
+ * configuration and marks it as completed when done, with the hash of the configuration it applied. The other
+ * instances wait for this completion marker and then return without applying anything. An instance starting later
+ * only applies the configuration again if its hash is not the completed one. A lease which is not renewed within
+ * its time to live is taken over.
+ * <br>
+ * Each update is made with {@code if_seq_no} and {@code if_primary_term}, so two instances can never both
+ * believe they hold the lease. As the renewals are detected with the sequence number and our own clock, the
+ * clocks of the instances don't need to be in sync.
+ */
+public class ElasticsearchLease {
+
+	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchLease.class);
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private static final String RUNNING = "running";
+	private static final String COMPLETED = "completed";
+
+	private static final String LEASE_INDEX_DEFINITION = "{" +
+			"\"settings\":{\"index\":{\"hidden\":true,\"number_of_shards\":1,\"auto_expand_replicas\":\"0-1\"}}," +
+			"\"mappings\":{\"dynamic\":\"strict\",\"properties\":{" +
+			"\"owner\":{\"type\":\"keyword\"},\"state\":{\"type\":\"keyword\"},\"updated\":{\"type\":\"date\"}," +
+			"\"configuration\":{\"type\":\"keyword\",\"index\":false}}}}";
+
+	private final RestClient client;
+	private final String endpoint;
+	private final String owner;
+	private final String configuration;
+	private final ScheduledExecutorService renewal;
+	private long seqNo;
+	private long primaryTerm;
+	// Set by the renewal thread and read by the threads applying the configuration
+	private volatile boolean lost = false;
+
+	private ElasticsearchLease(RestClient client, String endpoint, String owner, String configuration, Lock lock, long ttl) {
+		this.client = client;
+		this.endpoint = endpoint;
+		this.owner = owner;
+		this.configuration = configuration;
+		this.seqNo = lock.seqNo;
+		this.primaryTerm = lock.primaryTerm;
+		this.renewal = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "beyonder-lease-renewal");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(ttl / 3, 1);
+		this.renewal.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Acquire the lease of a configuration, waiting for the current holder if any
+	 * @param client Elasticsearch client
+	 * @param root dir within the classpath, which identifies the configuration
+	 * @param configuration hash of the configuration, or null to apply it even if it has already been applied
+	 * @param options Options which define the lease index, time to live and wait timeout
+	 * @return the lease, or null if another instance applied the configuration while we were waiting or before
+	 * @throws Exception if the lease can not be acquired within the wait timeout
+	 */
+	public static ElasticsearchLease acquire(RestClient client, String root, String configuration, BeyonderOptions options) throws Exception {
+		String id = root == null ? DefaultSettings.ConfigDir : root;
+		logger.trace("acquireLease([{}])", id);
+
+		String index = options.getLeaseIndex();
+		createLeaseIndex(client, index);
+
+		String endpoint = "/" + index + "/_doc/" + URLEncoder.encode(id, StandardCharsets.UTF_8);
+		String owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+		long ttl = options.getLeaseTtl();
+		long pollInterval = Math.max(Math.min(ttl / 10, 1000), 10);
+		long deadline = System.currentTimeMillis() + options.getLeaseWaitTimeout();
+
+		boolean waited = false;
+		Lock seen = null;
+		long seenAt = 0;
+		while (true) {
+			Lock lock = write(client, endpoint, null, owner, RUNNING, configuration);
+			if (lock != null) {
+				logger.debug("Lease [{}] acquired by [{}]", id, owner);
+				return new ElasticsearchLease(client, endpoint, owner, configuration, lock, ttl);
+			}
+
+			Lock current = read(client, endpoint);
+			if (current == null) {
+				// The holder failed and released it
+				continue;
+			}
+			if (COMPLETED.equals(current.state)) {
+				// Without a hash, we only trust a completion we have been waiting for
+				if (configuration != null ? configuration.equals(current.configuration) : waited) {
+					logger.debug("Lease [{}] completed by [{}]", id, current.owner);
+					logger.trace("/acquireLease([{}])", id);
+					return null;
+				}
+				// Applied with another configuration, so we apply ours
+				lock = write(client, endpoint, current, owner, RUNNING, configuration);
+				if (lock != null) {
+					logger.debug("Lease [{}] acquired by [{}] after a previous completion", id, owner);
+					return new ElasticsearchLease(client, endpoint, owner, configuration, lock, ttl);
+				}
+				continue;
+			}
+
+			waited = true;
+			long now = System.currentTimeMillis();
+			if (seen == null || seen.seqNo != current.seqNo || seen.primaryTerm != current.primaryTerm) {
+				seen = current;
+				seenAt = now;
+			} else if (now - seenAt > ttl) {
+				logger.warn("Lease [{}] held by [{}] has not been renewed for [{}] ms. Taking it over.", id, current.owner, now - seenAt);
+				lock = write(client, endpoint, current, owner, RUNNING, configuration);
+				if (lock != null) {
+					return new ElasticsearchLease(client, endpoint, owner, configuration, lock, ttl);
+				}
+				continue;
+			}
+
+			if (now > deadline) {
+				logger.warn("Could not acquire lease [{}] held by [{}]", id, current.owner);
+				throw new Exception("Could not acquire lease [" + id + "] held by [" + current.owner + "].");
+			}
+			logger.trace("Lease [{}] is held by [{}]. Waiting.", id, current.owner);
+			Thread.sleep(pollInterval);
+		}
+	}
+
+	/**
+	 * Release the lease. When the configuration has been applied, the lease is marked as completed so the
+	 * instances waiting for it return. Otherwise, it is removed so one of them can take it.
+	 * @param completed true if the configuration has been applied
+	 */
+	public synchronized void release(boolean completed) {
+		renewal.shutdownNow();
+		if (lost) {
+			logger.warn("Lease [{}] has been taken over by another instance while we were holding it", endpoint);
+			return;
+		}
+		try {
+			if (completed) {
+				Lock lock = write(client, endpoint, new Lock(seqNo, primaryTerm, owner, RUNNING, configuration), owner, COMPLETED,
+						configuration);
+				if (lock == null) {
+					logger.warn("Could not mark lease [{}] as completed as it has been taken over", endpoint);
+				}
+			} else {
+				Request request = new Request("DELETE", endpoint);
+				request.addParameter("if_seq_no", Long.toString(seqNo));
+				request.addParameter("if_primary_term", Long.toString(primaryTerm));
+				client.performRequest(request);
+			}
+		} catch (IOException e) {
+			logger.warn("Could not release lease [{}]: {}", endpoint, e.getMessage());
+		}
+	}
+
+	/**
+	 * Check that we still hold the lease. It must be called between the steps applying the configuration.
+	 * @throws Exception if another instance took the lease over, so we must stop applying the configuration
+	 */
+	public void check() throws Exception {
+		if (lost) {
+			logger.warn("Lease [{}] has been taken over by another instance. Stopping.", endpoint);
+			throw new Exception("Could not apply the configuration as lease [" + endpoint + "] has been taken over by another instance.");
+		}
+	}
+
+	private synchronized void renew() {
+		if (lost) {
+			return;
+		}
+		try {
+			Lock lock = write(client, endpoint, new Lock(seqNo, primaryTerm, owner, RUNNING, configuration), owner, RUNNING,
+					configuration);
+			if (lock == null) {
+				logger.warn("Lease [{}] has been taken over by another instance", endpoint);
+				lost = true;
+				return;
+			}
+			seqNo = lock.seqNo;
+			primaryTerm = lock.primaryTerm;
+			logger.trace("Lease [{}] renewed", endpoint);
+		} catch (IOException e) {
+			// We will try again at the next renewal
+			logger.warn("Could not renew lease [{}]: {}", endpoint, e.getMessage());
+		}
+	}
+
+	private static void createLeaseIndex(RestClient client, String index) throws Exception {
+		Request create = new Request("PUT", "/" + index);
+		create.setJsonEntity(LEASE_INDEX_DEFINITION);
+		try {
+			client.performRequest(create);
+			logger.debug("Lease index [{}] created", index);
+		} catch (ResponseException e) {
+			if (e.getResponse().getStatusLine().getStatusCode() != 400 || !"resource_already_exists_exception".equals(readErrorType(e))) {
+				logger.warn("Could not create lease index [{}]", index);
+				throw new Exception("Could not create lease index [" + index + "].", e);
+			}
+			// The index already exists
+		}
+	}
+
+	/**
+	 * Read the type of the error of {"error":{"type":"resource_already_exists_exception",...},"status":400}
+	 * @return the type or null if the response has none
+	 */
+	static String readErrorType(ResponseException e) throws IOException {
+		if (e.getResponse().getEntity() == null) {
+			return null;
+		}
+		try (JsonParser parser = jsonFactory.createParser(e.getResponse().getEntity().getContent())) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return null;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				if (parser.nextToken() == JsonToken.START_OBJECT && "error".equals(field)) {
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String errorField = parser.currentName();
+						parser.nextToken();
+						if ("type".equals(errorField)) {
+							return parser.getValueAsString();
+						}
+						parser.skipChildren();
+					}
+					return null;
+				}
+				parser.skipChildren();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Write the lease document
+	 * @param expected the version we expect to replace, or null to create it
+	 * @return the lock we wrote or null if someone else modified it or created it before us
+	 */
+	private static Lock write(RestClient client, String endpoint, Lock expected, String owner, String state,
+							  String configuration) throws IOException {
+		Request request = new Request("PUT", endpoint);
+		if (expected == null) {
+			request.addParameter("op_type", "create");
+		} else {
+			request.addParameter("if_seq_no", Long.toString(expected.seqNo));
+			request.addParameter("if_primary_term", Long.toString(expected.primaryTerm));
+		}
+		StringWriter json = new StringWriter();
+		try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+			generator.writeStartObject();
+			generator.writeStringField("owner", owner);
+			generator.writeStringField("state", state);
+			generator.writeNumberField("updated", System.currentTimeMillis());
+			if (configuration != null) {
+				generator.writeStringField("configuration", configuration);
+			}
+			generator.writeEndObject();
+		}
+		request.setJsonEntity(json.toString());
+		try {
+			Response response = client.performRequest(request);
+			try (InputStream body = response.getEntity().getContent()) {
+				Lock lock = parse(body);
+				return new Lock(lock.seqNo, lock.primaryTerm, owner, state, configuration);
+			}
+		} catch (ResponseException e) {
+			if (e.getResponse().getStatusLine().getStatusCode() == 409) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	private static Lock read(RestClient client, String endpoint) throws IOException {
+		try {
+			Response response = client.performRequest(new Request("GET", endpoint));
+			try (InputStream body = response.getEntity().getContent()) {
+				return parse(body);
+			}
+		} catch (ResponseException e) {
+			if (e.getResponse().getStatusLine().getStatusCode() == 404) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	private static Lock parse(InputStream body) throws IOException {
+		long seqNo = -1;
+		long primaryTerm = -1;
+		String owner = null;
+		String state = null;
+		String configuration = null;
+		try (JsonParser parser = jsonFactory.createParser(body)) {
+			int depth = 0;
+			for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+				if (token.isStructStart()) {
+					depth++;
+				} else if (token.isStructEnd()) {
+					depth--;
+				} else if (token == JsonToken.FIELD_NAME) {
+					String field = parser.currentName();
+					if (depth == 1 && "_seq_no".equals(field)) {
+						parser.nextToken();
+						seqNo = parser.getLongValue();
+					} else if (depth == 1 && "_primary_term".equals(field)) {
+						parser.nextToken();
+						primaryTerm = parser.getLongValue();
+					} else if (depth == 2 && "owner".equals(field)) {
+						owner = parser.nextTextValue();
+					} else if (depth == 2 && "state".equals(field)) {
+						state = parser.nextTextValue();
+					} else if (depth == 2 && "configuration".equals(field)) {
+						configuration = parser.nextTextValue();
+					}
+				}
+			}
+		}
+		return new Lock(seqNo, primaryTerm, owner, state, configuration);
+	}
+
+	private static class Lock {
+		private final long seqNo;
+		private final long primaryTerm;
+		private final String owner;
+		private final String state;
+		private final String configuration;
+
+		private Lock(long seqNo, long primaryTerm, String owner, String state, String configuration) {
+			this.seqNo = seqNo;
+			this.primaryTerm = primaryTerm;
+			this.owner = owner;
+			this.state = state;
+			this.configuration = configuration;
+		}
+	}
+}
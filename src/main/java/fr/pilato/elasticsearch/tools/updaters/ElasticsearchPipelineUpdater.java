@@ -21,7 +21,9 @@ package fr.pilato.elasticsearch.tools.updaters;
 
 import java.io.IOException;
 
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
 import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.ResourceHashing;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.ResponseException;
@@ -29,8 +31,6 @@ import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static fr.pilato.elasticsearch.tools.util.SettingsReader.getJsonContent;
-
 /**
  * Handles ingest pipeline creation.
  * 
@@ -54,8 +54,21 @@ public class ElasticsearchPipelineUpdater {
      * @throws Exception if something goes wrong
      */
     public static void createPipeline(RestClient client, String root, String pipeline) throws Exception {
-        String json = getJsonContent(root, DefaultSettings.PipelinesDir, pipeline + DefaultSettings.JsonFileExtension);
-        createPipelineWithJsonInElasticsearch(client, pipeline, json);
+        createPipeline(client, root, pipeline, new BeyonderOptions());
+    }
+
+    /**
+     * Create a pipeline in Elasticsearch.
+     * 
+     * @param client Elasticsearch client
+     * @param root dir within the classpath
+     * @param pipeline the id of the pipeline
+     * @param options Options to use
+     * @throws Exception if something goes wrong
+     */
+    public static void createPipeline(RestClient client, String root, String pipeline, BeyonderOptions options) throws Exception {
+        byte[] json = options.getResourcePrefetcher().getJsonBytes(root, DefaultSettings.PipelinesDir, pipeline + DefaultSettings.JsonFileExtension);
+        createPipelineWithJsonInElasticsearch(client, pipeline, json, options);
     }
 
     /**
@@ -64,16 +77,25 @@ public class ElasticsearchPipelineUpdater {
      * @param client Elasticsearch client
      * @param pipeline the id of the pipeline
      * @param json JSon content for the pipeline
+     * @param options Options to use
      * @throws Exception if something goes wrong
      */
-    private static void createPipelineWithJsonInElasticsearch(RestClient client, String pipeline, String json) throws Exception {
+    private static void createPipelineWithJsonInElasticsearch(RestClient client, String pipeline, byte[] json,
+                                                              BeyonderOptions options) throws Exception {
         logger.trace("createPipeline([{}])", pipeline);
 
         assert client != null;
         assert pipeline != null;
 
+        byte[] body = ElasticsearchResourceHash.prepare(client, "/_ingest/pipeline/" + pipeline,
+                "*._meta." + ResourceHashing.HASH_FIELD, json, options);
+        if (body == null) {
+            logger.trace("/createPipeline([{}])", pipeline);
+            return;
+        }
+
         Request request = new Request("PUT", "/_ingest/pipeline/" + pipeline);
-        request.setJsonEntity(json);
+        request.setEntity(options.getRequestCompression().jsonEntity(body));
         Response response = client.performRequest(request);
 
         if (response.getStatusLine().getStatusCode() != 200) {
@@ -94,7 +116,10 @@ public class ElasticsearchPipelineUpdater {
      */
     public static boolean isPipelineExist(RestClient client, String pipeline) throws IOException {
         try {
-            Response response = client.performRequest(new Request("GET", "/_ingest/pipeline/" + pipeline));
+            Request request = new Request("GET", "/_ingest/pipeline/" + pipeline);
+            // We don't need the processors
+            request.addParameter("summary", "true");
+            Response response = client.performRequest(request);
             return response.getEntity() != null;
         }
         catch (ResponseException e) {
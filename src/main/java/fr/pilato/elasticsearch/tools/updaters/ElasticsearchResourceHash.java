@@ -0,0 +1,94 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.updaters;
+
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.ResourceHashing;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compare the hash of a resource with the one stored in elasticsearch so unchanged resources are not sent again
+ */
+class ElasticsearchResourceHash {
+
+	private static final Logger logger = LoggerFactory.getLogger(ElasticsearchResourceHash.class);
+
+	private ElasticsearchResourceHash() {
+		// empty
+	}
+
+	/**
+	 * Prepare the content of a resource before sending it
+	 * @param client Elasticsearch client
+	 * @param endpoint the endpoint of the resource, like {@code /_ingest/pipeline/my_pipeline}
+	 * @param filterPath the path to the hash within the GET response of the endpoint
+	 * @param json JSon content for the resource, in UTF-8
+	 * @param options Options to use
+	 * @param path the fields leading to the object holding the {@code _meta}
+	 * @return the content to send, or null if the resource did not change
+	 * @throws IOException if the resource can not be read from elasticsearch
+	 */
+	static byte[] prepare(RestClient client, String endpoint, String filterPath, byte[] json, BeyonderOptions options,
+						  String... path) throws IOException {
+		ResourceHashing hashing = options.getResourceHashing();
+		if (!hashing.isEnabled()) {
+			hashing.applied();
+			return json;
+		}
+
+		String hash = ResourceHashing.hash(json);
+		String existing = getHash(client, endpoint, filterPath);
+		if (hash.equals(existing)) {
+			logger.debug("Resource [{}] did not change. Skipping it.", endpoint);
+			hashing.skipped();
+			return null;
+		}
+		logger.debug("Resource [{}] has hash [{}] but we have [{}]. Applying it.", endpoint, existing, hash);
+		hashing.applied();
+		return ResourceHashing.withHash(json, hash, path);
+	}
+
+	private static String getHash(RestClient client, String endpoint, String filterPath) throws IOException {
+		Request request = new Request("GET", endpoint);
+		request.addParameter("filter_path", filterPath);
+		try {
+			Response response = client.performRequest(request);
+			if (response.getEntity() == null) {
+				return null;
+			}
+			try (InputStream content = response.getEntity().getContent()) {
+				return ResourceHashing.readHash(content);
+			}
+		} catch (ResponseException e) {
+			if (404 != e.getResponse().getStatusLine().getStatusCode()) {
+				throw e;
+			}
+			return null;
+		}
+	}
+}
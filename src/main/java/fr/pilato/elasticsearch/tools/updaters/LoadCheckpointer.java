@@ -0,0 +1,188 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.updaters;
+
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.LoadCheckpoint;
+import fr.pilato.elasticsearch.tools.util.NdJsonBulkReader;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static fr.pilato.elasticsearch.tools.util.SettingsReader.getFileIdentity;
+
+/**
+ * Track which parts of a data file have been indexed and save the progress as a checkpoint.
+ * <br>
+ * Chunks can be acknowledged in any order when several requests are in flight. The saved offset is the end
+ * of the acknowledged chunks which follow each other from the start of the file, so some chunks after it
+ * could have been indexed already when we resume.
+ */
+class LoadCheckpointer {
+
+	private static final Logger logger = LoggerFactory.getLogger(LoadCheckpointer.class);
+
+	private final RestClient client;
+	private final BeyonderOptions options;
+	private final String group;
+	private final String file;
+	private final String hash;
+
+	// Acknowledged chunks which do not follow the watermark yet: start offset -> end offset
+	private final Map<Long, Long> acknowledged = new HashMap<>();
+	private long watermark;
+	private long sentChunks = 0;
+	private long acknowledgedChunks = 0;
+	private boolean readDone = false;
+
+	private final Object saveLock = new Object();
+	private long savedWatermark;
+	private long lastSave = System.currentTimeMillis();
+
+	private LoadCheckpointer(RestClient client, BeyonderOptions options, String group, String file, String hash,
+							 long offset, boolean completed) {
+		this.client = client;
+		this.options = options;
+		this.group = group;
+		this.file = file;
+		this.hash = hash;
+		this.watermark = offset;
+		this.savedWatermark = offset;
+		this.readDone = completed;
+	}
+
+	/**
+	 * Read the checkpoint of a file and save where the load is going to start from
+	 * @param client Elasticsearch client
+	 * @param options Options to use
+	 * @param root dir within the classpath
+	 * @param subdir the data directory within the root dir
+	 * @param group the checkpoint group
+	 * @param file the file name
+	 * @return the checkpointer of the file. Check {@link #isCompleted()} and {@link #getOffset()} to know what to load.
+	 * @throws Exception if the file can not be read or the elasticsearch API call is failing
+	 */
+	static LoadCheckpointer open(RestClient client, BeyonderOptions options, String root, String subdir,
+								 String group, String file) throws Exception {
+		String hash = hash(root, subdir, file);
+		LoadCheckpoint checkpoint = ElasticsearchCheckpointUpdater.getCheckpoint(client, options, group, file);
+		if (checkpoint != null && hash.equals(checkpoint.getHash())) {
+			if (checkpoint.isCompleted()) {
+				logger.debug("File [{}/{}] has already been loaded. Skipping it.", group, file);
+			} else {
+				logger.info("Resuming the load of file [{}/{}] from offset [{}]", group, file, checkpoint.getOffset());
+			}
+			return new LoadCheckpointer(client, options, group, file, hash, checkpoint.getOffset(), checkpoint.isCompleted());
+		}
+		if (checkpoint != null && checkpoint.getHash() != null) {
+			logger.info("File [{}/{}] has changed since its last load. Loading it from the start.", group, file);
+		}
+		LoadCheckpointer checkpointer = new LoadCheckpointer(client, options, group, file, hash, 0, false);
+		checkpointer.save();
+		return checkpointer;
+	}
+
+	/**
+	 * @return true if the whole file has been indexed
+	 */
+	synchronized boolean isCompleted() {
+		return readDone && sentChunks == acknowledgedChunks;
+	}
+
+	/**
+	 * @return the offset in the file before which everything has been indexed
+	 */
+	synchronized long getOffset() {
+		return watermark;
+	}
+
+	/**
+	 * Must be called before sending a chunk
+	 */
+	synchronized void sent() {
+		sentChunks++;
+	}
+
+	/**
+	 * Must be called when all the items of a chunk have been indexed (or written to the dead letter file)
+	 * @param chunk the chunk
+	 */
+	synchronized void acknowledge(NdJsonBulkReader.Chunk chunk) {
+		acknowledgedChunks++;
+		acknowledged.put(chunk.getStartOffset(), chunk.getEndOffset());
+		Long end;
+		while ((end = acknowledged.remove(watermark)) != null) {
+			watermark = end;
+		}
+	}
+
+	/**
+	 * Must be called once all the chunks of the file have been sent
+	 */
+	synchronized void readDone() {
+		readDone = true;
+	}
+
+	/**
+	 * Save the checkpoint if it moved and if it has not been saved recently
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	void maybeSave() throws Exception {
+		synchronized (saveLock) {
+			if (System.currentTimeMillis() - lastSave >= DefaultSettings.CheckpointSaveInterval && getOffset() != savedWatermark) {
+				save();
+			}
+		}
+	}
+
+	/**
+	 * Save the checkpoint
+	 * @throws Exception if the elasticsearch API call is failing
+	 */
+	void save() throws Exception {
+		synchronized (saveLock) {
+			long offset;
+			boolean completed;
+			synchronized (this) {
+				offset = watermark;
+				completed = isCompleted();
+			}
+			ElasticsearchCheckpointUpdater.saveCheckpoint(client, options, new LoadCheckpoint(group, file, hash, offset, completed));
+			savedWatermark = offset;
+			lastSave = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Identify the content of a file, so we don't resume the load of a file which has been modified
+	 */
+	private static String hash(String root, String subdir, String file) throws IOException {
+		String identity = getFileIdentity(root, subdir, file);
+		if (identity == null) {
+			throw new IOException("Can not find file [" + file + "]");
+		}
+		return identity;
+	}
+}
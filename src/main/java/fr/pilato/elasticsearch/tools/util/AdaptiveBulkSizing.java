@@ -0,0 +1,235 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapt the size of the bulk requests and the number of concurrent requests to what the cluster can take.
+ * <br>
+ * It starts from {@link BeyonderOptions#getBulkMaxBytes()} and {@link BeyonderOptions#getBulkConcurrentRequests()}.
+ * Each time a full round of requests comes back faster than the target latency, it grows the bulk size by
+ * a fixed step or adds one concurrent request, in turn. When a request is rejected by the cluster (429) or when
+ * it takes longer than the target latency, it halves both of them.
+ * <br>
+ * The values it ends with can be used to freeze the settings of a given cluster.
+ */
+public class AdaptiveBulkSizing {
+
+	private static final Logger logger = LoggerFactory.getLogger(AdaptiveBulkSizing.class);
+
+	private static final int MIN_BYTES = 64 * 1024;
+	private static final int BYTES_STEP = 1024 * 1024;
+
+	private boolean enabled = DefaultSettings.AdaptiveBulk;
+	private long targetLatency = DefaultSettings.AdaptiveBulkTargetLatency;
+	private int maxBytes = DefaultSettings.AdaptiveBulkMaxBytes;
+	private int maxConcurrentRequests = DefaultSettings.AdaptiveBulkMaxConcurrentRequests;
+
+	// The operating point, set when the first bulk request of a run is sent
+	private boolean started = false;
+	private int effectiveMaxBytes;
+	private double actionsPerByte;
+	private int bytes;
+	private int concurrentRequests;
+
+	// Responses to requests sent before the last change do not tell anything about the current operating point
+	private long generation = 0;
+	private int fastResponses = 0;
+	private boolean growBytes = true;
+	private long increases = 0;
+	private long backoffs = 0;
+
+	/**
+	 * Set the starting point if it has not been set already for this run. The operating point is kept from one
+	 * index to another.
+	 * @param options the options which define the starting point
+	 */
+	public synchronized void start(BeyonderOptions options) {
+		if (started) {
+			return;
+		}
+		started = true;
+		actionsPerByte = (double) options.getBulkMaxActions() / options.getBulkMaxBytes();
+		// A request can not be bigger than what can be in flight
+		effectiveMaxBytes = Math.min(maxBytes, options.getBulkMaxBytesInFlight());
+		bytes = Math.max(MIN_BYTES, Math.min(options.getBulkMaxBytes(), effectiveMaxBytes));
+		concurrentRequests = Math.min(options.getBulkConcurrentRequests(), maxConcurrentRequests);
+		fastResponses = 0;
+		growBytes = true;
+		increases = 0;
+		backoffs = 0;
+		// Responses to requests of a previous run are ignored
+		generation++;
+		logger.debug("adaptive bulk sizing starting at {}", operatingPoint());
+	}
+
+	/**
+	 * Start a new run: what has been learned is forgotten and the next bulk request starts again from the options
+	 */
+	public synchronized void reset() {
+		started = false;
+	}
+
+	/**
+	 * @return the current maximum size in bytes of a bulk request
+	 */
+	public synchronized int getBulkMaxBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the current maximum number of actions of a bulk request. It follows the bulk size so the
+	 * ratio between {@link BeyonderOptions#getBulkMaxActions()} and {@link BeyonderOptions#getBulkMaxBytes()} is kept.
+	 */
+	public synchronized int getBulkMaxActions() {
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(bytes * actionsPerByte)));
+	}
+
+	/**
+	 * @return the current number of bulk requests which can be in flight at the same time
+	 */
+	public synchronized int getConcurrentRequests() {
+		return concurrentRequests;
+	}
+
+	/**
+	 * @return the generation to give back to {@link #onResponse(long, long, boolean)} for a request sent now
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Record the outcome of a bulk request
+	 * @param generation the generation when the request has been sent
+	 * @param latency how long the request took, in milliseconds
+	 * @param rejected true if the cluster rejected the request or some of its items because it is busy
+	 */
+	public synchronized void onResponse(long generation, long latency, boolean rejected) {
+		if (generation != this.generation) {
+			return;
+		}
+		if (rejected || latency > targetLatency) {
+			bytes = Math.max(MIN_BYTES, bytes / 2);
+			concurrentRequests = Math.max(1, concurrentRequests / 2);
+			backoffs++;
+			changed();
+			logger.info("bulk request {} after [{}] ms. Backing off to {}",
+					rejected ? "rejected" : "too slow", latency, operatingPoint());
+			return;
+		}
+		if (++fastResponses < concurrentRequests) {
+			return;
+		}
+		boolean grown = false;
+		if (growBytes || concurrentRequests >= maxConcurrentRequests) {
+			grown = bytes < effectiveMaxBytes;
+			bytes = Math.min(effectiveMaxBytes, bytes + BYTES_STEP);
+		}
+		if (!grown && concurrentRequests < maxConcurrentRequests) {
+			concurrentRequests++;
+			grown = true;
+		}
+		fastResponses = 0;
+		if (grown) {
+			growBytes = !growBytes;
+			increases++;
+			changed();
+			logger.debug("bulk requests faster than [{}] ms. Growing to {}", targetLatency, operatingPoint());
+		}
+	}
+
+	private void changed() {
+		generation++;
+		fastResponses = 0;
+	}
+
+	private String operatingPoint() {
+		return "[" + bytes + "] bytes, [" + getBulkMaxActions() + "] actions and [" + concurrentRequests + "] concurrent requests";
+	}
+
+	/**
+	 * @return true if the bulk requests are adapted
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the latency in milliseconds above which we back off
+	 */
+	public long getTargetLatency() {
+		return targetLatency;
+	}
+
+	void setTargetLatency(long targetLatency) {
+		this.targetLatency = targetLatency;
+	}
+
+	/**
+	 * @return the maximum size in bytes a bulk request can grow to
+	 */
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	void setMaxBytes(int maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the maximum number of concurrent requests
+	 */
+	public int getMaxConcurrentRequests() {
+		return maxConcurrentRequests;
+	}
+
+	void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		this.maxConcurrentRequests = maxConcurrentRequests;
+	}
+
+	/**
+	 * @return the number of times the bulk requests have been grown
+	 */
+	public synchronized long getIncreases() {
+		return increases;
+	}
+
+	/**
+	 * @return the number of times we backed off
+	 */
+	public synchronized long getBackoffs() {
+		return backoffs;
+	}
+
+	@Override
+	public synchronized String toString() {
+		if (!started) {
+			return "no bulk request sent";
+		}
+		return operatingPoint() + " after [" + increases + "] increases and [" + backoffs + "] backoffs";
+	}
+}
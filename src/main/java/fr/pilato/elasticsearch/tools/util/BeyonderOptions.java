@@ -0,0 +1,890 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Options which can be used to tune how Beyonder behaves. Every option
+ * defaults to the matching value in {@link DefaultSettings}.
+ * <pre>
+ * ElasticsearchBeyonder.start(client, "elasticsearch", false, new BeyonderOptions()
+ *     .setBulkMaxBytes(10 * 1024 * 1024)
+ *     .setBulkMaxActions(5000));
+ * </pre>
+ */
+public class BeyonderOptions {
+
+	private int bulkMaxBytes = DefaultSettings.BulkMaxBytes;
+	private int bulkMaxActions = DefaultSettings.BulkMaxActions;
+	private int bulkConcurrentRequests = DefaultSettings.BulkConcurrentRequests;
+	private int bulkMaxBytesInFlight = DefaultSettings.BulkMaxBytesInFlight;
+	private int bulkMaxRetries = DefaultSettings.BulkMaxRetries;
+	private long bulkRetryInitialDelay = DefaultSettings.BulkRetryInitialDelay;
+	private int bulkFileReaders = DefaultSettings.BulkFileReaders;
+	private int indexLoadParallelism = DefaultSettings.IndexLoadParallelism;
+	private int schemaParallelism = DefaultSettings.SchemaParallelism;
+	private boolean clusterSnapshot = DefaultSettings.ClusterSnapshot;
+	private Path deadLetterFile = null;
+	private boolean jsonDataAsBulk = DefaultSettings.JsonDataAsBulk;
+	private boolean jsonDataFileNameAsId = DefaultSettings.JsonDataFileNameAsId;
+	private boolean tuneIndicesForLoad = DefaultSettings.TuneIndicesForLoad;
+	private boolean resumableLoad = DefaultSettings.ResumableLoad;
+	private String checkpointIndex = DefaultSettings.CheckpointIndex;
+	private boolean waitForReplicasAfterLoad = DefaultSettings.WaitForReplicasAfterLoad;
+	private boolean lease = DefaultSettings.Lease;
+	private String leaseIndex = DefaultSettings.LeaseIndex;
+	private long leaseTtl = DefaultSettings.LeaseTtl;
+	private long leaseWaitTimeout = DefaultSettings.LeaseWaitTimeout;
+	private long watchDebounce = DefaultSettings.WatchDebounce;
+	private boolean indexMigration = DefaultSettings.IndexMigration;
+	private int indexMigrationSlices = DefaultSettings.IndexMigrationSlices;
+	private float indexMigrationRequestsPerSecond = DefaultSettings.IndexMigrationRequestsPerSecond;
+	private long indexMigrationPollInterval = DefaultSettings.IndexMigrationPollInterval;
+	private long indexMigrationTimeout = DefaultSettings.IndexMigrationTimeout;
+	private final RequestCompression requestCompression = new RequestCompression();
+	private final AdaptiveBulkSizing adaptiveBulkSizing = new AdaptiveBulkSizing();
+	private final LoadMetrics loadMetrics = new LoadMetrics();
+	private final BulkInFlight bulkInFlight = new BulkInFlight();
+	private final ResourceHashing resourceHashing = new ResourceHashing();
+	private final VariableSources variableSources = new VariableSources();
+	private final ResourcePrefetcher resourcePrefetcher = new ResourcePrefetcher(variableSources);
+
+	/**
+	 * @return the maximum size in bytes of a single bulk request
+	 */
+	public int getBulkMaxBytes() {
+		return bulkMaxBytes;
+	}
+
+	/**
+	 * Set the maximum size in bytes of a single bulk request. A single document bigger
+	 * than this limit is still sent, but alone in its own bulk request.
+	 * @param bulkMaxBytes maximum size in bytes
+	 * @return this options instance
+	 */
+	public BeyonderOptions setBulkMaxBytes(int bulkMaxBytes) {
+		if (bulkMaxBytes <= 0) {
+			throw new IllegalArgumentException("bulkMaxBytes must be positive");
+		}
+		this.bulkMaxBytes = bulkMaxBytes;
+		return this;
+	}
+
+	/**
+	 * @return the maximum number of actions within a single bulk request
+	 */
+	public int getBulkMaxActions() {
+		return bulkMaxActions;
+	}
+
+	/**
+	 * Set the maximum number of actions (documents) within a single bulk request.
+	 * @param bulkMaxActions maximum number of actions
+	 * @return this options instance
+	 */
+	public BeyonderOptions setBulkMaxActions(int bulkMaxActions) {
+		if (bulkMaxActions <= 0) {
+			throw new IllegalArgumentException("bulkMaxActions must be positive");
+		}
+		this.bulkMaxActions = bulkMaxActions;
+		return this;
+	}
+
+	/**
+	 * @return the number of bulk requests which can be in flight at the same time, all indices included
+	 */
+	public int getBulkConcurrentRequests() {
+		return bulkConcurrentRequests;
+	}
+
+	/**
+	 * Set the number of bulk requests which can be in flight at the same time, all indices included. With more than one
+	 * request, the order in which the documents are indexed is not guaranteed anymore.
+	 * @param bulkConcurrentRequests number of concurrent bulk requests
+	 * @return this options instance
+	 */
+	public BeyonderOptions setBulkConcurrentRequests(int bulkConcurrentRequests) {
+		if (bulkConcurrentRequests <= 0) {
+			throw new IllegalArgumentException("bulkConcurrentRequests must be positive");
+		}
+		this.bulkConcurrentRequests = bulkConcurrentRequests;
+		return this;
+	}
+
+	/**
+	 * @return the maximum number of bytes which can be in flight at the same time, all indices included
+	 */
+	public int getBulkMaxBytesInFlight() {
+		return bulkMaxBytesInFlight;
+	}
+
+	/**
+	 * Set the maximum number of bytes which can be in flight at the same time, all indices included. When this limit
+	 * is reached, reading the data files pauses until some responses come back.
+	 * @param bulkMaxBytesInFlight maximum number of bytes in flight
+	 * @return this options instance
+	 */
+	public BeyonderOptions setBulkMaxBytesInFlight(int bulkMaxBytesInFlight) {
+		if (bulkMaxBytesInFlight <= 0) {
+			throw new IllegalArgumentException("bulkMaxBytesInFlight must be positive");
+		}
+		this.bulkMaxBytesInFlight = bulkMaxBytesInFlight;
+		return this;
+	}
+
+	/**
+	 * @return the bulk requests and bytes in flight of the current run, shared by all the indices loaded at the same time
+	 */
+	public BulkInFlight getBulkInFlight() {
+		return bulkInFlight;
+	}
+
+	/**
+	 * @return the number of times a rejected bulk item is sent again
+	 */
+	public int getBulkMaxRetries() {
+		return bulkMaxRetries;
+	}
+
+	/**
+	 * Set the number of times a bulk item rejected with a 429 or 503 status is sent again.
+	 * Use 0 to disable retries.
+	 * @param bulkMaxRetries number of retries
+	 * @return this options instance
+	 */
+	public BeyonderOptions setBulkMaxRetries(int bulkMaxRetries) {
+		if (bulkMaxRetries < 0) {
+			throw new IllegalArgumentException("bulkMaxRetries must not be negative");
+		}
+		this.bulkMaxRetries = bulkMaxRetries;
+		return this;
+	}
+
+	/**
+	 * @return the delay in milliseconds before the first retry of a rejected bulk item
+	 */
+	public long getBulkRetryInitialDelay() {
+		return bulkRetryInitialDelay;
+	}
+
+	/**
+	 * Set the delay before the first retry of a rejected bulk item. The delay doubles at every retry
+	 * and a random jitter is applied.
+	 * @param bulkRetryInitialDelay delay in milliseconds
+	 * @return this options instance
+	 */
+	public BeyonderOptions setBulkRetryInitialDelay(long bulkRetryInitialDelay) {
+		if (bulkRetryInitialDelay <= 0) {
+			throw new IllegalArgumentException("bulkRetryInitialDelay must be positive");
+		}
+		this.bulkRetryInitialDelay = bulkRetryInitialDelay;
+		return this;
+	}
+
+	/**
+	 * @return the number of threads reading a single ndjson file
+	 */
+	public int getBulkFileReaders() {
+		return bulkFileReaders;
+	}
+
+	/**
+	 * Set the number of threads reading a single ndjson file. With more than one reader, ndjson files which
+	 * are on the file system (not within a jar), not compressed and bigger than {@link #getBulkMaxBytes()}
+	 * are memory mapped and split into ranges read in parallel. You probably want to raise
+	 * {@link #setBulkConcurrentRequests(int)} as well.
+	 * @param bulkFileReaders number of threads reading a file
+	 * @return this options instance
+	 */
+	public BeyonderOptions setBulkFileReaders(int bulkFileReaders) {
+		if (bulkFileReaders <= 0) {
+			throw new IllegalArgumentException("bulkFileReaders must be positive");
+		}
+		this.bulkFileReaders = bulkFileReaders;
+		return this;
+	}
+
+	/**
+	 * @return the number of indices which are loaded with data at the same time
+	 */
+	public int getIndexLoadParallelism() {
+		return indexLoadParallelism;
+	}
+
+	/**
+	 * Set the number of indices which are loaded with data at the same time. The root {@code _data} directory
+	 * is loaded as if it was another index. When an index fails to load, the other ones keep loading and all the
+	 * failures are reported at the end. The indices loaded at the same time share the
+	 * {@link #getBulkConcurrentRequests()} requests and the {@link #getBulkMaxBytesInFlight()} bytes in flight.
+	 * @param indexLoadParallelism number of indices loaded at the same time
+	 * @return this options instance
+	 */
+	public BeyonderOptions setIndexLoadParallelism(int indexLoadParallelism) {
+		if (indexLoadParallelism <= 0) {
+			throw new IllegalArgumentException("indexLoadParallelism must be positive");
+		}
+		this.indexLoadParallelism = indexLoadParallelism;
+		return this;
+	}
+
+	/**
+	 * @return the number of schema resources which are created at the same time
+	 */
+	public int getSchemaParallelism() {
+		return schemaParallelism;
+	}
+
+	/**
+	 * Set the number of schema resources (index lifecycles, component templates, index templates, pipelines and indices)
+	 * which are created at the same time. Each resource only waits for what it depends on: an index template waits for the
+	 * component templates it is composed of, and an index waits for the index templates matching its name, the index
+	 * lifecycles and the pipelines. Aliases are managed once all the indices exist.
+	 * @param schemaParallelism number of resources created at the same time
+	 * @return this options instance
+	 */
+	public BeyonderOptions setSchemaParallelism(int schemaParallelism) {
+		if (schemaParallelism <= 0) {
+			throw new IllegalArgumentException("schemaParallelism must be positive");
+		}
+		this.schemaParallelism = schemaParallelism;
+		return this;
+	}
+
+	/**
+	 * @return true if what exists in the cluster is read once when starting
+	 */
+	public boolean isClusterSnapshot() {
+		return clusterSnapshot;
+	}
+
+	/**
+	 * Set whether the existing indices, aliases and data streams are read with a single call when starting, instead
+	 * of checking if each index exists with its own call. Changes made by someone else while Beyonder is starting
+	 * are not seen.
+	 * @param clusterSnapshot true to read what exists once
+	 * @return this options instance
+	 */
+	public BeyonderOptions setClusterSnapshot(boolean clusterSnapshot) {
+		this.clusterSnapshot = clusterSnapshot;
+		return this;
+	}
+
+	/**
+	 * @return true if the templates, pipelines and index lifecycles which did not change are not sent again
+	 */
+	public boolean isSkipUnchangedResources() {
+		return resourceHashing.isEnabled();
+	}
+
+	/**
+	 * Set whether to skip the component templates, index templates, pipelines and index lifecycles which did not
+	 * change since they were last sent. A hash of their content is stored in their {@code _meta} and compared with the
+	 * one in the cluster, which avoids updating the cluster state when many applications start at the same time.
+	 * @param skipUnchangedResources true to skip the resources which did not change
+	 * @return this options instance
+	 */
+	public BeyonderOptions setSkipUnchangedResources(boolean skipUnchangedResources) {
+		this.resourceHashing.setEnabled(skipUnchangedResources);
+		return this;
+	}
+
+	/**
+	 * @return true if a lease is taken so only one instance applies the configuration at a time
+	 */
+	public boolean isLease() {
+		return lease;
+	}
+
+	/**
+	 * Set whether to take a lease in elasticsearch before applying the configuration. When many instances start
+	 * at the same time, one of them applies the configuration while the other ones wait for it to complete and
+	 * then return without applying anything. The instances starting later only apply it again if it changed.
+	 * @param lease true to take a lease
+	 * @return this options instance
+	 */
+	public BeyonderOptions setLease(boolean lease) {
+		this.lease = lease;
+		return this;
+	}
+
+	/**
+	 * @return the index where the leases are stored
+	 */
+	public String getLeaseIndex() {
+		return leaseIndex;
+	}
+
+	/**
+	 * Set the index where the leases are stored. It is created as a hidden index if needed.
+	 * @param leaseIndex index name
+	 * @return this options instance
+	 */
+	public BeyonderOptions setLeaseIndex(String leaseIndex) {
+		if (leaseIndex == null || leaseIndex.isEmpty()) {
+			throw new IllegalArgumentException("leaseIndex must not be empty");
+		}
+		this.leaseIndex = leaseIndex;
+		return this;
+	}
+
+	/**
+	 * @return the time in milliseconds after which a lease which has not been renewed is taken over
+	 */
+	public long getLeaseTtl() {
+		return leaseTtl;
+	}
+
+	/**
+	 * Set the time in milliseconds after which a lease which has not been renewed is taken over. The holder
+	 * renews its lease three times within this delay.
+	 * @param leaseTtl time to live in milliseconds
+	 * @return this options instance
+	 */
+	public BeyonderOptions setLeaseTtl(long leaseTtl) {
+		if (leaseTtl <= 0) {
+			throw new IllegalArgumentException("leaseTtl must be positive");
+		}
+		this.leaseTtl = leaseTtl;
+		return this;
+	}
+
+	/**
+	 * @return the maximum time in milliseconds to wait for a lease held by another instance
+	 */
+	public long getLeaseWaitTimeout() {
+		return leaseWaitTimeout;
+	}
+
+	/**
+	 * Set the maximum time in milliseconds to wait for a lease held by another instance which keeps renewing it
+	 * @param leaseWaitTimeout timeout in milliseconds
+	 * @return this options instance
+	 */
+	public BeyonderOptions setLeaseWaitTimeout(long leaseWaitTimeout) {
+		if (leaseWaitTimeout < 0) {
+			throw new IllegalArgumentException("leaseWaitTimeout must not be negative");
+		}
+		this.leaseWaitTimeout = leaseWaitTimeout;
+		return this;
+	}
+
+	/**
+	 * @return the time in milliseconds without any file change before the changed resources are applied again
+	 */
+	public long getWatchDebounce() {
+		return watchDebounce;
+	}
+
+	/**
+	 * Set the time in milliseconds without any file change before the resources changed in a watched root dir
+	 * are applied again. A burst of changes, like an editor saving several files, is then applied at once.
+	 * @param watchDebounce delay in milliseconds
+	 * @return this options instance
+	 */
+	public BeyonderOptions setWatchDebounce(long watchDebounce) {
+		if (watchDebounce <= 0) {
+			throw new IllegalArgumentException("watchDebounce must be positive");
+		}
+		this.watchDebounce = watchDebounce;
+		return this;
+	}
+
+	/**
+	 * @return the variables which can be used within the resources, before the system properties and the
+	 * environment variables
+	 */
+	public Map<String, String> getVariables() {
+		return variableSources.getVariables();
+	}
+
+	/**
+	 * Set variables which can be used within the resources, like {@code ${name}} or {@code ${name:-default value}}.
+	 * They are looked up before the system properties and the environment variables.
+	 * @param variables the variables values by name
+	 * @return this options instance
+	 */
+	public BeyonderOptions setVariables(Map<String, String> variables) {
+		if (variables == null) {
+			throw new IllegalArgumentException("variables must not be null");
+		}
+		this.variableSources.setVariables(variables);
+		return this;
+	}
+
+	/**
+	 * @return true if the java system properties can be used as variables within the resources
+	 */
+	public boolean isSystemPropertiesAsVariables() {
+		return variableSources.isSystemProperties();
+	}
+
+	/**
+	 * Set whether the java system properties can be used as variables within the resources. They are looked up
+	 * after the variables set with {@link #setVariables(Map)} and before the environment variables.
+	 * @param systemPropertiesAsVariables true to use the system properties
+	 * @return this options instance
+	 */
+	public BeyonderOptions setSystemPropertiesAsVariables(boolean systemPropertiesAsVariables) {
+		this.variableSources.setSystemProperties(systemPropertiesAsVariables);
+		return this;
+	}
+
+	/**
+	 * @return true if the definition files are read in advance
+	 */
+	public boolean isPrefetch() {
+		return resourcePrefetcher.isEnabled();
+	}
+
+	/**
+	 * Set whether to read the definition files of the templates, pipelines, index lifecycles, indices and aliases
+	 * in advance, on a small pool of threads, while the previous resources are sent to elasticsearch.
+	 * @param prefetch true to read the files in advance
+	 * @return this options instance
+	 */
+	public BeyonderOptions setPrefetch(boolean prefetch) {
+		this.resourcePrefetcher.setEnabled(prefetch);
+		return this;
+	}
+
+	/**
+	 * @return the maximum size in bytes of the definition files read in advance and not used yet
+	 */
+	public long getPrefetchMaxBytes() {
+		return resourcePrefetcher.getMaxBytes();
+	}
+
+	/**
+	 * Set the maximum size in bytes of the definition files read in advance and not used yet. Once reached,
+	 * the files are read when needed.
+	 * @param prefetchMaxBytes maximum size in bytes
+	 * @return this options instance
+	 */
+	public BeyonderOptions setPrefetchMaxBytes(long prefetchMaxBytes) {
+		if (prefetchMaxBytes < 0) {
+			throw new IllegalArgumentException("prefetchMaxBytes must not be negative");
+		}
+		this.resourcePrefetcher.setMaxBytes(prefetchMaxBytes);
+		return this;
+	}
+
+	/**
+	 * @return the file where the bulk items which can not be indexed are written, or null
+	 */
+	public Path getDeadLetterFile() {
+		return deadLetterFile;
+	}
+
+	/**
+	 * Set the file where the bulk items which can not be indexed are appended, as ndjson. When set,
+	 * those failures do not stop the load. When not set (the default), the load fails.
+	 * @param deadLetterFile the dead letter file
+	 * @return this options instance
+	 */
+	public BeyonderOptions setDeadLetterFile(Path deadLetterFile) {
+		this.deadLetterFile = deadLetterFile;
+		return this;
+	}
+
+	/**
+	 * @return true if json data files are sent using the Bulk API
+	 */
+	public boolean isJsonDataAsBulk() {
+		return jsonDataAsBulk;
+	}
+
+	/**
+	 * Set whether json data files (one document per file) are packed into bulk requests instead of being
+	 * sent one by one with the Index API. Bulk requests are bounded like the ones used for ndjson files.
+	 * @param jsonDataAsBulk true to use the Bulk API
+	 * @return this options instance
+	 */
+	public BeyonderOptions setJsonDataAsBulk(boolean jsonDataAsBulk) {
+		this.jsonDataAsBulk = jsonDataAsBulk;
+		return this;
+	}
+
+	/**
+	 * @return true if the json data file name is used as the document id
+	 */
+	public boolean isJsonDataFileNameAsId() {
+		return jsonDataFileNameAsId;
+	}
+
+	/**
+	 * Set whether the json data file name, without the .json extension, is used as the document id.
+	 * This only applies when {@link #setJsonDataAsBulk(boolean)} is set.
+	 * @param jsonDataFileNameAsId true to use the file name as the id
+	 * @return this options instance
+	 */
+	public BeyonderOptions setJsonDataFileNameAsId(boolean jsonDataFileNameAsId) {
+		this.jsonDataFileNameAsId = jsonDataFileNameAsId;
+		return this;
+	}
+
+	/**
+	 * @return true if the indices are tuned for the duration of the data load
+	 */
+	public boolean isTuneIndicesForLoad() {
+		return tuneIndicesForLoad;
+	}
+
+	/**
+	 * Set whether the indices created by Beyonder which receive data have their refresh disabled
+	 * ({@code refresh_interval: -1}) and no replica while the data is loaded. Their settings are restored
+	 * and they are refreshed once the data has been loaded, even when the load fails.
+	 * @param tuneIndicesForLoad true to tune the indices
+	 * @return this options instance
+	 */
+	public BeyonderOptions setTuneIndicesForLoad(boolean tuneIndicesForLoad) {
+		this.tuneIndicesForLoad = tuneIndicesForLoad;
+		return this;
+	}
+
+	/**
+	 * @return true if we wait for the replicas to be allocated once the data has been loaded
+	 */
+	public boolean isWaitForReplicasAfterLoad() {
+		return waitForReplicasAfterLoad;
+	}
+
+	/**
+	 * Set whether to wait for the tuned indices to be green once their settings have been restored.
+	 * This only applies when {@link #setTuneIndicesForLoad(boolean)} is set.
+	 * @param waitForReplicasAfterLoad true to wait for the replicas
+	 * @return this options instance
+	 */
+	public BeyonderOptions setWaitForReplicasAfterLoad(boolean waitForReplicasAfterLoad) {
+		this.waitForReplicasAfterLoad = waitForReplicasAfterLoad;
+		return this;
+	}
+
+	/**
+	 * @return true if an index whose settings changed is migrated to a new version of the index
+	 */
+	public boolean isIndexMigration() {
+		return indexMigration;
+	}
+
+	/**
+	 * Set whether the indices are versioned behind an alias, like {@code twitter} pointing to {@code twitter-v1}.
+	 * When the {@code _settings.json} file of an index changes, a new version of the index is created with the new
+	 * settings, the documents are copied with a reindex while the old version still receives the writes, then the
+	 * writes are blocked while the documents written during the copy are copied again, the alias is moved to the new
+	 * version and the old version is removed.
+	 * @param indexMigration true to migrate the indices
+	 * @return this options instance
+	 */
+	public BeyonderOptions setIndexMigration(boolean indexMigration) {
+		this.indexMigration = indexMigration;
+		return this;
+	}
+
+	/**
+	 * @return the number of slices of the reindex made by a migration, 0 meaning that elasticsearch chooses
+	 */
+	public int getIndexMigrationSlices() {
+		return indexMigrationSlices;
+	}
+
+	/**
+	 * Set the number of slices of the reindex made by a migration, which are copied in parallel.
+	 * @param indexMigrationSlices number of slices or 0 to let elasticsearch choose one slice per shard
+	 * @return this options instance
+	 */
+	public BeyonderOptions setIndexMigrationSlices(int indexMigrationSlices) {
+		if (indexMigrationSlices < 0) {
+			throw new IllegalArgumentException("indexMigrationSlices must not be negative");
+		}
+		this.indexMigrationSlices = indexMigrationSlices;
+		return this;
+	}
+
+	/**
+	 * @return the maximum number of documents per second copied by a migration, -1 meaning no limit
+	 */
+	public float getIndexMigrationRequestsPerSecond() {
+		return indexMigrationRequestsPerSecond;
+	}
+
+	/**
+	 * Set the maximum number of documents per second copied by a migration, so it does not take all the
+	 * resources of the cluster.
+	 * @param indexMigrationRequestsPerSecond documents per second or -1 for no limit
+	 * @return this options instance
+	 */
+	public BeyonderOptions setIndexMigrationRequestsPerSecond(float indexMigrationRequestsPerSecond) {
+		if (indexMigrationRequestsPerSecond <= 0 && indexMigrationRequestsPerSecond != -1) {
+			throw new IllegalArgumentException("indexMigrationRequestsPerSecond must be positive or -1");
+		}
+		this.indexMigrationRequestsPerSecond = indexMigrationRequestsPerSecond;
+		return this;
+	}
+
+	/**
+	 * @return the interval in milliseconds at which the progress of a migration is checked
+	 */
+	public long getIndexMigrationPollInterval() {
+		return indexMigrationPollInterval;
+	}
+
+	/**
+	 * Set the interval at which the progress of a migration is checked.
+	 * @param indexMigrationPollInterval interval in milliseconds
+	 * @return this options instance
+	 */
+	public BeyonderOptions setIndexMigrationPollInterval(long indexMigrationPollInterval) {
+		if (indexMigrationPollInterval <= 0) {
+			throw new IllegalArgumentException("indexMigrationPollInterval must be positive");
+		}
+		this.indexMigrationPollInterval = indexMigrationPollInterval;
+		return this;
+	}
+
+	/**
+	 * @return the maximum time in milliseconds a copy made by a migration can take
+	 */
+	public long getIndexMigrationTimeout() {
+		return indexMigrationTimeout;
+	}
+
+	/**
+	 * Set the maximum time a copy made by a migration can take. When it takes longer, the copy is cancelled
+	 * and the migration fails, leaving the index on its old version.
+	 * @param indexMigrationTimeout timeout in milliseconds
+	 * @return this options instance
+	 */
+	public BeyonderOptions setIndexMigrationTimeout(long indexMigrationTimeout) {
+		if (indexMigrationTimeout <= 0) {
+			throw new IllegalArgumentException("indexMigrationTimeout must be positive");
+		}
+		this.indexMigrationTimeout = indexMigrationTimeout;
+		return this;
+	}
+
+	/**
+	 * @return true if the bulk size and the number of concurrent bulk requests are adapted to the cluster
+	 */
+	public boolean isAdaptiveBulk() {
+		return adaptiveBulkSizing.isEnabled();
+	}
+
+	/**
+	 * Set whether the bulk size and the number of concurrent bulk requests are adapted while loading data.
+	 * They start from {@link #getBulkMaxBytes()} and {@link #getBulkConcurrentRequests()}, grow while the
+	 * bulk requests are faster than {@link #getAdaptiveBulkTargetLatency()} and are halved when the cluster
+	 * rejects requests or gets slower.
+	 * @param adaptiveBulk true to adapt the bulk requests
+	 * @return this options instance
+	 */
+	public BeyonderOptions setAdaptiveBulk(boolean adaptiveBulk) {
+		this.adaptiveBulkSizing.setEnabled(adaptiveBulk);
+		return this;
+	}
+
+	/**
+	 * @return the latency in milliseconds above which adaptive bulk requests back off
+	 */
+	public long getAdaptiveBulkTargetLatency() {
+		return adaptiveBulkSizing.getTargetLatency();
+	}
+
+	/**
+	 * Set the latency in milliseconds above which adaptive bulk requests back off.
+	 * This only applies when {@link #setAdaptiveBulk(boolean)} is set.
+	 * @param adaptiveBulkTargetLatency latency in milliseconds
+	 * @return this options instance
+	 */
+	public BeyonderOptions setAdaptiveBulkTargetLatency(long adaptiveBulkTargetLatency) {
+		if (adaptiveBulkTargetLatency <= 0) {
+			throw new IllegalArgumentException("adaptiveBulkTargetLatency must be positive");
+		}
+		this.adaptiveBulkSizing.setTargetLatency(adaptiveBulkTargetLatency);
+		return this;
+	}
+
+	/**
+	 * @return the maximum size in bytes adaptive bulk requests can grow to
+	 */
+	public int getAdaptiveBulkMaxBytes() {
+		return adaptiveBulkSizing.getMaxBytes();
+	}
+
+	/**
+	 * Set the maximum size in bytes adaptive bulk requests can grow to. It is also bounded by
+	 * {@link #getBulkMaxBytesInFlight()}.
+	 * This only applies when {@link #setAdaptiveBulk(boolean)} is set.
+	 * @param adaptiveBulkMaxBytes maximum size in bytes
+	 * @return this options instance
+	 */
+	public BeyonderOptions setAdaptiveBulkMaxBytes(int adaptiveBulkMaxBytes) {
+		if (adaptiveBulkMaxBytes <= 0) {
+			throw new IllegalArgumentException("adaptiveBulkMaxBytes must be positive");
+		}
+		this.adaptiveBulkSizing.setMaxBytes(adaptiveBulkMaxBytes);
+		return this;
+	}
+
+	/**
+	 * @return the maximum number of concurrent adaptive bulk requests
+	 */
+	public int getAdaptiveBulkMaxConcurrentRequests() {
+		return adaptiveBulkSizing.getMaxConcurrentRequests();
+	}
+
+	/**
+	 * Set the maximum number of concurrent bulk requests adaptive bulk can grow to.
+	 * This only applies when {@link #setAdaptiveBulk(boolean)} is set.
+	 * @param adaptiveBulkMaxConcurrentRequests maximum number of concurrent requests
+	 * @return this options instance
+	 */
+	public BeyonderOptions setAdaptiveBulkMaxConcurrentRequests(int adaptiveBulkMaxConcurrentRequests) {
+		if (adaptiveBulkMaxConcurrentRequests <= 0) {
+			throw new IllegalArgumentException("adaptiveBulkMaxConcurrentRequests must be positive");
+		}
+		this.adaptiveBulkSizing.setMaxConcurrentRequests(adaptiveBulkMaxConcurrentRequests);
+		return this;
+	}
+
+	/**
+	 * @return the adaptive bulk sizing which holds the current operating point
+	 */
+	public AdaptiveBulkSizing getAdaptiveBulkSizing() {
+		return adaptiveBulkSizing;
+	}
+
+	/**
+	 * @return true if the data load progress is saved so it can be resumed
+	 */
+	public boolean isResumableLoad() {
+		return resumableLoad;
+	}
+
+	/**
+	 * Set whether the progress of the data load is saved as checkpoints in {@link #getCheckpointIndex()}.
+	 * When a load has been interrupted, the next start skips the files which have been loaded and resumes
+	 * the others where they stopped, instead of loading everything again.
+	 * @param resumableLoad true to save checkpoints
+	 * @return this options instance
+	 */
+	public BeyonderOptions setResumableLoad(boolean resumableLoad) {
+		this.resumableLoad = resumableLoad;
+		return this;
+	}
+
+	/**
+	 * @return the index where the data load checkpoints are stored
+	 */
+	public String getCheckpointIndex() {
+		return checkpointIndex;
+	}
+
+	/**
+	 * Set the index where the data load checkpoints are stored.
+	 * This only applies when {@link #setResumableLoad(boolean)} is set.
+	 * @param checkpointIndex index name
+	 * @return this options instance
+	 */
+	public BeyonderOptions setCheckpointIndex(String checkpointIndex) {
+		if (checkpointIndex == null || checkpointIndex.isEmpty()) {
+			throw new IllegalArgumentException("checkpointIndex must not be empty");
+		}
+		this.checkpointIndex = checkpointIndex;
+		return this;
+	}
+
+	/**
+	 * @return true if request bodies are compressed with gzip
+	 */
+	public boolean isRequestCompression() {
+		return requestCompression.isEnabled();
+	}
+
+	/**
+	 * Set whether request bodies (bulk requests, settings, mappings, templates...) bigger than
+	 * {@link #getRequestCompressionThreshold()} are compressed with gzip. This saves bandwidth
+	 * at the cost of some CPU.
+	 * @param requestCompression true to compress request bodies
+	 * @return this options instance
+	 */
+	public BeyonderOptions setRequestCompression(boolean requestCompression) {
+		this.requestCompression.setEnabled(requestCompression);
+		return this;
+	}
+
+	/**
+	 * @return the size in bytes under which request bodies are not compressed
+	 */
+	public int getRequestCompressionThreshold() {
+		return requestCompression.getThreshold();
+	}
+
+	/**
+	 * Set the size in bytes under which request bodies are sent as is, as compressing
+	 * them would not save much.
+	 * @param requestCompressionThreshold size in bytes
+	 * @return this options instance
+	 */
+	public BeyonderOptions setRequestCompressionThreshold(int requestCompressionThreshold) {
+		if (requestCompressionThreshold < 0) {
+			throw new IllegalArgumentException("requestCompressionThreshold must not be negative");
+		}
+		this.requestCompression.setThreshold(requestCompressionThreshold);
+		return this;
+	}
+
+	/**
+	 * @return the request compression which builds the request bodies and records how many bytes have been saved
+	 */
+	public RequestCompression getRequestCompression() {
+		return requestCompression;
+	}
+
+	/**
+	 * @return where the values of the variables used within the resources are read from
+	 */
+	public VariableSources getVariableSources() {
+		return variableSources;
+	}
+
+	/**
+	 * @return the resource prefetcher which reads the definition files in advance
+	 */
+	public ResourcePrefetcher getResourcePrefetcher() {
+		return resourcePrefetcher;
+	}
+
+	/**
+	 * @return the resource hashing which records how many resources have been applied and skipped
+	 */
+	public ResourceHashing getResourceHashing() {
+		return resourceHashing;
+	}
+
+	/**
+	 * @return the metrics of the data loaded with these options. Use {@link LoadMetrics#addListener(LoadListener)}
+	 * to be notified of each request.
+	 */
+	public LoadMetrics getLoadMetrics() {
+		return loadMetrics;
+	}
+}
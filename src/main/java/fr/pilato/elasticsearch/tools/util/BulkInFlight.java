@@ -0,0 +1,129 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The bulk requests and bytes in flight of a run. All the indices loaded at the same time take their requests
+ * from it, so {@link BeyonderOptions#getBulkConcurrentRequests()} and {@link BeyonderOptions#getBulkMaxBytesInFlight()}
+ * bound the whole run and not each index.
+ * <br>
+ * Requests are served in the order they asked, so a big chunk waiting for bytes is not overtaken by smaller ones.
+ */
+public class BulkInFlight {
+
+	private boolean started = false;
+	private int maxRequests;
+	private int maxBytes;
+	private AdaptiveBulkSizing adaptive;
+
+	private int requests = 0;
+	private int bytes = 0;
+	private final Deque<Object> waiting = new ArrayDeque<>();
+	private int peakRequests = 0;
+	private int peakBytes = 0;
+
+	/**
+	 * Set the limits if they have not been set already for this run
+	 * @param options the options which define the limits
+	 */
+	public synchronized void start(BeyonderOptions options) {
+		if (started) {
+			return;
+		}
+		started = true;
+		maxRequests = options.getBulkConcurrentRequests();
+		maxBytes = options.getBulkMaxBytesInFlight();
+		adaptive = options.isAdaptiveBulk() ? options.getAdaptiveBulkSizing() : null;
+		peakRequests = 0;
+		peakBytes = 0;
+	}
+
+	/**
+	 * Start a new run: the limits are read again from the options when the next bulk request is sent.
+	 * Requests still in flight keep their share until they are released.
+	 */
+	public synchronized void reset() {
+		started = false;
+	}
+
+	/**
+	 * Wait until one more request of a given size can be in flight
+	 * @param length the size of the request body in bytes
+	 * @return the number of bytes taken, to give back to {@link #release(int)}. A request bigger than
+	 * {@link BeyonderOptions#getBulkMaxBytesInFlight()} takes them all and is the only one in flight.
+	 * @throws InterruptedException if we have been interrupted
+	 */
+	public synchronized int acquire(int length) throws InterruptedException {
+		int permits = Math.min(length, maxBytes);
+		Object turn = new Object();
+		waiting.add(turn);
+		try {
+			// The adaptive limit can go down while requests are in flight
+			while (waiting.peek() != turn || requests >= (adaptive == null ? maxRequests : adaptive.getConcurrentRequests())
+					|| bytes + permits > maxBytes) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			// Give our turn to the next one
+			waiting.remove(turn);
+			notifyAll();
+			throw e;
+		}
+		waiting.remove();
+		requests++;
+		bytes += permits;
+		peakRequests = Math.max(peakRequests, requests);
+		peakBytes = Math.max(peakBytes, bytes);
+		notifyAll();
+		return permits;
+	}
+
+	/**
+	 * Give back what a request took once it is done
+	 * @param permits the value returned by {@link #acquire(int)}
+	 */
+	public synchronized void release(int permits) {
+		requests--;
+		bytes -= permits;
+		notifyAll();
+	}
+
+	/**
+	 * @return the highest number of requests which have been in flight at the same time during the run
+	 */
+	public synchronized int getPeakRequests() {
+		return peakRequests;
+	}
+
+	/**
+	 * @return the highest number of bytes which have been in flight at the same time during the run
+	 */
+	public synchronized int getPeakBytes() {
+		return peakBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "[" + peakRequests + "] requests and [" + peakBytes + "] bytes in flight at most";
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streaming parser for bulk responses. It only collects the items which failed.
+ * <br>
+ * The bulk request should be sent with {@link #FILTER_PATH} so elasticsearch only sends back
+ * what we need. Every item keeps its status so the position of an item within the response
+ * still matches its position within the request.
+ */
+public class BulkResponseParser {
+
+	/**
+	 * The filter_path to use when sending a bulk request
+	 */
+	public static final String FILTER_PATH = "errors,items.*.status,items.*.error.type,items.*.error.reason";
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private BulkResponseParser() {
+		// empty
+	}
+
+	/**
+	 * Parse a bulk response
+	 * @param response the response body
+	 * @return the failed items. Empty if everything went well.
+	 * @throws IOException if the response can not be parsed
+	 */
+	public static List<ItemFailure> parseFailures(InputStream response) throws IOException {
+		try (JsonParser parser = jsonFactory.createParser(response)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Bulk response is not a json object");
+			}
+			List<ItemFailure> failures = new ArrayList<>();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				JsonToken token = parser.nextToken();
+				if ("errors".equals(field) && token == JsonToken.VALUE_FALSE) {
+					// No need to read the items
+					return Collections.emptyList();
+				} else if ("items".equals(field) && token == JsonToken.START_ARRAY) {
+					parseItems(parser, failures);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return failures;
+		}
+	}
+
+	private static void parseItems(JsonParser parser, List<ItemFailure> failures) throws IOException {
+		int position = 0;
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			// { "index": { "status": 429, "error": { "type": "...", "reason": "..." } } }
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				parser.nextToken();
+				ItemFailure failure = parseItem(parser, position);
+				if (failure != null) {
+					failures.add(failure);
+				}
+			}
+			position++;
+		}
+	}
+
+	private static ItemFailure parseItem(JsonParser parser, int position) throws IOException {
+		int status = 0;
+		String type = null;
+		String reason = null;
+		boolean error = false;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			JsonToken token = parser.nextToken();
+			if ("status".equals(field)) {
+				status = parser.getIntValue();
+			} else if ("error".equals(field)) {
+				error = true;
+				if (token == JsonToken.START_OBJECT) {
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String errorField = parser.currentName();
+						parser.nextToken();
+						if ("type".equals(errorField)) {
+							type = parser.getValueAsString();
+						} else if ("reason".equals(errorField)) {
+							reason = parser.getValueAsString();
+						} else {
+							parser.skipChildren();
+						}
+					}
+				} else {
+					reason = parser.getValueAsString();
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return error ? new ItemFailure(position, status, type, reason) : null;
+	}
+
+	/**
+	 * A bulk item which failed
+	 */
+	public static class ItemFailure {
+		private final int position;
+		private final int status;
+		private final String type;
+		private final String reason;
+
+		ItemFailure(int position, int status, String type, String reason) {
+			this.position = position;
+			this.status = status;
+			this.type = type;
+			this.reason = reason;
+		}
+
+		/**
+		 * @return the position of the item within the bulk request, starting from 0
+		 */
+		public int getPosition() {
+			return position;
+		}
+
+		/**
+		 * @return the HTTP status of the item, like 429 when it has been rejected
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return the error type, like es_rejected_execution_exception
+		 */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * @return the error reason
+		 */
+		public String getReason() {
+			return reason;
+		}
+
+		/**
+		 * @return true if the item has been rejected because the cluster was busy and can be sent again
+		 */
+		public boolean isRetryable() {
+			return status == 429 || status == 503;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + position + "] " + status + " " + type + ": " + reason;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An entity backed by a {@link ByteBuffer}, like a slice of a memory mapped file. The async client
+ * writes the buffer straight to the connection, without copying it to an intermediate array.
+ */
+class ByteBufferEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+	private final ByteBuffer content;
+	private ByteBuffer producing;
+
+	/**
+	 * Create an entity
+	 * @param content the content, from its position to its limit. It is not modified.
+	 * @param contentType the content type
+	 */
+	ByteBufferEntity(ByteBuffer content, ContentType contentType) {
+		this.content = content.slice();
+		setContentType(contentType.toString());
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return content.remaining();
+	}
+
+	@Override
+	public InputStream getContent() {
+		ByteBuffer buffer = content.duplicate();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] bytes, int offset, int length) {
+				if (!buffer.hasRemaining()) {
+					return -1;
+				}
+				int read = Math.min(length, buffer.remaining());
+				buffer.get(bytes, offset, read);
+				return read;
+			}
+
+			@Override
+			public int available() {
+				return buffer.remaining();
+			}
+		};
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		WritableByteChannel channel = Channels.newChannel(out);
+		ByteBuffer buffer = content.duplicate();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		out.flush();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+		if (producing == null) {
+			producing = content.duplicate();
+		}
+		encoder.write(producing);
+		if (!producing.hasRemaining()) {
+			encoder.complete();
+		}
+	}
+
+	@Override
+	public void close() {
+		// The next request using this entity starts again from the beginning
+		producing = null;
+	}
+}
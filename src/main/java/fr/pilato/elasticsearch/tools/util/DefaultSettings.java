@@ -42,6 +42,16 @@ public class DefaultSettings {
 	 */
 	public static final String NdJsonFileExtension = ".ndjson";
 
+	/**
+	 * Gzip compressed file extension: ".gz"
+	 */
+	public static final String GzipFileExtension = ".gz";
+
+	/**
+	 * Zstandard compressed file extension: ".zst"
+	 */
+	public static final String ZstdFileExtension = ".zst";
+
 	/**
 	 * Default index settings file name: "_settings.json"
 	 */
@@ -87,8 +97,203 @@ public class DefaultSettings {
 	 */
 	public static final String DataDir = "_data";
 
+	/**
+	 * Default resource manifest file, generated when building: "_beyonder.manifest"
+	 */
+	public static final String ManifestFile = "_beyonder.manifest";
+
 	/**
 	 * Default setting of whether to force creation of indices and templates on start.
 	 */
 	public static final boolean ForceCreation = false;
+
+	/**
+	 * Default maximum size of a single bulk request when loading ndjson files: 5mb
+	 */
+	public static final int BulkMaxBytes = 5 * 1024 * 1024;
+
+	/**
+	 * Default maximum number of actions within a single bulk request when loading ndjson files: 1000
+	 */
+	public static final int BulkMaxActions = 1000;
+
+	/**
+	 * Default number of bulk requests which can be in flight at the same time: 1
+	 */
+	public static final int BulkConcurrentRequests = 1;
+
+	/**
+	 * Default maximum number of bytes which can be in flight at the same time: 50mb
+	 */
+	public static final int BulkMaxBytesInFlight = 50 * 1024 * 1024;
+
+	/**
+	 * Default number of times a rejected bulk item is sent again: 5
+	 */
+	public static final int BulkMaxRetries = 5;
+
+	/**
+	 * Default delay in milliseconds before sending again a rejected bulk item for the first time: 100
+	 */
+	public static final long BulkRetryInitialDelay = 100;
+
+	/**
+	 * Default number of threads reading a single ndjson file: 1
+	 */
+	public static final int BulkFileReaders = 1;
+
+	/**
+	 * Default setting of whether to send json data files using the Bulk API instead of the Index API.
+	 */
+	public static final boolean JsonDataAsBulk = false;
+
+	/**
+	 * Default setting of whether to use the json data file name (without the .json extension) as the document id.
+	 */
+	public static final boolean JsonDataFileNameAsId = false;
+
+	/**
+	 * Default setting of whether to disable the refresh and the replicas of the indices while loading data.
+	 */
+	public static final boolean TuneIndicesForLoad = false;
+
+	/**
+	 * Default setting of whether to wait for the replicas to be allocated once the data has been loaded.
+	 */
+	public static final boolean WaitForReplicasAfterLoad = false;
+
+	/**
+	 * How long to wait for the replicas to be allocated once the data has been loaded: 60s
+	 */
+	public static final String WaitForReplicasTimeout = "60s";
+
+	/**
+	 * Default setting of whether to compress request bodies with gzip.
+	 */
+	public static final boolean RequestCompression = false;
+
+	/**
+	 * Default size in bytes under which request bodies are not compressed: 1kb
+	 */
+	public static final int RequestCompressionThreshold = 1024;
+
+	/**
+	 * Default setting of whether to save checkpoints so an interrupted data load can be resumed.
+	 */
+	public static final boolean ResumableLoad = false;
+
+	/**
+	 * Default index where the data load checkpoints are stored: beyonder-checkpoints
+	 */
+	public static final String CheckpointIndex = "beyonder-checkpoints";
+
+	/**
+	 * Minimum time between two saves of the checkpoint of a file, in milliseconds: 1s
+	 */
+	public static final long CheckpointSaveInterval = 1000;
+
+	/**
+	 * Default setting of whether to adapt the bulk size and the number of concurrent bulk requests to the cluster.
+	 */
+	public static final boolean AdaptiveBulk = false;
+
+	/**
+	 * Default latency above which adaptive bulk requests back off: 1s
+	 */
+	public static final long AdaptiveBulkTargetLatency = 1000;
+
+	/**
+	 * Default maximum size adaptive bulk requests can grow to: 20mb
+	 */
+	public static final int AdaptiveBulkMaxBytes = 20 * 1024 * 1024;
+
+	/**
+	 * Default maximum number of concurrent adaptive bulk requests: 8
+	 */
+	public static final int AdaptiveBulkMaxConcurrentRequests = 8;
+
+	/**
+	 * Default number of indices which are loaded with data at the same time: 1
+	 */
+	public static final int IndexLoadParallelism = 1;
+
+	/**
+	 * Default number of schema resources (lifecycles, templates, pipelines, indices) which are created at the same time: 1
+	 */
+	public static final int SchemaParallelism = 1;
+
+	/**
+	 * Default setting of whether to read the existing indices once when starting instead of checking each index.
+	 */
+	public static final boolean ClusterSnapshot = false;
+
+	/**
+	 * Default setting of whether to skip the templates, pipelines and index lifecycles which did not change.
+	 */
+	public static final boolean SkipUnchangedResources = false;
+
+	/**
+	 * Default setting of whether to take a lease so only one instance applies the configuration at a time.
+	 */
+	public static final boolean Lease = false;
+
+	/**
+	 * Default index where the leases are stored.
+	 */
+	public static final String LeaseIndex = "beyonder-leases";
+
+	/**
+	 * Default time in milliseconds after which a lease which has not been renewed is taken over.
+	 */
+	public static final long LeaseTtl = 60000;
+
+	/**
+	 * Default maximum time in milliseconds to wait for a lease held by another instance.
+	 */
+	public static final long LeaseWaitTimeout = 600000;
+
+	/**
+	 * Default time in milliseconds without any file change before the changed resources are applied again.
+	 */
+	public static final long WatchDebounce = 500;
+
+	/**
+	 * Default setting of whether to read the definition files in advance, while the previous resources are applied.
+	 */
+	public static final boolean Prefetch = false;
+
+	/**
+	 * Default maximum size in bytes of the definition files read in advance and not used yet: 16mb.
+	 */
+	public static final long PrefetchMaxBytes = 16 * 1024 * 1024;
+
+	/**
+	 * Default setting of whether the java system properties can be used as variables within the resources.
+	 */
+	public static final boolean SystemPropertiesAsVariables = false;
+
+	/**
+	 * Default setting of whether an index whose settings changed is migrated to a new version of the index.
+	 */
+	public static final boolean IndexMigration = false;
+
+	/**
+	 * Default number of slices of the reindex made by a migration: 0 lets elasticsearch choose.
+	 */
+	public static final int IndexMigrationSlices = 0;
+
+	/**
+	 * Default maximum number of documents per second copied by a migration: -1 does not throttle it.
+	 */
+	public static final float IndexMigrationRequestsPerSecond = -1;
+
+	/**
+	 * Default interval in milliseconds at which the progress of a migration is checked: 1s.
+	 */
+	public static final long IndexMigrationPollInterval = 1000;
+
+	/**
+	 * Default maximum time in milliseconds a copy made by a migration can take before being cancelled: 1 day.
+	 */
+	public static final long IndexMigrationTimeout = 86400000;
 }
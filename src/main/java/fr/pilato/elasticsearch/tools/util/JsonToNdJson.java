@@ -0,0 +1,88 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Turn json documents, which could be pretty printed, into bulk items (an index action line
+ * followed by the document on a single line).
+ */
+public class JsonToNdJson {
+
+	private static final JsonFactory jsonFactory = new JsonFactory()
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+			.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+	private JsonToNdJson() {
+		// empty
+	}
+
+	/**
+	 * Write a json document as a bulk index item
+	 * @param json the json document
+	 * @param id the id of the document or null to let elasticsearch generate it
+	 * @param out where to write the bulk item
+	 * @throws IOException if the document is not valid json or can not be written
+	 */
+	public static void writeIndexItem(InputStream json, String id, OutputStream out) throws IOException {
+		try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+			generator.writeStartObject();
+			generator.writeObjectFieldStart("index");
+			if (id != null) {
+				generator.writeStringField("_id", id);
+			}
+			generator.writeEndObject();
+			generator.writeEndObject();
+		}
+		out.write('\n');
+		try (JsonParser parser = jsonFactory.createParser(json);
+			 JsonGenerator generator = jsonFactory.createGenerator(out)) {
+			JsonToken token = parser.nextToken();
+			if (token == null) {
+				throw new IOException("Empty json document");
+			}
+			for (int depth = 0; token != null; token = parser.nextToken()) {
+				if (token.isNumeric()) {
+					// Keep the number as it was written so the _source is not modified
+					generator.writeNumber(parser.getText());
+				} else {
+					generator.copyCurrentEvent(parser);
+				}
+				if (token.isStructStart()) {
+					depth++;
+				} else if (token.isStructEnd()) {
+					depth--;
+				}
+				if (depth == 0) {
+					break;
+				}
+			}
+		}
+		out.write('\n');
+	}
+}
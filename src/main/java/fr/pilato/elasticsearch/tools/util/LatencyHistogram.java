@@ -0,0 +1,108 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in milliseconds. Values under 32ms are exact, bigger values are
+ * recorded in buckets which are at most 1/16 (about 6%) wide, which is precise enough for percentiles.
+ */
+public class LatencyHistogram {
+
+	private static final int EXACT = 32;
+	private static final int SUB_BUCKETS = 16;
+	// 5 is the log2 of EXACT
+	private static final int BUCKETS = EXACT + (64 - 5) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a latency
+	 * @param millis the latency in milliseconds
+	 */
+	public void record(long millis) {
+		long value = Math.max(0, millis);
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		max.accumulateAndGet(value, Math::max);
+	}
+
+	/**
+	 * @return the number of recorded latencies
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the highest recorded latency in milliseconds, or 0 if none has been recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100, like 99 for the 99th percentile
+	 * @return the latency in milliseconds under which this percentage of the recorded latencies are,
+	 * or 0 if none has been recorded. It is never higher than {@link #getMax()}.
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	private static int bucket(long value) {
+		if (value < EXACT) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+		return EXACT + (exponent - 5) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long highestValue(int bucket) {
+		if (bucket < EXACT) {
+			return bucket;
+		}
+		int exponent = (bucket - EXACT) / SUB_BUCKETS + 5;
+		int subBucket = (bucket - EXACT) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - 4)) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "p50 [" + getPercentile(50) + "] ms, p99 [" + getPercentile(99) + "] ms, max [" + getMax() + "] ms";
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * How far the load of a data file went. Checkpoints are stored in elasticsearch so a load which
+ * has been interrupted can be resumed by the next start.
+ */
+public class LoadCheckpoint {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private final String group;
+	private final String file;
+	private final String hash;
+	private final long offset;
+	private final boolean completed;
+
+	/**
+	 * Create a checkpoint
+	 * @param group the directory containing the file, like {@code elasticsearch/twitter/_data}
+	 * @param file the file name
+	 * @param hash the identity of the file content or null if the load of the file did not start yet
+	 * @param offset the offset in the (decompressed) file before which everything has been indexed
+	 * @param completed true if the whole file has been indexed
+	 */
+	public LoadCheckpoint(String group, String file, String hash, long offset, boolean completed) {
+		this.group = group;
+		this.file = file;
+		this.hash = hash;
+		this.offset = offset;
+		this.completed = completed;
+	}
+
+	/**
+	 * @return the directory containing the file, like {@code elasticsearch/twitter/_data}
+	 */
+	public String getGroup() {
+		return group;
+	}
+
+	/**
+	 * @return the file name
+	 */
+	public String getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the identity of the file content or null if the load of the file did not start yet
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * @return the offset in the (decompressed) file before which everything has been indexed
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return true if the whole file has been indexed
+	 */
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	/**
+	 * @return the id of the checkpoint document, already encoded to be used in an URL
+	 */
+	public String getId() {
+		return id(group, file);
+	}
+
+	/**
+	 * @param group the directory containing the file
+	 * @param file the file name
+	 * @return the id of the checkpoint document, already encoded to be used in an URL
+	 */
+	public static String id(String group, String file) {
+		return URLEncoder.encode(group + "/" + file, StandardCharsets.UTF_8).replace("+", "%20");
+	}
+
+	/**
+	 * @return the checkpoint as a json document
+	 * @throws IOException if the document can not be generated
+	 */
+	public String toJson() throws IOException {
+		StringWriter json = new StringWriter();
+		try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+			generator.writeStartObject();
+			generator.writeStringField("group", group);
+			generator.writeStringField("file", file);
+			generator.writeStringField("hash", hash);
+			generator.writeNumberField("offset", offset);
+			generator.writeBooleanField("completed", completed);
+			generator.writeNumberField("updated", System.currentTimeMillis());
+			generator.writeEndObject();
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Read a checkpoint from a GET document response
+	 * @param response the response body
+	 * @return the checkpoint or null if the document has not been found
+	 * @throws IOException if the response can not be parsed
+	 */
+	public static LoadCheckpoint fromGetResponse(InputStream response) throws IOException {
+		String group = null;
+		String file = null;
+		String hash = null;
+		long offset = 0;
+		boolean completed = false;
+		boolean found = false;
+		try (JsonParser parser = jsonFactory.createParser(response)) {
+			JsonToken token;
+			while ((token = parser.nextToken()) != null) {
+				if (!token.isScalarValue()) {
+					continue;
+				}
+				String field = parser.currentName();
+				if ("found".equals(field)) {
+					found = parser.getBooleanValue();
+				} else if ("group".equals(field)) {
+					group = parser.getValueAsString();
+				} else if ("file".equals(field)) {
+					file = parser.getValueAsString();
+				} else if ("hash".equals(field)) {
+					hash = parser.getValueAsString();
+				} else if ("offset".equals(field)) {
+					offset = parser.getLongValue();
+				} else if ("completed".equals(field)) {
+					completed = parser.getBooleanValue();
+				}
+			}
+		}
+		return found ? new LoadCheckpoint(group, file, hash, offset, completed) : null;
+	}
+
+	@Override
+	public String toString() {
+		return group + "/" + file + " at [" + offset + "]" + (completed ? " completed" : "");
+	}
+}
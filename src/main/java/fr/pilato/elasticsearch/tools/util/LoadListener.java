@@ -0,0 +1,132 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+/**
+ * Get notified of the data load progress, for example to send it to a metrics system.
+ * Register it with {@link LoadMetrics#addListener(LoadListener)}.
+ * <br>
+ * Methods can be called concurrently from the threads which receive the elasticsearch responses,
+ * so they must be thread safe and fast.
+ */
+public interface LoadListener {
+
+	/**
+	 * Called when the response of a bulk or index request has been received
+	 * @param request what has been sent and what happened
+	 */
+	void onRequest(Request request);
+
+	/**
+	 * Called at the end of {@link fr.pilato.elasticsearch.tools.ElasticsearchBeyonder#start}
+	 * @param metrics the metrics of every file and index loaded so far
+	 */
+	default void onLoadDone(LoadMetrics metrics) {
+		// nothing by default
+	}
+
+	/**
+	 * A request sent to elasticsearch to load data
+	 */
+	class Request {
+		private final String index;
+		private final String file;
+		private final int attempt;
+		private final int items;
+		private final int bytes;
+		private final long latency;
+		private final int rejectedItems;
+		private final int failedItems;
+
+		Request(String index, String file, int attempt, int items, int bytes, long latency, int rejectedItems, int failedItems) {
+			this.index = index;
+			this.file = file;
+			this.attempt = attempt;
+			this.items = items;
+			this.bytes = bytes;
+			this.latency = latency;
+			this.rejectedItems = rejectedItems;
+			this.failedItems = failedItems;
+		}
+
+		/**
+		 * @return the index name or {@link LoadMetrics#GLOBAL} for the root bulk files
+		 */
+		public String getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return the data file name
+		 */
+		public String getFile() {
+			return file;
+		}
+
+		/**
+		 * @return 0 for the first attempt, then the number of the retry
+		 */
+		public int getAttempt() {
+			return attempt;
+		}
+
+		/**
+		 * @return the number of items (documents or actions) in the request
+		 */
+		public int getItems() {
+			return items;
+		}
+
+		/**
+		 * @return the size of the request body in bytes, before compression
+		 */
+		public int getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return the time between sending the request and receiving its response, in milliseconds
+		 */
+		public long getLatency() {
+			return latency;
+		}
+
+		/**
+		 * @return the number of items the cluster rejected because it was busy
+		 */
+		public int getRejectedItems() {
+			return rejectedItems;
+		}
+
+		/**
+		 * @return the number of items which could not be indexed for another reason
+		 */
+		public int getFailedItems() {
+			return failedItems;
+		}
+
+		/**
+		 * @return the number of items which have been indexed
+		 */
+		public int getIndexedItems() {
+			return items - rejectedItems - failedItems;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collect the throughput and latency of the data load for each file, each index and the whole run,
+ * and forward each request to the registered {@link LoadListener}s.
+ * <br>
+ * The run covers all the loads done with the same {@link BeyonderOptions} instance.
+ */
+public class LoadMetrics {
+
+	private static final Logger logger = LoggerFactory.getLogger(LoadMetrics.class);
+
+	/**
+	 * The index name used for the root bulk files, which can send data to any index
+	 */
+	public static final String GLOBAL = "_bulk";
+
+	private final LoadStats total = new LoadStats("total");
+	private final Map<String, LoadStats> indices = new ConcurrentSkipListMap<>();
+	private final Map<String, LoadStats> files = new ConcurrentSkipListMap<>();
+	private final List<LoadListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Register a listener
+	 * @param listener called for each request
+	 */
+	public void addListener(LoadListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Record that a request is about to be sent
+	 * @param index the index name or null for the root bulk files
+	 * @param file the data file name
+	 */
+	public void started(String index, String file) {
+		long now = System.nanoTime();
+		total.started(now);
+		index(index).started(now);
+		file(index, file).started(now);
+	}
+
+	/**
+	 * Record the response of a request
+	 * @param index the index name or null for the root bulk files
+	 * @param file the data file name
+	 * @param attempt 0 for the first attempt, then the number of the retry
+	 * @param items the number of items in the request
+	 * @param bytes the size of the request body in bytes
+	 * @param latency the time the request took in milliseconds
+	 * @param rejectedItems the number of items the cluster rejected because it was busy
+	 * @param failedItems the number of items which could not be indexed for another reason
+	 */
+	public void record(String index, String file, int attempt, int items, int bytes, long latency,
+					   int rejectedItems, int failedItems) {
+		long now = System.nanoTime();
+		LoadListener.Request request = new LoadListener.Request(index == null ? GLOBAL : index, file, attempt, items, bytes,
+				latency, rejectedItems, failedItems);
+		total.record(request, now);
+		index(index).record(request, now);
+		file(index, file).record(request, now);
+		for (LoadListener listener : listeners) {
+			try {
+				listener.onRequest(request);
+			} catch (RuntimeException e) {
+				logger.warn("Load listener [{}] failed: {}", listener, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return the stats of the whole run
+	 */
+	public LoadStats getTotal() {
+		return total;
+	}
+
+	/**
+	 * @param index the index name or {@link #GLOBAL} for the root bulk files
+	 * @return the stats of an index or null if no data has been loaded into it
+	 */
+	public LoadStats getIndex(String index) {
+		return indices.get(index);
+	}
+
+	/**
+	 * @return the stats of each index, sorted by name
+	 */
+	public Collection<LoadStats> getIndices() {
+		return new ArrayList<>(indices.values());
+	}
+
+	/**
+	 * @param index the index name or {@link #GLOBAL} for the root bulk files
+	 * @param file the data file name
+	 * @return the stats of a file or null if it has not been loaded
+	 */
+	public LoadStats getFile(String index, String file) {
+		return files.get(index + "/" + file);
+	}
+
+	/**
+	 * @return the stats of each file, sorted by index and file name
+	 */
+	public Collection<LoadStats> getFiles() {
+		return new ArrayList<>(files.values());
+	}
+
+	/**
+	 * Log a summary and notify the listeners that the load is done
+	 */
+	public void loadDone() {
+		if (total.getRequests() == 0) {
+			return;
+		}
+		for (LoadStats file : getFiles()) {
+			logger.debug("data loaded from file {}", file);
+		}
+		for (LoadStats index : getIndices()) {
+			logger.info("data loaded into index {}", index);
+		}
+		logger.info("data loaded {}", total);
+		for (LoadListener listener : listeners) {
+			try {
+				listener.onLoadDone(this);
+			} catch (RuntimeException e) {
+				logger.warn("Load listener [{}] failed: {}", listener, e.getMessage());
+			}
+		}
+	}
+
+	private LoadStats index(String index) {
+		return indices.computeIfAbsent(index == null ? GLOBAL : index, LoadStats::new);
+	}
+
+	private LoadStats file(String index, String file) {
+		String name = (index == null ? GLOBAL : index) + "/" + file;
+		return files.computeIfAbsent(name, LoadStats::new);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and latency of the data loaded into a file, an index or for a whole run.
+ * <br>
+ * The elapsed time goes from the first request sent to the last response received.
+ */
+public class LoadStats {
+
+	private final String name;
+	private final LongAdder documents = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder rejectedItems = new LongAdder();
+	private final LongAdder failedItems = new LongAdder();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong firstRequest = new AtomicLong();
+	private final AtomicLong lastResponse = new AtomicLong();
+
+	LoadStats(String name) {
+		this.name = name;
+	}
+
+	void started(long nanos) {
+		firstRequest.compareAndSet(0, nanos);
+	}
+
+	void record(LoadListener.Request request, long nanos) {
+		requests.increment();
+		if (request.getAttempt() > 0) {
+			retries.increment();
+		} else {
+			bytes.add(request.getBytes());
+		}
+		documents.add(request.getIndexedItems());
+		rejectedItems.add(request.getRejectedItems());
+		failedItems.add(request.getFailedItems());
+		latency.record(request.getLatency());
+		lastResponse.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * @return what these stats are about: a file, an index or the whole run
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of documents (or bulk actions) which have been indexed
+	 */
+	public long getDocuments() {
+		return documents.sum();
+	}
+
+	/**
+	 * @return the number of bytes read from the data files and sent, retries excluded
+	 */
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * @return the number of requests, retries included
+	 */
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	/**
+	 * @return the number of requests which have been sent again because some of their items have been rejected
+	 */
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	/**
+	 * @return the number of items the cluster rejected because it was busy (429 or 503)
+	 */
+	public long getRejectedItems() {
+		return rejectedItems.sum();
+	}
+
+	/**
+	 * @return the number of items which could not be indexed for another reason
+	 */
+	public long getFailedItems() {
+		return failedItems.sum();
+	}
+
+	/**
+	 * @return the latencies of the requests
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return the time between the first request and the last response, in milliseconds
+	 */
+	public long getElapsedMillis() {
+		long first = firstRequest.get();
+		long last = lastResponse.get();
+		return first == 0 || last < first ? 0 : (last - first) / 1_000_000;
+	}
+
+	/**
+	 * @return the number of documents indexed per second
+	 */
+	public double getDocumentsPerSecond() {
+		return perSecond(getDocuments());
+	}
+
+	/**
+	 * @return the number of bytes sent per second
+	 */
+	public double getBytesPerSecond() {
+		return perSecond(getBytes());
+	}
+
+	private double perSecond(long value) {
+		long elapsed = getElapsedMillis();
+		return elapsed == 0 ? 0 : value * 1000.0 / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT,
+				"[%s]: [%d] docs, [%d] bytes in [%d] ms (%.1f docs/s, %.1f kb/s), [%d] requests, [%d] retries, " +
+						"[%d] rejected items, [%d] failed items, latency %s",
+				name, getDocuments(), getBytes(), getElapsedMillis(), getDocumentsPerSecond(), getBytesPerSecond() / 1024,
+				getRequests(), getRetries(), getRejectedItems(), getFailedItems(), latency);
+	}
+}
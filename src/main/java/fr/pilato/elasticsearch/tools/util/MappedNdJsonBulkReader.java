@@ -0,0 +1,432 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read a ndjson file from the file system using memory mapping. The file is split into byte ranges
+ * which start on an action line, so each range can be read by its own thread.
+ * <br>
+ * Chunks are slices of the mapped file: their content is never copied to the heap, unless an item
+ * needs to be fixed (blank lines within the item or no line feed at the end of the file).
+ */
+public class MappedNdJsonBulkReader {
+
+	private static final Logger logger = LoggerFactory.getLogger(MappedNdJsonBulkReader.class);
+
+	// A single mapping can not be bigger than 2gb
+	static final long MAX_RANGE_SIZE = 1024 * 1024 * 1024;
+
+	private final ByteBuffer buffer;
+	private final long rangeStart;
+	private int maxBytes;
+	private int maxActions;
+	private int position = 0;
+
+	/**
+	 * Create a reader for a range
+	 * @param buffer the range content. It must start on an action line.
+	 * @param rangeStart the offset of the range within the file, only used for error messages
+	 * @param maxBytes maximum size in bytes of a chunk
+	 * @param maxActions maximum number of actions within a chunk
+	 */
+	MappedNdJsonBulkReader(ByteBuffer buffer, long rangeStart, int maxBytes, int maxActions) {
+		this.buffer = buffer;
+		this.rangeStart = rangeStart;
+		this.maxBytes = maxBytes;
+		this.maxActions = maxActions;
+	}
+
+	/**
+	 * Split a ndjson file into ranges and map them in memory
+	 * @param file the ndjson file
+	 * @param ranges the number of ranges wanted. Very large files could get more ranges.
+	 * @param maxBytes maximum size in bytes of a chunk
+	 * @param maxActions maximum number of actions within a chunk
+	 * @return one reader per range
+	 * @throws IOException if the file can not be read
+	 */
+	public static List<MappedNdJsonBulkReader> open(Path file, int ranges, int maxBytes, int maxActions) throws IOException {
+		return open(file, 0, ranges, maxBytes, maxActions);
+	}
+
+	/**
+	 * Split the end of a ndjson file into ranges and map them in memory
+	 * @param file the ndjson file
+	 * @param from the offset where to start reading. It must be the start of an action line.
+	 * @param ranges the number of ranges wanted. Very large files could get more ranges.
+	 * @param maxBytes maximum size in bytes of a chunk
+	 * @param maxActions maximum number of actions within a chunk
+	 * @return one reader per range
+	 * @throws IOException if the file can not be read
+	 */
+	public static List<MappedNdJsonBulkReader> open(Path file, long from, int ranges, int maxBytes, int maxActions) throws IOException {
+		List<MappedNdJsonBulkReader> readers = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long[] bounds = split(channel, from, ranges);
+			for (int i = 0; i + 1 < bounds.length; i++) {
+				long start = bounds[i];
+				long size = bounds[i + 1] - start;
+				if (size == 0) {
+					continue;
+				}
+				if (size > Integer.MAX_VALUE) {
+					throw new IOException("Can not map a range of [" + size + "] bytes from file [" + file + "]");
+				}
+				// The mapping stays valid once the channel is closed
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+				readers.add(new MappedNdJsonBulkReader(mapped, start, maxBytes, maxActions));
+			}
+		}
+		logger.debug("File [{}] has been split into [{}] ranges", file, readers.size());
+		return readers;
+	}
+
+	/**
+	 * Compute the ranges bounds within a ndjson file. Each bound is moved forward to the start of an action line.
+	 * @param channel the file
+	 * @param from the offset of the first range
+	 * @param ranges the number of ranges wanted
+	 * @return the bounds: range i goes from bounds[i] to bounds[i + 1]
+	 * @throws IOException if the file can not be read
+	 */
+	static long[] split(FileChannel channel, long from, int ranges) throws IOException {
+		long size = channel.size();
+		long length = Math.max(size - from, 0);
+		int count = (int) Math.max(ranges, (length + MAX_RANGE_SIZE - 1) / MAX_RANGE_SIZE);
+		long[] bounds = new long[count + 1];
+		bounds[0] = Math.min(from, size);
+		FileWindow window = new FileWindow(channel, size);
+		for (int i = 1; i < count; i++) {
+			bounds[i] = Math.max(bounds[i - 1], alignToAction(window, bounds[i - 1], bounds[0] + length / count * i));
+		}
+		bounds[count] = size;
+		return bounds;
+	}
+
+	/**
+	 * Find the first action line starting at or after a position.
+	 * <br>
+	 * A source document can look like an action line, like {@code {"update":{"by":"x"}}}, so a line can only be known
+	 * to be an action from the lines before it. We go back to the last line which does not look like an action, which
+	 * must be a source, or to the previous bound, which is an action. The line after it is an action, and we read the
+	 * lines forward from there, skipping the source of each action which has one.
+	 * @param previousBound the start of an action line before position
+	 */
+	private static long alignToAction(FileWindow window, long previousBound, long position) throws IOException {
+		long lineStart = position;
+		if (position > 0 && window.get(position - 1) != '\n') {
+			lineStart = window.nextLine(position);
+		}
+		lineStart = window.nextNonBlankLine(lineStart);
+		if (lineStart >= window.size) {
+			return window.size;
+		}
+
+		long known = previousBound;
+		for (long line = window.previousNonBlankLine(lineStart); line > previousBound; line = window.previousNonBlankLine(line)) {
+			if (!window.isAction(line)) {
+				known = window.nextLine(line);
+				break;
+			}
+		}
+
+		long line = window.nextNonBlankLine(known);
+		while (line < lineStart) {
+			boolean hasSource = window.actionHasSource(line);
+			line = window.nextNonBlankLine(window.nextLine(line));
+			if (hasSource) {
+				line = window.nextNonBlankLine(window.nextLine(line));
+			}
+		}
+		return Math.min(line, window.size);
+	}
+
+	/**
+	 * Change the limits of the next chunks, when they are adapted to the cluster while reading
+	 * @param maxBytes maximum size in bytes of a chunk
+	 * @param maxActions maximum number of actions within a chunk
+	 */
+	public void setLimits(int maxBytes, int maxActions) {
+		this.maxBytes = maxBytes;
+		this.maxActions = maxActions;
+	}
+
+	/**
+	 * Read the next chunk of the range
+	 * @return the next chunk or null if we reached the end of the range
+	 * @throws IOException if an action does not have its source
+	 */
+	public NdJsonBulkReader.Chunk next() throws IOException {
+		int limit = buffer.limit();
+		int chunkFrom = position;
+		position = skipBlankLines(position);
+		if (position == limit) {
+			return null;
+		}
+
+		int chunkStart = position;
+		int[] offsets = new int[Math.min(maxActions, 1024)];
+		int actions = 0;
+		while (actions < maxActions && position < limit) {
+			int itemStart = position;
+			int itemEnd = lineEnd(itemStart);
+			if (isBlank(itemStart, itemEnd)) {
+				// Keep the chunk contiguous: blank lines are skipped when reading the next chunk
+				break;
+			}
+			boolean contiguous = true;
+			if (NdJsonBulkReader.hasSource(buffer, itemStart, itemEnd - itemStart)) {
+				int sourceStart = skipBlankLines(itemEnd);
+				if (sourceStart == limit) {
+					throw new IOException("Missing source for the bulk action at byte " + (rangeStart + itemStart));
+				}
+				contiguous = sourceStart == itemEnd;
+				itemEnd = lineEnd(sourceStart);
+			}
+			contiguous &= buffer.get(itemEnd - 1) == '\n';
+
+			if (!contiguous) {
+				if (actions > 0) {
+					break;
+				}
+				position = itemEnd;
+				if (skipBlankLines(position) == limit) {
+					position = limit;
+				}
+				return copyItem(chunkFrom, itemStart, itemEnd);
+			}
+			if (actions > 0 && itemEnd - chunkStart > maxBytes) {
+				break;
+			}
+			if (actions == offsets.length) {
+				offsets = Arrays.copyOf(offsets, Math.min(maxActions, offsets.length * 2));
+			}
+			offsets[actions++] = itemStart - chunkStart;
+			position = itemEnd;
+		}
+
+		logger.trace("built a bulk chunk of [{}] actions and [{}] bytes", actions, position - chunkStart);
+		int chunkEnd = position;
+		if (skipBlankLines(position) == limit) {
+			// The last chunk of the range covers the blank lines at the end of the range
+			position = limit;
+		}
+		return new NdJsonBulkReader.Chunk(buffer.slice(chunkStart, chunkEnd - chunkStart), offsets, actions,
+				rangeStart + chunkFrom, rangeStart + position);
+	}
+
+	/**
+	 * Copy a single item which is not contiguous in the file to the heap, removing the blank lines
+	 * and adding the missing line feed if needed
+	 */
+	private NdJsonBulkReader.Chunk copyItem(int chunkFrom, int itemStart, int itemEnd) {
+		byte[] data = new byte[itemEnd - itemStart + 1];
+		int length = 0;
+		for (int lineStart = itemStart; lineStart < itemEnd; ) {
+			int lineEnd = lineEnd(lineStart);
+			if (!isBlank(lineStart, lineEnd)) {
+				buffer.get(lineStart, data, length, lineEnd - lineStart);
+				length += lineEnd - lineStart;
+				if (data[length - 1] != '\n') {
+					data[length++] = '\n';
+				}
+			}
+			lineStart = lineEnd;
+		}
+		return new NdJsonBulkReader.Chunk(data, length, new int[]{0}, 1, rangeStart + chunkFrom, rangeStart + position);
+	}
+
+	private int lineEnd(int from) {
+		int limit = buffer.limit();
+		int i = from;
+		while (i < limit && buffer.get(i) != '\n') {
+			i++;
+		}
+		return i < limit ? i + 1 : limit;
+	}
+
+	private int skipBlankLines(int from) {
+		int lineStart = from;
+		while (lineStart < buffer.limit()) {
+			int lineEnd = lineEnd(lineStart);
+			if (!isBlank(lineStart, lineEnd)) {
+				break;
+			}
+			lineStart = lineEnd;
+		}
+		return lineStart;
+	}
+
+	private boolean isBlank(int from, int to) {
+		for (int i = from; i < to; i++) {
+			byte b = buffer.get(i);
+			if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Random access to the bytes of a file, through a small cached block. Only used to align the ranges.
+	 */
+	private static class FileWindow {
+		private static final int BLOCK_SIZE = 64 * 1024;
+
+		private final FileChannel channel;
+		private final long size;
+		private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+		private long blockStart = -1;
+
+		FileWindow(FileChannel channel, long size) {
+			this.channel = channel;
+			this.size = size;
+		}
+
+		byte get(long position) throws IOException {
+			if (blockStart < 0 || position < blockStart || position >= blockStart + block.limit()) {
+				blockStart = position - position % BLOCK_SIZE;
+				block.clear();
+				while (block.hasRemaining() && channel.read(block, blockStart + block.position()) > 0) {
+					// keep reading until the block is full or we reach the end of the file
+				}
+				block.flip();
+			}
+			return block.get((int) (position - blockStart));
+		}
+
+		/**
+		 * @return the start of the line following the one containing position, or the file size
+		 */
+		long nextLine(long position) throws IOException {
+			long i = position;
+			while (i < size && get(i) != '\n') {
+				i++;
+			}
+			return Math.min(i + 1, size);
+		}
+
+		/**
+		 * @return the start of the first non blank line starting at or after lineStart, or the file size
+		 */
+		long nextNonBlankLine(long lineStart) throws IOException {
+			long line = lineStart;
+			while (line < size && isBlankLine(line)) {
+				line = nextLine(line);
+			}
+			return line;
+		}
+
+		boolean isBlankLine(long lineStart) throws IOException {
+			for (long i = lineStart; i < size; i++) {
+				byte b = get(i);
+				if (b == '\n') {
+					return true;
+				}
+				if (b != ' ' && b != '\t' && b != '\r') {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return the start of the last non blank line ending before lineStart, or -1
+		 */
+		long previousNonBlankLine(long lineStart) throws IOException {
+			long end = lineStart - 1;
+			while (end >= 0) {
+				long start = end;
+				while (start > 0 && get(start - 1) != '\n') {
+					start--;
+				}
+				for (long i = start; i < end; i++) {
+					byte b = get(i);
+					if (b != ' ' && b != '\t' && b != '\r') {
+						return start;
+					}
+				}
+				end = start - 1;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return true if the line looks like a bulk action: {"index|create|update|delete": {
+		 */
+		boolean isAction(long lineStart) throws IOException {
+			long i = skipSpaces(lineStart);
+			if (i >= size || get(i) != '{') {
+				return false;
+			}
+			i = skipSpaces(i + 1);
+			if (i >= size || get(i) != '"') {
+				return false;
+			}
+			StringBuilder key = new StringBuilder();
+			for (i++; i < size && get(i) != '"' && key.length() <= 6; i++) {
+				key.append((char) get(i));
+			}
+			String action = key.toString();
+			if (!action.equals("index") && !action.equals("create") && !action.equals("update") && !action.equals("delete")) {
+				return false;
+			}
+			i = skipSpaces(i + 1);
+			if (i >= size || get(i) != ':') {
+				return false;
+			}
+			i = skipSpaces(i + 1);
+			return i < size && get(i) == '{';
+		}
+
+		boolean actionHasSource(long lineStart) throws IOException {
+			byte[] line = new byte[(int) Math.min(32, size - lineStart)];
+			for (int i = 0; i < line.length; i++) {
+				line[i] = get(lineStart + i);
+			}
+			return NdJsonBulkReader.hasSource(line, 0, line.length);
+		}
+
+		private long skipSpaces(long from) throws IOException {
+			long i = from;
+			while (i < size) {
+				byte b = get(i);
+				if (b != ' ' && b != '\t') {
+					break;
+				}
+				i++;
+			}
+			return i;
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read a ndjson bulk stream line by line and cut it into bulk requests which
+ * are bounded by a number of bytes and a number of actions.
+ * <br>
+ * An action line and its source line (if any, the {@code delete} action does not have one)
+ * always end up in the same chunk. The whole stream is never held in memory: only the
+ * chunk being built is.
+ */
+public class NdJsonBulkReader implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(NdJsonBulkReader.class);
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream in;
+	private int maxBytes;
+	private int maxActions;
+
+	// Offsets within the source file, used to checkpoint the load
+	private long consumed;
+	private long itemOffset;
+	private long chunkOffset;
+
+	private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+	private int readPosition = 0;
+	private int readLimit = 0;
+	private boolean endOfStream = false;
+	private long lineNumber = 0;
+
+	// The item (action + source) we read but which did not fit in the previous chunk
+	private byte[] item = new byte[1024];
+	private int itemLength = 0;
+
+	/**
+	 * Create a reader
+	 * @param in the ndjson stream. It will be closed when this reader is closed.
+	 * @param maxBytes maximum size in bytes of a chunk
+	 * @param maxActions maximum number of actions within a chunk
+	 */
+	public NdJsonBulkReader(InputStream in, int maxBytes, int maxActions) {
+		this(in, maxBytes, maxActions, 0);
+	}
+
+	/**
+	 * Create a reader for a stream which does not start at the beginning of the file
+	 * @param in the ndjson stream. It will be closed when this reader is closed.
+	 * @param maxBytes maximum size in bytes of a chunk
+	 * @param maxActions maximum number of actions within a chunk
+	 * @param startOffset the offset of the stream within the file. It must be the start of an action line.
+	 */
+	public NdJsonBulkReader(InputStream in, int maxBytes, int maxActions, long startOffset) {
+		this.in = in;
+		this.maxBytes = maxBytes;
+		this.maxActions = maxActions;
+		this.consumed = startOffset;
+		this.chunkOffset = startOffset;
+	}
+
+	/**
+	 * Change the limits of the next chunks, when they are adapted to the cluster while reading
+	 * @param maxBytes maximum size in bytes of a chunk
+	 * @param maxActions maximum number of actions within a chunk
+	 */
+	public void setLimits(int maxBytes, int maxActions) {
+		this.maxBytes = maxBytes;
+		this.maxActions = maxActions;
+	}
+
+	/**
+	 * Read the next chunk of the stream
+	 * @return the next chunk or null if we reached the end of the stream
+	 * @throws IOException if the stream can not be read or if an action does not have its source
+	 */
+	public Chunk next() throws IOException {
+		byte[] data = null;
+		int[] offsets = new int[Math.min(maxActions, 1024)];
+		int length = 0;
+		int actions = 0;
+
+		while (actions < maxActions) {
+			if (itemLength == 0 && !readItem()) {
+				break;
+			}
+			if (actions > 0 && length + itemLength > maxBytes) {
+				// The pending item will start the next chunk
+				break;
+			}
+			if (data == null) {
+				data = new byte[Math.max(Math.min(maxBytes, READ_BUFFER_SIZE), itemLength)];
+			} else if (length + itemLength > data.length) {
+				data = Arrays.copyOf(data, Math.max(Math.min(maxBytes, data.length * 2), length + itemLength));
+			}
+			if (actions == offsets.length) {
+				offsets = Arrays.copyOf(offsets, Math.min(maxActions, offsets.length * 2));
+			}
+			offsets[actions] = length;
+			System.arraycopy(item, 0, data, length, itemLength);
+			length += itemLength;
+			itemLength = 0;
+			actions++;
+		}
+
+		if (actions == 0) {
+			return null;
+		}
+		if (length > maxBytes) {
+			logger.debug("A single bulk action of [{}] bytes is bigger than the bulk limit of [{}] bytes. Sending it alone.",
+					length, maxBytes);
+		}
+		logger.trace("built a bulk chunk of [{}] actions and [{}] bytes", actions, length);
+		// The pending item, if any, belongs to the next chunk
+		long endOffset = itemLength > 0 ? itemOffset : consumed;
+		Chunk chunk = new Chunk(data, length, offsets, actions, chunkOffset, endOffset);
+		chunkOffset = endOffset;
+		return chunk;
+	}
+
+	/**
+	 * Read the next action line, and its source line when the action needs one, in the item buffer.
+	 * @return false if the end of the stream has been reached
+	 */
+	private boolean readItem() throws IOException {
+		itemOffset = consumed;
+		int actionStart = itemLength;
+		if (!readNonBlankLine()) {
+			return false;
+		}
+		if (hasSource(item, actionStart, itemLength - actionStart)) {
+			if (!readNonBlankLine()) {
+				throw new IOException("Missing source for the bulk action at line " + lineNumber);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Append the next non blank line, including its line feed, to the item buffer.
+	 * @return false if the end of the stream has been reached
+	 */
+	private boolean readNonBlankLine() throws IOException {
+		while (true) {
+			int lineStart = itemLength;
+			if (!readLine()) {
+				return false;
+			}
+			if (isBlank(item, lineStart, itemLength)) {
+				itemLength = lineStart;
+			} else {
+				return true;
+			}
+		}
+	}
+
+	private boolean readLine() throws IOException {
+		boolean read = false;
+		while (true) {
+			if (readPosition == readLimit) {
+				if (!fill()) {
+					if (read) {
+						// The last line of the stream has no line feed but the bulk API needs it
+						appendToItem(new byte[]{'\n'}, 0, 1);
+						lineNumber++;
+					}
+					return read;
+				}
+			}
+			read = true;
+			int end = readPosition;
+			while (end < readLimit && readBuffer[end] != '\n') {
+				end++;
+			}
+			if (end < readLimit) {
+				consumed += end + 1 - readPosition;
+				appendToItem(readBuffer, readPosition, end + 1 - readPosition);
+				readPosition = end + 1;
+				lineNumber++;
+				return true;
+			}
+			consumed += readLimit - readPosition;
+			appendToItem(readBuffer, readPosition, readLimit - readPosition);
+			readPosition = readLimit;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (endOfStream) {
+			return false;
+		}
+		int read = in.read(readBuffer);
+		if (read < 0) {
+			endOfStream = true;
+			return false;
+		}
+		readPosition = 0;
+		readLimit = read;
+		return true;
+	}
+
+	private void appendToItem(byte[] source, int offset, int length) {
+		if (itemLength + length > item.length) {
+			item = Arrays.copyOf(item, Math.max(item.length * 2, itemLength + length));
+		}
+		System.arraycopy(source, offset, item, itemLength, length);
+		itemLength += length;
+	}
+
+	private static boolean isBlank(byte[] bytes, int from, int to) {
+		for (int i = from; i < to; i++) {
+			byte b = bytes[i];
+			if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check if a bulk action line is followed by a source line. Only the delete action is not.
+	 * @param bytes buffer containing the action line
+	 * @param offset start of the action line
+	 * @param length length of the action line
+	 * @return true if the action expects a source line
+	 */
+	static boolean hasSource(byte[] bytes, int offset, int length) {
+		return hasSource(ByteBuffer.wrap(bytes), offset, length);
+	}
+
+	/**
+	 * Check if a bulk action line is followed by a source line. Only the delete action is not.
+	 * @param bytes buffer containing the action line
+	 * @param offset absolute index of the start of the action line
+	 * @param length length of the action line
+	 * @return true if the action expects a source line
+	 */
+	static boolean hasSource(ByteBuffer bytes, int offset, int length) {
+		int end = offset + length;
+		int start = offset;
+		while (start < end && bytes.get(start) != '"') {
+			start++;
+		}
+		int keyEnd = start + 1;
+		while (keyEnd < end && bytes.get(keyEnd) != '"') {
+			keyEnd++;
+		}
+		return !(keyEnd - start - 1 == 6
+				&& bytes.get(start + 1) == 'd' && bytes.get(start + 2) == 'e' && bytes.get(start + 3) == 'l'
+				&& bytes.get(start + 4) == 'e' && bytes.get(start + 5) == 't' && bytes.get(start + 6) == 'e');
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * A chunk of ndjson content which can be sent as a single bulk request. The content is either
+	 * held in memory or a slice of a memory mapped file.
+	 */
+	public static class Chunk {
+		private final ByteBuffer content;
+		private final int[] offsets;
+		private final int actions;
+		private final long startOffset;
+		private final long endOffset;
+
+		Chunk(byte[] data, int length, int[] offsets, int actions, long startOffset, long endOffset) {
+			this(ByteBuffer.wrap(data, 0, length).slice(), offsets, actions, startOffset, endOffset);
+		}
+
+		Chunk(ByteBuffer content, int[] offsets, int actions, long startOffset, long endOffset) {
+			this.content = content;
+			this.offsets = offsets;
+			this.actions = actions;
+			this.startOffset = startOffset;
+			this.endOffset = endOffset;
+		}
+
+		/**
+		 * @return the buffer holding the ndjson content. Only the first {@link #getLength()} bytes are meaningful.
+		 * When the chunk is a slice of a memory mapped file, the content is copied.
+		 */
+		public byte[] getData() {
+			if (content.hasArray() && content.arrayOffset() == 0) {
+				return content.array();
+			}
+			byte[] data = new byte[getLength()];
+			content.get(0, data);
+			return data;
+		}
+
+		/**
+		 * @return a buffer over the ndjson content, from 0 to {@link #getLength()}. It must not be modified.
+		 */
+		public ByteBuffer getBuffer() {
+			return content.duplicate();
+		}
+
+		/**
+		 * @return the size in bytes of the ndjson content
+		 */
+		public int getLength() {
+			return content.limit();
+		}
+
+		/**
+		 * @return the number of actions within this chunk
+		 */
+		public int getActions() {
+			return actions;
+		}
+
+		/**
+		 * @return the offset within the source file where this chunk starts, blank lines before it included
+		 */
+		public long getStartOffset() {
+			return startOffset;
+		}
+
+		/**
+		 * @return the offset within the source file where the next chunk starts
+		 */
+		public long getEndOffset() {
+			return endOffset;
+		}
+
+		/**
+		 * @param position the position of the action within this chunk, starting from 0
+		 * @return the offset of the first byte of the action line within {@link #getBuffer()}
+		 */
+		public int getActionStart(int position) {
+			return offsets[position];
+		}
+
+		/**
+		 * @param position the position of the action within this chunk, starting from 0
+		 * @return the offset after the last byte of the action (including its source line) within {@link #getBuffer()}
+		 */
+		public int getActionEnd(int position) {
+			return position + 1 < actions ? offsets[position + 1] : getLength();
+		}
+
+		/**
+		 * Build a new chunk containing only some actions of this chunk
+		 * @param positions the positions of the actions to keep, in ascending order
+		 * @return a new chunk, held in memory, which covers the same part of the source file
+		 */
+		public Chunk subset(List<Integer> positions) {
+			int size = 0;
+			for (int position : positions) {
+				size += getActionEnd(position) - getActionStart(position);
+			}
+			byte[] subsetData = new byte[size];
+			int[] subsetOffsets = new int[positions.size()];
+			int subsetLength = 0;
+			for (int i = 0; i < positions.size(); i++) {
+				int start = getActionStart(positions.get(i));
+				int actionLength = getActionEnd(positions.get(i)) - start;
+				subsetOffsets[i] = subsetLength;
+				content.get(start, subsetData, subsetLength, actionLength);
+				subsetLength += actionLength;
+			}
+			return new Chunk(subsetData, subsetLength, subsetOffsets, positions.size(), startOffset, endOffset);
+		}
+	}
+}
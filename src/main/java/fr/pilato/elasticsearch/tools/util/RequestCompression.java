@@ -0,0 +1,197 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Build the request bodies sent to elasticsearch. When enabled, the bodies bigger than a threshold
+ * are compressed with gzip and sent with a {@code Content-Encoding: gzip} header.
+ * <br>
+ * It also records how many bytes have been saved and how much time has been spent compressing.
+ */
+public class RequestCompression {
+
+	private boolean enabled = DefaultSettings.RequestCompression;
+	private int threshold = DefaultSettings.RequestCompressionThreshold;
+
+	private final LongAdder compressedRequests = new LongAdder();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private final LongAdder compressionNanos = new LongAdder();
+
+	/**
+	 * Build the entity for a json body
+	 * @param json the json content
+	 * @return the entity, compressed or not
+	 */
+	public HttpEntity jsonEntity(String json) {
+		return jsonEntity(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Build the entity for a json body which is already encoded, without copying it
+	 * @param json the json content in UTF-8
+	 * @return the entity, compressed or not
+	 */
+	public HttpEntity jsonEntity(byte[] json) {
+		return jsonEntity(json, 0, json.length);
+	}
+
+	/**
+	 * Build the entity for a json or ndjson body
+	 * @param data buffer containing the content
+	 * @param offset offset of the content within the buffer
+	 * @param length length of the content
+	 * @return the entity, compressed or not
+	 */
+	public HttpEntity jsonEntity(byte[] data, int offset, int length) {
+		if (!enabled || length < threshold) {
+			return new ByteArrayEntity(data, offset, length, ContentType.APPLICATION_JSON);
+		}
+
+		long start = System.nanoTime();
+		// Json usually compresses 5 to 10 times
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(length / 5, 512));
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192)) {
+			gzip.write(data, offset, length);
+		} catch (IOException e) {
+			// This can not happen with an in memory stream
+			throw new UncheckedIOException(e);
+		}
+		return compressed(compressed, length, start);
+	}
+
+	private HttpEntity compressed(ByteArrayOutputStream compressed, int length, long start) {
+		compressionNanos.add(System.nanoTime() - start);
+		compressedRequests.increment();
+		uncompressedBytes.add(length);
+		compressedBytes.add(compressed.size());
+
+		ByteArrayEntity entity = new ByteArrayEntity(compressed.toByteArray(), ContentType.APPLICATION_JSON);
+		entity.setContentEncoding("gzip");
+		return entity;
+	}
+
+	/**
+	 * Build the entity for a json or ndjson body held in a buffer, like a slice of a memory mapped file.
+	 * When the body is not compressed, the buffer is sent as is, without being copied.
+	 * @param content the content, from its position to its limit
+	 * @return the entity, compressed or not
+	 */
+	public HttpEntity jsonEntity(ByteBuffer content) {
+		if (content.hasArray()) {
+			return jsonEntity(content.array(), content.arrayOffset() + content.position(), content.remaining());
+		}
+		int length = content.remaining();
+		if (!enabled || length < threshold) {
+			return new ByteBufferEntity(content, ContentType.APPLICATION_JSON);
+		}
+
+		long start = System.nanoTime();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(length / 5, 512));
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192)) {
+			ByteBuffer source = content.duplicate();
+			byte[] block = new byte[Math.min(length, 64 * 1024)];
+			while (source.hasRemaining()) {
+				int read = Math.min(block.length, source.remaining());
+				source.get(block, 0, read);
+				gzip.write(block, 0, read);
+			}
+		} catch (IOException e) {
+			// This can not happen with an in memory stream
+			throw new UncheckedIOException(e);
+		}
+		return compressed(compressed, length, start);
+	}
+
+	/**
+	 * @return true if request bodies are compressed
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the size in bytes under which request bodies are not compressed
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return the number of requests which have been compressed
+	 */
+	public long getCompressedRequests() {
+		return compressedRequests.sum();
+	}
+
+	/**
+	 * @return the size in bytes of the compressed requests before compression
+	 */
+	public long getUncompressedBytes() {
+		return uncompressedBytes.sum();
+	}
+
+	/**
+	 * @return the size in bytes of the compressed requests after compression
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes.sum();
+	}
+
+	/**
+	 * @return the number of bytes which have not been sent thanks to compression
+	 */
+	public long getSavedBytes() {
+		return getUncompressedBytes() - getCompressedBytes();
+	}
+
+	/**
+	 * @return the time spent compressing, in milliseconds
+	 */
+	public long getCompressionTimeMillis() {
+		return compressionNanos.sum() / 1_000_000;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + getCompressedRequests() + "] requests compressed from [" + getUncompressedBytes() + "] to ["
+				+ getCompressedBytes() + "] bytes, saving [" + getSavedBytes() + "] bytes in [" + getCompressionTimeMillis() + "] ms";
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hash the content of the templates, pipelines and index lifecycles so they are only sent to elasticsearch
+ * when they changed. The hash is stored in the {@code _meta} of the resource, as {@value #HASH_FIELD}.
+ * <br>
+ * It also records how many resources have been applied and how many have been skipped as unchanged.
+ */
+public class ResourceHashing {
+
+	/**
+	 * Name of the field holding the hash within the {@code _meta} of a resource
+	 */
+	public static final String HASH_FIELD = "beyonder_hash";
+
+	private static final String META_FIELD = "_meta";
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private boolean enabled = DefaultSettings.SkipUnchangedResources;
+
+	private final LongAdder applied = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+
+	/**
+	 * Compute the hash of a resource
+	 * @param json the json content of the resource, once the variables have been replaced
+	 * @return the SHA-256 of the content, in hexadecimal
+	 */
+	public static String hash(String json) {
+		return hash(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Compute the hash of a resource
+	 * @param json the json content of the resource in UTF-8, once the variables have been replaced
+	 * @return the SHA-256 of the content, in hexadecimal
+	 */
+	public static String hash(byte[] json) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(json));
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Add the hash to the {@code _meta} of a resource. An existing {@code _meta} is kept, and the objects leading
+	 * to it are created if needed.
+	 * @param json the json content of the resource
+	 * @param hash the hash of the resource
+	 * @param path the fields leading to the object holding the {@code _meta}, like {@code policy} for an index lifecycle
+	 * @return the json content with the hash
+	 * @throws IOException if the content is not valid json
+	 */
+	public static String withHash(String json, String hash, String... path) throws IOException {
+		return new String(withHash(json.getBytes(StandardCharsets.UTF_8), hash, path), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Add the hash to the {@code _meta} of a resource. An existing {@code _meta} is kept, and the objects leading
+	 * to it are created if needed.
+	 * @param json the json content of the resource in UTF-8
+	 * @param hash the hash of the resource
+	 * @param path the fields leading to the object holding the {@code _meta}, like {@code policy} for an index lifecycle
+	 * @return the json content with the hash, in UTF-8
+	 * @throws IOException if the content is not valid json
+	 */
+	public static byte[] withHash(byte[] json, String hash, String... path) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(json.length + 128);
+		try (JsonParser parser = jsonFactory.createParser(json);
+			 JsonGenerator generator = jsonFactory.createGenerator(out)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("A resource must be a json object");
+			}
+			copyObject(parser, generator, hash, path, 0);
+		}
+		return out.toByteArray();
+	}
+
+	private static void copyObject(JsonParser parser, JsonGenerator generator, String hash, String[] path, int level) throws IOException {
+		generator.writeStartObject();
+		boolean holdsMeta = level == path.length;
+		boolean found = false;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			JsonToken value = parser.nextToken();
+			generator.writeFieldName(field);
+			if (holdsMeta && META_FIELD.equals(field) && value == JsonToken.START_OBJECT) {
+				found = true;
+				copyMeta(parser, generator, hash);
+			} else if (!holdsMeta && path[level].equals(field) && value == JsonToken.START_OBJECT) {
+				found = true;
+				copyObject(parser, generator, hash, path, level + 1);
+			} else {
+				generator.copyCurrentStructure(parser);
+			}
+		}
+		if (!found) {
+			// We create what is missing, like the mappings of an index which has only settings
+			for (int i = level; i < path.length; i++) {
+				generator.writeObjectFieldStart(path[i]);
+			}
+			generator.writeObjectFieldStart(META_FIELD);
+			generator.writeStringField(HASH_FIELD, hash);
+			generator.writeEndObject();
+			for (int i = level; i < path.length; i++) {
+				generator.writeEndObject();
+			}
+		}
+		generator.writeEndObject();
+	}
+
+	private static void copyMeta(JsonParser parser, JsonGenerator generator, String hash) throws IOException {
+		generator.writeStartObject();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			parser.nextToken();
+			if (HASH_FIELD.equals(field)) {
+				// We replace it
+				parser.skipChildren();
+			} else {
+				generator.writeFieldName(field);
+				generator.copyCurrentStructure(parser);
+			}
+		}
+		generator.writeStringField(HASH_FIELD, hash);
+		generator.writeEndObject();
+	}
+
+	/**
+	 * Read the hash from a response of elasticsearch describing a resource
+	 * @param response the response, which can be filtered down to the hash
+	 * @return the first hash found or null if there is none
+	 * @throws IOException if the response can not be read
+	 */
+	public static String readHash(InputStream response) throws IOException {
+		try (JsonParser parser = jsonFactory.createParser(response)) {
+			for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+				if (token == JsonToken.FIELD_NAME && HASH_FIELD.equals(parser.currentName())
+						&& parser.nextToken() == JsonToken.VALUE_STRING) {
+					return parser.getText();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the resources which did not change are not sent again
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Record that a resource has been sent to elasticsearch
+	 */
+	public void applied() {
+		applied.increment();
+	}
+
+	/**
+	 * Record that a resource has not been sent as it did not change
+	 */
+	public void skipped() {
+		skipped.increment();
+	}
+
+	/**
+	 * @return the number of resources which have been sent to elasticsearch
+	 */
+	public long getApplied() {
+		return applied.sum();
+	}
+
+	/**
+	 * @return the number of resources which have not been sent as they did not change
+	 */
+	public long getSkipped() {
+		return skipped.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "[" + getApplied() + "] resources applied and [" + getSkipped() + "] unchanged resources skipped";
+	}
+}
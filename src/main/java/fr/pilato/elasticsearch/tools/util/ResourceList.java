@@ -29,9 +29,9 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * list resources available from the classpath @ *
@@ -42,6 +42,7 @@ import java.util.jar.JarFile;
 public class ResourceList {
     private static final Logger logger = LoggerFactory.getLogger(ResourceList.class);
     private static final String[] NO_RESOURCE = {};
+    private static final Map<String, ResourceManifest> jarIndexes = new ConcurrentHashMap<>();
 
     private ResourceList() {
         // empty
@@ -63,15 +64,7 @@ public class ResourceList {
         if (dirURL != null && dirURL.getProtocol().equals("file")) {
             /* A file path: easy enough */
             logger.trace("found a file resource: {}", dirURL);
-            String[] resources = new File(dirURL.toURI()).list();
-
-            if (resources == null) {
-                // We return an empty array
-                return NO_RESOURCE;
-            }
-
-            Arrays.sort(resources);
-            return resources;
+            return listDirectory(new File(dirURL.toURI()));
         }
 
         if (dirURL == null) {
@@ -90,31 +83,7 @@ public class ResourceList {
         if (dirURL.getProtocol().equals("jar")) {
             /* A JAR path */
             logger.trace("found a jar file resource: {}", dirURL);
-            String jarPath = dirURL.getPath().substring(5, dirURL.getPath().indexOf("!")); //strip out only the JAR file
-            String prefix = dirURL.getPath().substring(5 + jarPath.length())
-                        // remove any ! that a class loader (e.g. from spring boot) could have added
-                        .replaceAll("!", "")
-                        // remove leading slash that is not part of the JarEntry::getName
-                        .substring(1);
-            Set<String> result = new HashSet<>(); //avoid duplicates in case it is a subdirectory
-            try (JarFile jar = new JarFile(URLDecoder.decode(jarPath, StandardCharsets.UTF_8))) {
-                Enumeration<JarEntry> entries = jar.entries(); //gives ALL entries in jar
-                while(entries.hasMoreElements()) {
-                    String name = entries.nextElement().getName();
-                    if (name.startsWith(prefix)) { //filter according to the path
-                        String entry = name.substring(prefix.length());
-                        int checkSubdir = entry.indexOf("/");
-                        if (checkSubdir >= 0) {
-                            // if it is a subdirectory, we just return the directory name
-                            entry = entry.substring(0, checkSubdir);
-                        }
-                        result.add(entry);
-                    }
-                }
-            }
-            String[] resources = result.toArray(new String[0]);
-            Arrays.sort(resources);
-            return resources;
+            return ResourceManifest.fromJar(dirURL).list("");
         }
 
         // Resource does not exist. We can return an empty list
@@ -154,9 +123,8 @@ public class ResourceList {
         if (root == null) {
             path = DefaultSettings.ConfigDir;
         }
-        path += "/" + subdir + "/";
-        logger.debug("Looking for resources in classpath under [{}].", path);
-        return extractNamesFromJsonResources(ResourceList.getResources(path));
+        logger.debug("Looking for resources in classpath under [{}/{}/].", path, subdir);
+        return extractNamesFromJsonResources(list(path, subdir + "/"));
     }
 
     /**
@@ -176,7 +144,7 @@ public class ResourceList {
 
         final List<String> indexNames = new ArrayList<>();
         final Set<String> keys = new HashSet<>();
-        String[] resources = ResourceList.getResources(path + "/"); // "es/" or "a/b/c/"
+        String[] resources = list(path, ""); // "es/" or "a/b/c/"
         for (String resource : resources) {
             if (!resource.isEmpty()) {
                 logger.trace(" - resource [{}].", resource);
@@ -187,6 +155,7 @@ public class ResourceList {
                     key = resource;
                 }
                 if (!key.equals(DefaultSettings.IndexTemplatesDir) &&
+                        !key.equals(DefaultSettings.ManifestFile) &&
                         !key.equals(DefaultSettings.ComponentTemplatesDir) &&
                         !key.equals(DefaultSettings.PipelinesDir) &&
                         !key.equals(DefaultSettings.AliasesFile) &&
@@ -204,16 +173,20 @@ public class ResourceList {
     }
 
     /**
-     * Find all bulk files (*.ndjson) existing in a given classpath dir for a given index under the _data subdir
+     * Find all bulk files (*.ndjson), including compressed ones (*.ndjson.gz and *.ndjson.zst), existing in
+     * a given classpath dir for a given index under the _data subdir
      *
      * @param root  dir within the classpath
      * @param index index name
-     * @return a set of bulk files (*.ndjson)
+     * @return a set of bulk files (*.ndjson, *.ndjson.gz, *.ndjson.zst)
      * @throws IOException        if we can't read the classpath or the filesystem
      * @throws URISyntaxException this should not happen
      */
     public static Collection<String> findBulkFiles(final String root, final String index) throws IOException, URISyntaxException {
-        return findFilesByExtension(root, index, DefaultSettings.NdJsonFileExtension);
+        return findFilesByExtension(root, index,
+                DefaultSettings.NdJsonFileExtension,
+                DefaultSettings.NdJsonFileExtension + DefaultSettings.GzipFileExtension,
+                DefaultSettings.NdJsonFileExtension + DefaultSettings.ZstdFileExtension);
     }
 
     /**
@@ -230,16 +203,16 @@ public class ResourceList {
     }
 
     /**
-     * Find all files matching a given extension and existing in a given classpath dir for a given index under the _data subdir
+     * Find all files matching some extensions and existing in a given classpath dir for a given index under the _data subdir
      *
      * @param root  dir within the classpath
      * @param index index name
-     * @param extension the extension to look for like json or ndjson
+     * @param extensions the extensions to look for like json or ndjson
      * @return a set of files
      * @throws IOException        if we can't read the classpath or the filesystem
      * @throws URISyntaxException this should not happen
      */
-    private static Collection<String> findFilesByExtension(final String root, final String index, final String extension) throws IOException, URISyntaxException {
+    private static Collection<String> findFilesByExtension(final String root, final String index, final String... extensions) throws IOException, URISyntaxException {
         String path = root;
         String indexName = index;
         if (path == null) {
@@ -251,10 +224,10 @@ public class ResourceList {
             indexName = indexName + "/" + DefaultSettings.DataDir;
         }
 
-        logger.debug("Looking for [{}] files in classpath under [{}/{}].", extension, path, indexName);
+        logger.debug("Looking for {} files in classpath under [{}/{}].", Arrays.toString(extensions), path, indexName);
 
         final Set<String> filenames = new HashSet<>();
-        String[] resources = ResourceList.getResources(path + "/" + indexName); // "es/" or "a/b/c/"
+        String[] resources = list(path, indexName); // "es/" or "a/b/c/"
         for (String resource : resources) {
             if (!resource.isEmpty()) {
                 logger.trace(" - resource [{}].", resource);
@@ -264,7 +237,7 @@ public class ResourceList {
                 } else {
                     key = resource;
                 }
-                if (key.endsWith(extension) && !filenames.contains(key)) {
+                if (endsWithAny(key, extensions) && !filenames.contains(key)) {
                     logger.trace(" - found [{}].", key);
                     filenames.add(key);
                 }
@@ -278,6 +251,96 @@ public class ResourceList {
         return sortedFilenames;
     }
 
+    /**
+     * List directory contents within a root dir, from the manifest of the root dir if there is one.
+     * Otherwise, the classpath is scanned.
+     * @param root the root dir
+     * @param dir the directory within the root dir, or an empty string for the root dir itself
+     * @return Just the name of each member item, not the full paths.
+     */
+    private static String[] list(final String root, final String dir) throws URISyntaxException, IOException {
+        Path rootDir = SettingsReader.getFileSystemPath(root);
+        if (rootDir != null) {
+            return listDirectory(rootDir.resolve(dir).toFile());
+        }
+        ResourceManifest manifest = ResourceManifest.forRoot(root);
+        if (manifest == null) {
+            manifest = jarIndex(root);
+        }
+        if (manifest != null) {
+            return manifest.list(dir);
+        }
+        return getResources(root + "/" + dir);
+    }
+
+    private static String[] listDirectory(final File dir) {
+        String[] resources = dir.list();
+
+        if (resources == null) {
+            // We return an empty array
+            return NO_RESOURCE;
+        }
+
+        Arrays.sort(resources);
+        return resources;
+    }
+
+    /**
+     * Forget the indexes of the jars, so they don't stay in memory between two starts. A start which is running
+     * at the same time indexes its jar again when it needs it.
+     */
+    public static void clearJarIndexes() {
+        jarIndexes.clear();
+    }
+
+    /**
+     * Index the root dir when it is within a jar, so the jar is read only once whatever the number of directories
+     * we list. The index is kept until the end of the start, see {@link #clearJarIndexes()}.
+     * @param root the root dir
+     * @return the index or null if the root dir is not within a jar
+     */
+    private static ResourceManifest jarIndex(final String root) throws IOException {
+        ResourceManifest index = jarIndexes.get(root);
+        if (index != null) {
+            return index;
+        }
+        URL dirURL = ResourceList.class.getClassLoader().getResource(root + "/");
+        if (dirURL == null || !dirURL.getProtocol().equals("jar")) {
+            return null;
+        }
+        index = ResourceManifest.fromJar(dirURL);
+        ResourceManifest previous = jarIndexes.putIfAbsent(root, index);
+        return previous == null ? index : previous;
+    }
+
+    private static boolean endsWithAny(final String name, final String... extensions) {
+        for (String extension : extensions) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode an index name read from a directory name, like {@code "%3Cmy-index-%7Bnow%2Fd%7D%3E"}
+     * which is {@code "<my-index-{now/d}>"}.
+     * @param indexName the index name as found in the directory name
+     * @return the decoded index name
+     */
+    public static String decodeIndexName(final String indexName) {
+        return URLDecoder.decode(indexName, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param indexName the index name as found in the directory name
+     * @return true if the index name is a date math index name, like {@code "<my-index-{now/d}>"}, which is
+     * resolved by elasticsearch
+     */
+    public static boolean isDateMathIndexName(final String indexName) {
+        return decodeIndexName(indexName).startsWith("<");
+    }
+
     /**
      * Replace index name from a form of {@code "<my-index-{now/d}-000001>"} or
      * {@code "%3Cmy-index-%7Bnow%2Fd%7D-000001%3E"} to "my-index-*-*".
@@ -288,7 +351,7 @@ public class ResourceList {
         logger.trace("replaceIndexName({})", indexName);
         String replaced =
                 // We need to first URL decode the index name
-                URLDecoder.decode(indexName, StandardCharsets.UTF_8)
+                decodeIndexName(indexName)
                 // We replace {WHATEVER} with *
                 .replaceAll("\\{[^}]*\\}", "*")
                 // We replace <WHATEVER> with WHATEVER
@@ -0,0 +1,298 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.JarURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The list of all the files and directories under a root dir, generated when building the application, so the
+ * classpath does not have to be scanned when starting. This matters with big jars, as listing a directory of a
+ * jar means reading all its entries.
+ * <br>
+ * The manifest is a {@value DefaultSettings#ManifestFile} file within the root dir. Each line is the path of a file,
+ * or of a directory followed by a {@code /}, relative to the root dir. Generate it after the resources have been
+ * copied, for example with the exec-maven-plugin in the {@code process-classes} phase:
+ * <pre>
+ * java -cp ... fr.pilato.elasticsearch.tools.util.ResourceManifest target/classes elasticsearch
+ * </pre>
+ */
+public class ResourceManifest {
+
+	private static final Logger logger = LoggerFactory.getLogger(ResourceManifest.class);
+
+	private static final String HEADER = "# Generated by beyonder when building. Do not edit.";
+
+	private static final Map<String, Optional<ResourceManifest>> manifests = new ConcurrentHashMap<>();
+
+	private final int size;
+	private final Map<String, TreeSet<String>> children = new HashMap<>();
+
+	private ResourceManifest(Collection<String> entries) {
+		this.size = entries.size();
+		// Index the entries as a tree so listing a directory does not go through all of them
+		for (String entry : entries) {
+			String[] names = entry.split("/");
+			String dir = "";
+			for (String name : names) {
+				if (name.isEmpty()) {
+					continue;
+				}
+				children.computeIfAbsent(dir, d -> new TreeSet<>()).add(name);
+				dir = dir.isEmpty() ? name : dir + "/" + name;
+			}
+		}
+	}
+
+	/**
+	 * Generate the manifests of some root dirs
+	 * @param args the output directory of the build, like {@code target/classes}, followed by the root dirs.
+	 *             When no root dir is given, the default one ({@value DefaultSettings#ConfigDir}) is used.
+	 * @throws IOException if a manifest can not be written
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			throw new IllegalArgumentException("Usage: ResourceManifest <classes dir> [root dir...]");
+		}
+		Path classesDir = Paths.get(args[0]);
+		List<String> roots = args.length == 1 ? List.of(DefaultSettings.ConfigDir) : Arrays.asList(args).subList(1, args.length);
+		for (String root : roots) {
+			Path manifest = write(classesDir, root);
+			logger.info("Resource manifest written to [{}]", manifest);
+		}
+	}
+
+	/**
+	 * Write the manifest of a root dir
+	 * @param classesDir the directory where the resources have been copied, like {@code target/classes}
+	 * @param root dir within the classpath
+	 * @return the manifest file
+	 * @throws IOException if the root dir can not be read or the manifest can not be written
+	 */
+	public static Path write(Path classesDir, String root) throws IOException {
+		Path rootDir = classesDir.resolve(root);
+		if (!Files.isDirectory(rootDir)) {
+			throw new IOException("Can not find root dir [" + rootDir + "].");
+		}
+		List<String> entries;
+		try (Stream<Path> paths = Files.walk(rootDir)) {
+			entries = paths
+					.filter(path -> !path.equals(rootDir))
+					.map(path -> {
+						String entry = rootDir.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+						return Files.isDirectory(path) ? entry + "/" : entry;
+					})
+					.filter(entry -> !entry.equals(DefaultSettings.ManifestFile))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+		Path manifest = rootDir.resolve(DefaultSettings.ManifestFile);
+		try (Writer writer = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+			writer.write(HEADER);
+			writer.write('\n');
+			for (String entry : entries) {
+				writer.write(entry);
+				writer.write('\n');
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Read a manifest
+	 * @param manifest the content of the manifest
+	 * @return the manifest
+	 * @throws IOException if the manifest can not be read
+	 */
+	public static ResourceManifest read(InputStream manifest) throws IOException {
+		List<String> entries = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, StandardCharsets.UTF_8));
+		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+			String entry = line.trim();
+			if (!entry.isEmpty() && !entry.startsWith("#")) {
+				entries.add(entry);
+			}
+		}
+		return new ResourceManifest(entries);
+	}
+
+	/**
+	 * Find the manifest of a root dir within the classpath. It is only read once.
+	 * @param root dir within the classpath
+	 * @return the manifest or null if the root dir has no manifest
+	 */
+	public static ResourceManifest forRoot(String root) {
+		return manifests.computeIfAbsent(root, r -> {
+			String file = r + "/" + DefaultSettings.ManifestFile;
+			try (InputStream asStream = ResourceManifest.class.getClassLoader().getResourceAsStream(file)) {
+				if (asStream == null) {
+					logger.trace("No manifest [{}]. The classpath will be scanned.", file);
+					return Optional.empty();
+				}
+				ResourceManifest manifest = read(asStream);
+				logger.debug("Using manifest [{}] with [{}] entries.", file, manifest.size);
+				return Optional.of(manifest);
+			} catch (IOException e) {
+				logger.warn("Can not read [{}]. The classpath will be scanned: {}", file, e.getMessage());
+				return Optional.empty();
+			}
+		}).orElse(null);
+	}
+
+	/**
+	 * Index the content of a directory within a jar, reading the entries of the jar only once.
+	 * <br>
+	 * The jar is opened with the URL handler, which is the one the class loader uses. It knows how to open the
+	 * nested jars of the class loaders which support them, like the Spring Boot one, so we only read the entries
+	 * of the jar holding the directory. When the handler can not open it, like the JDK one with a nested jar
+	 * such as {@code jar:file:/app.jar!/BOOT-INF/lib/config.jar!/elasticsearch/}, the jar is opened as a zip
+	 * file system, and only the directory is walked. The zip file systems are closed once the directory has been indexed.
+	 * @param dirURL the URL of the directory, like {@code jar:file:/app.jar!/elasticsearch/}
+	 * @return the index of all the files and directories under this directory
+	 * @throws IOException if the jar can not be read
+	 */
+	public static ResourceManifest fromJar(URL dirURL) throws IOException {
+		URLConnection connection = dirURL.openConnection();
+		if (connection instanceof JarURLConnection) {
+			JarURLConnection jarConnection = (JarURLConnection) connection;
+			try {
+				// The jar file is cached by the URL handler and shared with the class loader, so we must not close it
+				JarFile jar = jarConnection.getJarFile();
+				return fromJarFile(jar, jarConnection.getEntryName(), dirURL);
+			} catch (FileNotFoundException e) {
+				logger.trace("Can not open [{}] with its URL handler: {}", dirURL, e.getMessage());
+			}
+		}
+		return fromZipFileSystem(dirURL);
+	}
+
+	private static ResourceManifest fromJarFile(JarFile jar, String dir, URL dirURL) {
+		String prefix = dir == null ? "" : dir;
+		if (!prefix.isEmpty() && !prefix.endsWith("/")) {
+			prefix += "/";
+		}
+		List<String> entries = new ArrayList<>();
+		Enumeration<JarEntry> jarEntries = jar.entries(); //gives ALL entries in jar
+		while (jarEntries.hasMoreElements()) {
+			String name = jarEntries.nextElement().getName();
+			if (name.startsWith(prefix)) { //filter according to the path
+				entries.add(name.substring(prefix.length()));
+			}
+		}
+		logger.debug("Indexed [{}] entries from [{}].", entries.size(), dirURL);
+		return new ResourceManifest(entries);
+	}
+
+	private static ResourceManifest fromZipFileSystem(URL dirURL) throws IOException {
+		// file:/app.jar!/BOOT-INF/lib/config.jar!/elasticsearch/ or file:/app.jar!/BOOT-INF/classes!/elasticsearch/
+		String[] parts = dirURL.getPath().split("!/");
+		if (!parts[0].startsWith("file:")) {
+			throw new IOException("Can not open [" + dirURL + "].");
+		}
+		// The nested jars are opened within the jars holding them, and must be closed before them
+		Deque<FileSystem> fileSystems = new ArrayDeque<>();
+		try {
+			logger.trace("Opening [{}] as a zip file system", parts[0]);
+			FileSystem fileSystem = FileSystems.newFileSystem(Paths.get(URI.create(parts[0])));
+			fileSystems.push(fileSystem);
+			String dir = "";
+			for (int i = 1; i < parts.length; i++) {
+				String part = URLDecoder.decode(parts[i].replace("+", "%2B"), StandardCharsets.UTF_8);
+				if (i < parts.length - 1 && part.endsWith(".jar")) {
+					logger.trace("Opening [{}] as a zip file system within its parent jar", dir + part);
+					fileSystem = FileSystems.newFileSystem(fileSystem.getPath(dir + part));
+					fileSystems.push(fileSystem);
+					dir = "";
+				} else {
+					dir += part.endsWith("/") ? part : part + "/";
+				}
+			}
+
+			Path root = fileSystem.getPath("/" + dir);
+			List<String> entries = new ArrayList<>();
+			if (Files.isDirectory(root)) {
+				try (Stream<Path> paths = Files.walk(root)) {
+					paths.filter(path -> !path.equals(root))
+							.forEach(path -> {
+								String entry = root.relativize(path).toString();
+								entries.add(Files.isDirectory(path) ? entry + "/" : entry);
+							});
+				}
+			}
+			logger.debug("Indexed [{}] entries from [{}] as a zip file system.", entries.size(), dirURL);
+			return new ResourceManifest(entries);
+		} finally {
+			while (!fileSystems.isEmpty()) {
+				fileSystems.pop().close();
+			}
+		}
+	}
+
+	/**
+	 * List the content of a directory. Not recursive.
+	 * @param dir directory relative to the root dir, like {@code twitter/_data}. An empty string lists the root dir.
+	 * @return the name of each file or directory within the directory, sorted
+	 */
+	public String[] list(String dir) {
+		String key = dir;
+		while (key.startsWith("/")) {
+			key = key.substring(1);
+		}
+		while (key.endsWith("/")) {
+			key = key.substring(0, key.length() - 1);
+		}
+		TreeSet<String> names = children.get(key);
+		return names == null ? new String[0] : names.toArray(new String[0]);
+	}
+}
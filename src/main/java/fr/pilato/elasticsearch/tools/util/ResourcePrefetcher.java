@@ -0,0 +1,212 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read the definition files of the resources in advance, on a small pool of threads, so reading them from the
+ * classpath overlaps with the calls to elasticsearch made for the previous resources.
+ * <br>
+ * The content which has been read but not used yet is bounded by {@link BeyonderOptions#getPrefetchMaxBytes()}.
+ * When the bound is reached, the content is not kept and it is read again when needed.
+ */
+public class ResourcePrefetcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(ResourcePrefetcher.class);
+
+	/**
+	 * Number of threads reading the files
+	 */
+	public static final int THREADS = 2;
+
+	private boolean enabled = DefaultSettings.Prefetch;
+	private long maxBytes = DefaultSettings.PrefetchMaxBytes;
+
+	private final Map<String, Future<Content>> contents = new ConcurrentHashMap<>();
+	private final AtomicLong heldBytes = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final VariableSources sources;
+	private ExecutorService executor;
+
+	ResourcePrefetcher(VariableSources sources) {
+		this.sources = sources;
+	}
+
+	/**
+	 * What we read. Its json is null if the file is missing or if it has not been kept.
+	 */
+	private static class Content {
+		private final byte[] json;
+		private final boolean kept;
+
+		private Content(byte[] json, boolean kept) {
+			this.json = json;
+			this.kept = kept;
+		}
+	}
+
+	/**
+	 * Start reading some files and replacing their variables in the background
+	 * @param root the root directory
+	 * @param paths the files to read, relative to the root directory, like {@code _pipelines/my_pipeline.json}
+	 */
+	public synchronized void prefetch(String root, Collection<String> paths) {
+		if (!enabled) {
+			return;
+		}
+		if (executor == null) {
+			AtomicInteger threads = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(THREADS, r -> {
+				Thread thread = new Thread(r, "beyonder-prefetch-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		logger.debug("Prefetching [{}] files from [{}].", paths.size(), root);
+		for (String path : paths) {
+			int slash = path.lastIndexOf('/');
+			String subdir = slash < 0 ? null : path.substring(0, slash);
+			String name = path.substring(slash + 1);
+			contents.computeIfAbsent(key(root, subdir, name), k -> executor.submit(() -> read(root, subdir, name)));
+		}
+	}
+
+	private Content read(String root, String subdir, String name) {
+		byte[] json = SettingsReader.getJsonBytes(root, subdir, name, sources);
+		if (json == null) {
+			return new Content(null, true);
+		}
+		long bytes = json.length;
+		if (heldBytes.addAndGet(bytes) > maxBytes) {
+			heldBytes.addAndGet(-bytes);
+			logger.trace("Not keeping [{}/{}] as [{}] bytes are already prefetched.", subdir, name, heldBytes.get());
+			return new Content(null, false);
+		}
+		return new Content(json, true);
+	}
+
+	/**
+	 * Read a file from the classpath and replace variables with their values, using what has been
+	 * prefetched if any. A prefetched file is only used once.
+	 * @param root		The root directory
+	 * @param subdir	The subdirectory
+	 * @param name		The resource name
+	 * @return The content of the file in UTF-8. It must not be modified.
+	 */
+	public byte[] getJsonBytes(String root, String subdir, String name) {
+		Future<Content> future = contents.remove(key(root, subdir, name));
+		if (future != null) {
+			try {
+				Content content = future.get();
+				if (content.kept) {
+					if (content.json != null) {
+						heldBytes.addAndGet(-content.json.length);
+					}
+					hits.increment();
+					return content.json;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				logger.debug("Could not prefetch [{}/{}]: {}", subdir, name, e.getCause().getMessage());
+			}
+		}
+		misses.increment();
+		return SettingsReader.getJsonBytes(root, subdir, name, sources);
+	}
+
+	/**
+	 * Forget what has been prefetched but not used and stop the threads
+	 */
+	public synchronized void clear() {
+		if (executor != null) {
+			executor.shutdownNow();
+			try {
+				// Let the running reads end so they don't count what they read once we cleared everything
+				executor.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			executor = null;
+		}
+		contents.clear();
+		heldBytes.set(0);
+	}
+
+	private static String key(String root, String subdir, String name) {
+		return root + "/" + subdir + "/" + name;
+	}
+
+	/**
+	 * @return true if the files are read in advance
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the maximum size in bytes of the content read in advance and not used yet
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the number of files which were read in advance when needed
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of files which had to be read when needed
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "[" + getHits() + "] files read in advance and [" + getMisses() + "] read when needed";
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A resource content which has been parsed once into literal parts and variables, so replacing the variables
+ * does not scan the content again. A variable is written {@code ${name}} or {@code ${name:-default value}}, and
+ * {@code $${name}} is kept as {@code ${name}}. A variable without a value nor a default value is kept as is.
+ * <br>
+ * The values are not searched for variables themselves, but the default values are.
+ * <br>
+ * The content is kept as UTF-8 bytes, which is what we send, so a content without variables is sent as it was read.
+ */
+public class ResourceTemplate {
+
+	private static final byte ESCAPE = '$';
+	private static final byte PREFIX = '{';
+	private static final byte SUFFIX = '}';
+	private static final byte[] DEFAULT_DELIMITER = ":-".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * The compiled classpath resources. They can not change so they are only read once.
+	 */
+	private static final Map<String, ResourceTemplate> templates = new ConcurrentHashMap<>();
+	private static final ResourceTemplate MISSING = new ResourceTemplate(new Object[0], 0);
+
+	/**
+	 * The literal parts as byte[] and the variables as Variable
+	 */
+	private final Object[] parts;
+	private final int literalLength;
+
+	private static class Variable {
+		private final String name;
+		private final ResourceTemplate defaultValue;
+		private final byte[] text;
+
+		private Variable(String name, ResourceTemplate defaultValue, byte[] text) {
+			this.name = name;
+			this.defaultValue = defaultValue;
+			this.text = text;
+		}
+	}
+
+	private ResourceTemplate(Object[] parts, int literalLength) {
+		this.parts = parts;
+		this.literalLength = literalLength;
+	}
+
+	/**
+	 * Read a resource and compile it. Resources within the classpath are compiled once and cached, while resources
+	 * of a root dir on the file system are read every time as they can change.
+	 * @param root		The root directory
+	 * @param subdir	The subdirectory
+	 * @param name		The resource name
+	 * @return The compiled resource or null if it does not exist
+	 */
+	public static ResourceTemplate forFile(String root, String subdir, String name) {
+		if (SettingsReader.getFileSystemPath(root) != null) {
+			return compile(SettingsReader.getFileBytes(root, subdir, name));
+		}
+		ResourceTemplate template = templates.computeIfAbsent(root + "/" + subdir + "/" + name, k -> {
+			ResourceTemplate compiled = compile(SettingsReader.getFileBytes(root, subdir, name));
+			return compiled == null ? MISSING : compiled;
+		});
+		return template == MISSING ? null : template;
+	}
+
+	/**
+	 * Parse a content into literal parts and variables
+	 * @param content the content
+	 * @return the compiled content or null if the content is null
+	 */
+	public static ResourceTemplate compile(String content) {
+		return content == null ? null : compile(content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Parse a content into literal parts and variables. The bytes must not be modified afterwards, as a content
+	 * without variables is kept as is.
+	 * @param content the content, in UTF-8
+	 * @return the compiled content or null if the content is null
+	 */
+	public static ResourceTemplate compile(byte[] content) {
+		if (content == null) {
+			return null;
+		}
+		return compile(content, 0, content.length);
+	}
+
+	private static ResourceTemplate compile(byte[] content, int from, int to) {
+		List<Object> parts = new ArrayList<>();
+		ByteArrayOutputStream literal = new ByteArrayOutputStream();
+		int literalLength = 0;
+		int position = from;
+		int start;
+		// We only look for ascii characters, which can not be found within a multi-byte UTF-8 character
+		while ((start = findPrefix(content, position, to)) >= 0) {
+			if (start > position && content[start - 1] == ESCAPE) {
+				// $${name} is not a variable: we drop the escape character and keep the rest as is
+				literal.write(content, position, start - 1 - position);
+				literal.write(content, start, 2);
+				position = start + 2;
+				continue;
+			}
+			int end = findSuffix(content, start + 2, to);
+			if (end < 0) {
+				break;
+			}
+			literal.write(content, position, start - position);
+			if (literal.size() > 0) {
+				parts.add(literal.toByteArray());
+				literalLength += literal.size();
+				literal.reset();
+			}
+			int delimiter = indexOf(content, DEFAULT_DELIMITER, start + 2, end);
+			byte[] text = Arrays.copyOfRange(content, start, end + 1);
+			parts.add(delimiter < 0 ?
+					new Variable(new String(content, start + 2, end - start - 2, StandardCharsets.UTF_8), null, text) :
+					new Variable(new String(content, start + 2, delimiter - start - 2, StandardCharsets.UTF_8),
+							compile(content, delimiter + DEFAULT_DELIMITER.length, end), text));
+			position = end + 1;
+		}
+		if (parts.isEmpty() && literal.size() == 0 && from == 0 && to == content.length) {
+			// Nothing to replace: we keep the content as it was read
+			return new ResourceTemplate(new Object[] { content }, content.length);
+		}
+		literal.write(content, position, to - position);
+		if (literal.size() > 0) {
+			parts.add(literal.toByteArray());
+			literalLength += literal.size();
+		}
+		return new ResourceTemplate(parts.toArray(), literalLength);
+	}
+
+	private static int findPrefix(byte[] content, int from, int to) {
+		for (int i = from; i < to - 1; i++) {
+			if (content[i] == ESCAPE && content[i + 1] == PREFIX) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the end of a variable, skipping the variables nested in its default value
+	 */
+	private static int findSuffix(byte[] content, int from, int to) {
+		int nested = 0;
+		for (int i = from; i < to; i++) {
+			if (content[i] == ESCAPE && i + 1 < to && content[i + 1] == PREFIX) {
+				nested++;
+				i++;
+			} else if (content[i] == SUFFIX) {
+				if (nested == 0) {
+					return i;
+				}
+				nested--;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(byte[] content, byte[] value, int from, int to) {
+		for (int i = from; i <= to - value.length; i++) {
+			if (Arrays.equals(content, i, i + value.length, value, 0, value.length)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Replace the variables
+	 * @param sources where to read the values of the variables
+	 * @return the content with the variables replaced
+	 */
+	public String render(VariableSources sources) {
+		return new String(renderBytes(sources), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Replace the variables, without decoding the content
+	 * @param sources where to read the values of the variables
+	 * @return the content with the variables replaced, in UTF-8. It must not be modified, as a content without
+	 * variables is returned as it was read.
+	 */
+	public byte[] renderBytes(VariableSources sources) {
+		if (parts.length == 1 && parts[0] instanceof byte[]) {
+			return (byte[]) parts[0];
+		}
+		ByteArrayOutputStream content = new ByteArrayOutputStream(literalLength + 16 * (parts.length + 1));
+		render(sources, content);
+		return content.toByteArray();
+	}
+
+	private void render(VariableSources sources, ByteArrayOutputStream content) {
+		for (Object part : parts) {
+			if (part instanceof byte[]) {
+				content.writeBytes((byte[]) part);
+				continue;
+			}
+			Variable variable = (Variable) part;
+			String value = sources.lookup(variable.name);
+			if (value != null) {
+				content.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+			} else if (variable.defaultValue != null) {
+				variable.defaultValue.render(sources, content);
+			} else {
+				content.writeBytes(variable.text);
+			}
+		}
+	}
+}
@@ -19,14 +19,31 @@
 
 package fr.pilato.elasticsearch.tools.util;
 
+import com.github.luben.zstd.ZstdInputStream;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.text.StringSubstitutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.jar.JarEntry;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Setting files reader
@@ -35,6 +52,14 @@ public class SettingsReader {
 
 	private static final Logger logger = LoggerFactory.getLogger(SettingsReader.class);
 
+	private static final int DECOMPRESSION_BUFFER_SIZE = 64 * 1024;
+	private static final int IDENTITY_BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Prefix of the root dirs which are on the file system instead of within the classpath
+	 */
+	public static final String FILE_ROOT_PREFIX = "file:";
+
 	private SettingsReader() {
 		// empty
 	}
@@ -61,6 +86,28 @@ public class SettingsReader {
 		return content;
 	}
 
+	/**
+	 * Build a root dir which is read from the file system instead of the classpath. It can be given to
+	 * {@code ElasticsearchBeyonder.start()} like any other root dir.
+	 * @param dir the directory on the file system
+	 * @return the root dir
+	 */
+	public static String fileRoot(Path dir) {
+		return FILE_ROOT_PREFIX + dir.toAbsolutePath();
+	}
+
+	/**
+	 * Get the path of a file on the file system
+	 * @param path a root dir or a path within a root dir
+	 * @return the path on the file system or null if the root dir is within the classpath
+	 */
+	public static Path getFileSystemPath(String path) {
+		if (path == null || !path.startsWith(FILE_ROOT_PREFIX)) {
+			return null;
+		}
+		return Paths.get(path.substring(FILE_ROOT_PREFIX.length()));
+	}
+
 	/**
 	 * This method will read a file from the classpath and replace variables with environment variables
 	 * @param root		The root directory
@@ -69,8 +116,35 @@ public class SettingsReader {
 	 * @return The content of the file
 	 */
 	public static String getJsonContent(String root, String subdir, String name) {
-		String content = getFileContent(root, subdir, name);
-		return StringSubstitutor.replace(content, System.getenv());
+		return getJsonContent(root, subdir, name, VariableSources.ENVIRONMENT);
+	}
+
+	/**
+	 * This method will read a file from the classpath and replace variables with their values.
+	 * The file is only parsed once, see {@link ResourceTemplate}.
+	 * @param root		The root directory
+	 * @param subdir	The subdirectory
+	 * @param name		The resource name
+	 * @param sources	Where to read the values of the variables
+	 * @return The content of the file
+	 */
+	public static String getJsonContent(String root, String subdir, String name, VariableSources sources) {
+		ResourceTemplate template = ResourceTemplate.forFile(root, subdir, name);
+		return template == null ? null : template.render(sources);
+	}
+
+	/**
+	 * This method will read a file from the classpath and replace variables with their values, without decoding
+	 * the file when it has no variable
+	 * @param root		The root directory
+	 * @param subdir	The subdirectory
+	 * @param name		The resource name
+	 * @param sources	Where to read the values of the variables
+	 * @return The content of the file in UTF-8. It must not be modified.
+	 */
+	public static byte[] getJsonBytes(String root, String subdir, String name, VariableSources sources) {
+		ResourceTemplate template = ResourceTemplate.forFile(root, subdir, name);
+		return template == null ? null : template.renderBytes(sources);
 	}
 
 	/**
@@ -81,6 +155,227 @@ public class SettingsReader {
 	 * @return The content of the file
 	 */
 	public static String getFileContent(String root, String subdir, String name) {
+		byte[] content = getFileBytes(root, subdir, name);
+		return content == null ? null : new String(content, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read the content of a file from the classpath as it is, without decoding it
+	 * @param root		The root directory
+	 * @param subdir	The subdirectory
+	 * @param name		The resource name
+	 * @return The content of the file
+	 */
+	public static byte[] getFileBytes(String root, String subdir, String name) {
+		String path = getFilePath(root, subdir, name);
+		Path file = getFileSystemPath(path);
+		if (file != null) {
+			logger.debug("Reading file [{}] from the file system.", file);
+			if (!Files.exists(file)) {
+				logger.trace("Can not find [{}] on the file system.", file);
+				return null;
+			}
+			try {
+				return Files.readAllBytes(file);
+			} catch (IOException e) {
+				logger.warn("Can not read [{}].", file);
+				return null;
+			}
+		}
+		logger.debug("Reading file [{}] from the classpath.", path);
+		try (InputStream asStream = SettingsReader.class.getClassLoader().getResourceAsStream(path)) {
+			if (asStream == null) {
+				logger.trace("Can not find [{}] in class loader.", path);
+				return null;
+			}
+			return IOUtils.toByteArray(asStream);
+		} catch (IOException e) {
+			logger.warn("Can not read [{}].", path);
+			return null;
+		}
+	}
+
+	/**
+	 * Open a file from the classpath as a stream so it can be read without loading it fully in memory
+	 * @param root		The root directory
+	 * @param subdir	The subdirectory
+	 * @param name		The resource name
+	 * @return The stream or null if the file does not exist. The caller must close it.
+	 */
+	public static InputStream getFileAsStream(String root, String subdir, String name) {
+		String path = getFilePath(root, subdir, name);
+		Path file = getFileSystemPath(path);
+		if (file != null) {
+			logger.debug("Opening file [{}] from the file system.", file);
+			try {
+				return Files.exists(file) ? Files.newInputStream(file) : null;
+			} catch (IOException e) {
+				logger.warn("Can not read [{}].", file);
+				return null;
+			}
+		}
+		logger.debug("Opening file [{}] from the classpath.", path);
+		InputStream asStream = SettingsReader.class.getClassLoader().getResourceAsStream(path);
+		if (asStream == null) {
+			logger.trace("Can not find [{}] in class loader.", path);
+		}
+		return asStream;
+	}
+
+	/**
+	 * Open a data file from the classpath as a stream. Compressed files (*.gz and *.zst) are
+	 * decompressed on the fly while being read.
+	 * @param root		The root directory
+	 * @param subdir	The subdirectory
+	 * @param name		The resource name
+	 * @return The decompressed stream or null if the file does not exist. The caller must close it.
+	 * @throws IOException if the compressed stream can not be opened
+	 */
+	public static InputStream getDataFileAsStream(String root, String subdir, String name) throws IOException {
+		InputStream asStream = getFileAsStream(root, subdir, name);
+		if (asStream == null) {
+			return null;
+		}
+		try {
+			if (name.endsWith(DefaultSettings.GzipFileExtension)) {
+				logger.trace("Decompressing [{}] with gzip.", name);
+				return new GZIPInputStream(asStream, DECOMPRESSION_BUFFER_SIZE);
+			}
+			if (name.endsWith(DefaultSettings.ZstdFileExtension)) {
+				logger.trace("Decompressing [{}] with zstd.", name);
+				return ZstdSupport.decompress(asStream);
+			}
+		} catch (IOException | LinkageError e) {
+			asStream.close();
+			if (e instanceof LinkageError) {
+				throw new IOException("Can not read [" + name + "]. Add com.github.luben:zstd-jni to your classpath to load zstd files.", e);
+			}
+			throw (IOException) e;
+		}
+		return asStream;
+	}
+
+	/**
+	 * Find a data file on the file system, which is the case when the classpath is a directory and not a jar,
+	 * or when the root dir is on the file system.
+	 * Compressed files are ignored as they can not be read from the middle.
+	 * @param root		The root directory
+	 * @param subdir	The subdirectory
+	 * @param name		The resource name
+	 * @return The path of the file or null if it is not an uncompressed file on the file system
+	 */
+	public static Path getDataFilePath(String root, String subdir, String name) {
+		if (name.endsWith(DefaultSettings.GzipFileExtension) || name.endsWith(DefaultSettings.ZstdFileExtension)) {
+			return null;
+		}
+		Path file = getFileSystemPath(getFilePath(root, subdir, name));
+		if (file != null) {
+			return Files.exists(file) ? file : null;
+		}
+		URL url = SettingsReader.class.getClassLoader().getResource(getFilePath(root, subdir, name));
+		if (url == null || !"file".equals(url.getProtocol())) {
+			return null;
+		}
+		try {
+			return Paths.get(url.toURI());
+		} catch (URISyntaxException e) {
+			logger.debug("Can not get the path of [{}]: {}", url, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Identify the content of a file without reading it fully, so we can tell if it has been modified since a
+	 * previous start. A file on the file system is identified by its size, its modification date and a hash of its
+	 * first and last blocks. A file within a jar is identified by the size, date and CRC stored in the jar.
+	 * Any other file is hashed fully.
+	 * @param root		The root directory
+	 * @param subdir	The subdirectory
+	 * @param name		The resource name
+	 * @return The identity of the file or null if it does not exist
+	 * @throws IOException if the file can not be read
+	 */
+	public static String getFileIdentity(String root, String subdir, String name) throws IOException {
+		String path = getFilePath(root, subdir, name);
+		Path file = getFileSystemPath(path);
+		if (file == null) {
+			URL url = SettingsReader.class.getClassLoader().getResource(path);
+			if (url == null) {
+				return null;
+			}
+			if ("file".equals(url.getProtocol())) {
+				try {
+					file = Paths.get(url.toURI());
+				} catch (URISyntaxException e) {
+					throw new IOException("Can not get the path of [" + url + "]", e);
+				}
+			} else {
+				return getUrlIdentity(url);
+			}
+		}
+		if (!Files.exists(file)) {
+			return null;
+		}
+
+		MessageDigest digest = sha256();
+		long size;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			size = channel.size();
+			readBlock(channel, 0, digest);
+			if (size > IDENTITY_BLOCK_SIZE) {
+				readBlock(channel, Math.max(IDENTITY_BLOCK_SIZE, size - IDENTITY_BLOCK_SIZE), digest);
+			}
+		}
+		return size + ":" + Files.getLastModifiedTime(file).toMillis() + ":" + HexFormat.of().formatHex(digest.digest());
+	}
+
+	private static void readBlock(FileChannel channel, long position, MessageDigest digest) throws IOException {
+		ByteBuffer block = ByteBuffer.allocate(IDENTITY_BLOCK_SIZE);
+		while (block.hasRemaining() && channel.read(block, position + block.position()) >= 0) {
+			// reading until the block is full or the file ends
+		}
+		block.flip();
+		digest.update(block);
+	}
+
+	private static String getUrlIdentity(URL url) throws IOException {
+		URLConnection connection = url.openConnection();
+		if (connection instanceof JarURLConnection) {
+			// The jar already holds a checksum of each entry
+			JarEntry entry = ((JarURLConnection) connection).getJarEntry();
+			if (entry != null && entry.getSize() >= 0 && entry.getCrc() >= 0) {
+				return entry.getSize() + ":" + entry.getTime() + ":" + Long.toHexString(entry.getCrc());
+			}
+		}
+		MessageDigest digest = sha256();
+		try (InputStream in = new DigestInputStream(connection.getInputStream(), digest)) {
+			byte[] buffer = new byte[IDENTITY_BLOCK_SIZE];
+			while (in.read(buffer) >= 0) {
+				// only computing the digest
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Isolate the zstd-jni classes so they are only loaded when we meet a zstd file
+	 */
+	private static class ZstdSupport {
+		static InputStream decompress(InputStream in) throws IOException {
+			return new BufferedInputStream(new ZstdInputStream(in), DECOMPRESSION_BUFFER_SIZE);
+		}
+	}
+
+	private static String getFilePath(String root, String subdir, String name) {
 		String path = root;
 		if (root == null) {
 			path = DefaultSettings.ConfigDir;
@@ -89,7 +384,6 @@ public class SettingsReader {
 			path += "/" + subdir;
 		}
 		path += "/" + name;
-		logger.debug("Reading file [{}] from the classpath.", path);
-		return readFileFromClasspath(path);
+		return path;
 	}
 }
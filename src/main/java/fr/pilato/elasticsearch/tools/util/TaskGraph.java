@@ -0,0 +1,178 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small graph of tasks where each task waits only for the tasks it depends on.
+ * <br>
+ * A task can only depend on tasks which have been added before it, so the graph has no cycle and the order in which
+ * the tasks have been added is a valid sequential order. When a task fails, the tasks depending on it are skipped
+ * and the other ones still run. Errors are reported in the order in which the tasks have been added, whatever the
+ * order in which they happened.
+ */
+public class TaskGraph {
+
+	private static final Logger logger = LoggerFactory.getLogger(TaskGraph.class);
+
+	/**
+	 * A task to run
+	 */
+	@FunctionalInterface
+	public interface Task {
+		void run() throws Exception;
+	}
+
+	private static class Node {
+		private final String name;
+		private final List<Node> dependencies;
+		private final Task task;
+		private volatile Exception failure;
+		private CompletableFuture<Void> future;
+
+		private Node(String name, List<Node> dependencies, Task task) {
+			this.name = name;
+			this.dependencies = dependencies;
+			this.task = task;
+		}
+	}
+
+	private final String threadPrefix;
+	private final Map<String, Node> nodes = new LinkedHashMap<>();
+
+	/**
+	 * Create a graph
+	 * @param threadPrefix prefix of the names of the threads running the tasks
+	 */
+	public TaskGraph(String threadPrefix) {
+		this.threadPrefix = threadPrefix;
+	}
+
+	/**
+	 * Add a task
+	 * @param name unique name of the task
+	 * @param dependencies names of the tasks which must succeed before this one starts
+	 * @param task the task
+	 * @return this graph
+	 * @throws IllegalArgumentException if the name is already used or if a dependency has not been added yet
+	 */
+	public TaskGraph add(String name, Collection<String> dependencies, Task task) {
+		if (nodes.containsKey(name)) {
+			throw new IllegalArgumentException("Task [" + name + "] already exists");
+		}
+		List<Node> nodeDependencies = new ArrayList<>();
+		for (String dependency : dependencies) {
+			Node node = nodes.get(dependency);
+			if (node == null) {
+				throw new IllegalArgumentException("Task [" + name + "] depends on unknown task [" + dependency + "]");
+			}
+			nodeDependencies.add(node);
+		}
+		nodes.put(name, new Node(name, nodeDependencies, task));
+		return this;
+	}
+
+	/**
+	 * @param name the name of a task
+	 * @return true if a task with this name has been added
+	 */
+	public boolean contains(String name) {
+		return nodes.containsKey(name);
+	}
+
+	/**
+	 * Run all the tasks and wait for them
+	 * @param parallelism the maximum number of tasks running at the same time. With 1, the tasks run one after the
+	 *                    other in the calling thread, in the order they have been added, and the first failure stops.
+	 * @throws Exception the failure of the first task, in the order they have been added, which failed. The failures
+	 * of the next ones are added as suppressed exceptions.
+	 */
+	public void run(int parallelism) throws Exception {
+		if (parallelism <= 1 || nodes.size() <= 1) {
+			for (Node node : nodes.values()) {
+				node.task.run();
+			}
+			return;
+		}
+
+		AtomicInteger threads = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, nodes.size()), runnable -> {
+			Thread thread = new Thread(runnable, threadPrefix + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			for (Node node : nodes.values()) {
+				CompletableFuture<?>[] dependencies = node.dependencies.stream().map(dependency -> dependency.future)
+						.toArray(CompletableFuture[]::new);
+				// When a dependency failed, the task is skipped and its future fails as well
+				node.future = CompletableFuture.allOf(dependencies).thenRunAsync(() -> {
+					try {
+						node.task.run();
+					} catch (Exception e) {
+						node.failure = e;
+						throw new CompletionException(e);
+					}
+				}, executor);
+			}
+			try {
+				CompletableFuture.allOf(nodes.values().stream().map(node -> node.future).toArray(CompletableFuture[]::new)).join();
+			} catch (CompletionException e) {
+				// Failures are collected below
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		Exception failure = null;
+		int skipped = 0;
+		for (Node node : nodes.values()) {
+			if (node.failure != null) {
+				if (failure == null) {
+					failure = node.failure;
+				} else {
+					failure.addSuppressed(node.failure);
+				}
+			} else if (node.future.isCompletedExceptionally()) {
+				logger.debug("[{}] has been skipped as one of its dependencies failed", node.name);
+				skipped++;
+			}
+		}
+		if (failure != null) {
+			if (skipped > 0) {
+				logger.warn("[{}] tasks have been skipped as their dependencies failed", skipped);
+			}
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Where the values of the variables used within the resources, like {@code ${ES_REPLICAS}}, are read from.
+ * The first source which knows a variable wins:
+ * <ul>
+ *     <li>the variables given with {@link BeyonderOptions#setVariables(Map)}</li>
+ *     <li>the java system properties, when {@link BeyonderOptions#setSystemPropertiesAsVariables(boolean)} is set</li>
+ *     <li>the environment variables</li>
+ * </ul>
+ */
+public class VariableSources {
+
+	/**
+	 * Only the environment variables
+	 */
+	public static final VariableSources ENVIRONMENT = new VariableSources();
+
+	private Map<String, String> variables = Collections.emptyMap();
+	private boolean systemProperties = DefaultSettings.SystemPropertiesAsVariables;
+
+	/**
+	 * Get the value of a variable
+	 * @param name the variable name
+	 * @return its value or null if no source knows it
+	 */
+	public String lookup(String name) {
+		String value = variables.get(name);
+		if (value == null && systemProperties) {
+			value = System.getProperty(name);
+		}
+		if (value == null) {
+			value = System.getenv(name);
+		}
+		return value;
+	}
+
+	/**
+	 * @return the variables which are looked up first
+	 */
+	public Map<String, String> getVariables() {
+		return variables;
+	}
+
+	void setVariables(Map<String, String> variables) {
+		this.variables = Collections.unmodifiableMap(new HashMap<>(variables));
+	}
+
+	/**
+	 * @return true if the java system properties are looked up before the environment variables
+	 */
+	public boolean isSystemProperties() {
+		return systemProperties;
+	}
+
+	void setSystemProperties(boolean systemProperties) {
+		this.systemProperties = systemProperties;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.AdaptiveBulkSizing;
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class AdaptiveBulkSizingTest {
+
+    private static final int MB = 1024 * 1024;
+
+    private static AdaptiveBulkSizing start(BeyonderOptions options) {
+        AdaptiveBulkSizing sizing = options.setAdaptiveBulk(true).getAdaptiveBulkSizing();
+        sizing.start(options);
+        return sizing;
+    }
+
+    private static void fastRound(AdaptiveBulkSizing sizing) {
+        long generation = sizing.getGeneration();
+        for (int i = sizing.getConcurrentRequests(); i > 0; i--) {
+            sizing.onResponse(generation, 10, false);
+        }
+    }
+
+    @Test
+    public void testGrowsInTurnWhileFast() {
+        AdaptiveBulkSizing sizing = start(new BeyonderOptions()
+                .setBulkMaxBytes(2 * MB)
+                .setBulkMaxActions(1000)
+                .setAdaptiveBulkMaxBytes(4 * MB)
+                .setAdaptiveBulkMaxConcurrentRequests(3));
+        assertThat(sizing.getBulkMaxBytes(), is(2 * MB));
+        assertThat(sizing.getConcurrentRequests(), is(1));
+
+        fastRound(sizing);
+        assertThat(sizing.getBulkMaxBytes(), is(3 * MB));
+        assertThat(sizing.getBulkMaxActions(), is(1500));
+        assertThat(sizing.getConcurrentRequests(), is(1));
+
+        fastRound(sizing);
+        assertThat(sizing.getBulkMaxBytes(), is(3 * MB));
+        assertThat(sizing.getConcurrentRequests(), is(2));
+
+        // Both limits are reached after a few rounds
+        for (int i = 0; i < 10; i++) {
+            fastRound(sizing);
+        }
+        assertThat(sizing.getBulkMaxBytes(), is(4 * MB));
+        assertThat(sizing.getConcurrentRequests(), is(3));
+        assertThat(sizing.getIncreases(), is(4L));
+        assertThat(sizing.getBackoffs(), is(0L));
+    }
+
+    @Test
+    public void testBacksOffOncePerRound() {
+        AdaptiveBulkSizing sizing = start(new BeyonderOptions()
+                .setBulkMaxBytes(8 * MB)
+                .setBulkConcurrentRequests(4)
+                .setAdaptiveBulkTargetLatency(500));
+        long generation = sizing.getGeneration();
+
+        // A rejection halves everything
+        sizing.onResponse(generation, 10, true);
+        assertThat(sizing.getBulkMaxBytes(), is(4 * MB));
+        assertThat(sizing.getConcurrentRequests(), is(2));
+
+        // The other requests in flight were sent with the previous settings: they are ignored
+        sizing.onResponse(generation, 10, true);
+        sizing.onResponse(generation, 1000, false);
+        assertThat(sizing.getBulkMaxBytes(), is(4 * MB));
+        assertThat(sizing.getBackoffs(), is(1L));
+
+        // A slow request makes us back off as well
+        sizing.onResponse(sizing.getGeneration(), 1000, false);
+        assertThat(sizing.getBulkMaxBytes(), is(2 * MB));
+        assertThat(sizing.getConcurrentRequests(), is(1));
+        assertThat(sizing.getBackoffs(), is(2L));
+    }
+
+    @Test
+    public void testStartsOnce() {
+        BeyonderOptions options = new BeyonderOptions().setBulkMaxBytes(2 * MB);
+        AdaptiveBulkSizing sizing = start(options);
+        fastRound(sizing);
+        // A second sender keeps the current operating point
+        sizing.start(options);
+        assertThat(sizing.getBulkMaxBytes(), is(3 * MB));
+    }
+
+    @Test
+    public void testResetStartsAgainFromTheOptions() {
+        BeyonderOptions options = new BeyonderOptions()
+                .setBulkMaxBytes(2 * MB)
+                .setBulkMaxBytesInFlight(3 * MB)
+                .setAdaptiveBulkMaxBytes(4 * MB);
+        AdaptiveBulkSizing sizing = start(options);
+        long generation = sizing.getGeneration();
+        for (int i = 0; i < 10; i++) {
+            fastRound(sizing);
+        }
+        // Bounded by the bytes in flight, while the configured maximum is kept
+        assertThat(sizing.getBulkMaxBytes(), is(3 * MB));
+        assertThat(options.getAdaptiveBulkMaxBytes(), is(4 * MB));
+
+        // A new run starts from the options, and ignores the responses of the previous one
+        options.setBulkMaxBytesInFlight(10 * MB);
+        sizing.reset();
+        sizing.start(options);
+        assertThat(sizing.getBulkMaxBytes(), is(2 * MB));
+        assertThat(sizing.getIncreases(), is(0L));
+        sizing.onResponse(generation, 10, true);
+        assertThat(sizing.getBackoffs(), is(0L));
+        for (int i = 0; i < 10; i++) {
+            fastRound(sizing);
+        }
+        assertThat(sizing.getBulkMaxBytes(), is(4 * MB));
+    }
+}
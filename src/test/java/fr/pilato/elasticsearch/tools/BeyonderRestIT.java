@@ -19,6 +19,12 @@
 
 package fr.pilato.elasticsearch.tools;
 
+import fr.pilato.elasticsearch.tools.updaters.ElasticsearchCheckpointUpdater;
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.LoadCheckpoint;
+import fr.pilato.elasticsearch.tools.util.LoadListener;
+import fr.pilato.elasticsearch.tools.util.LoadMetrics;
+import fr.pilato.elasticsearch.tools.util.SettingsReader;
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
@@ -42,9 +48,15 @@ import java.io.InputStreamReader;
 import java.net.ConnectException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static fr.pilato.elasticsearch.tools.JsonUtil.asMap;
 import static fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexUpdater.isIndexExist;
@@ -53,7 +65,9 @@ import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeNoException;
+import static org.junit.Assume.assumeTrue;
 
 public class BeyonderRestIT extends AbstractBeyonderTest {
 
@@ -156,6 +170,8 @@ public class BeyonderRestIT extends AbstractBeyonderTest {
     public void cleanCluster() {
         // DELETE /twitter
         launchAndIgnoreFailure(() -> client.performRequest(new Request("DELETE", "/twitter")));
+        // DELETE /twitter-v*
+        launchAndIgnoreFailure(() -> client.performRequest(new Request("DELETE", "/twitter-v*")));
         // DELETE /test_*
         launchAndIgnoreFailure(() -> client.performRequest(new Request("DELETE", "/test_*")));
         // DELETE /person
@@ -165,12 +181,19 @@ public class BeyonderRestIT extends AbstractBeyonderTest {
         // DELETE /timeseries-*
         launchAndIgnoreFailure(() -> client.performRequest(new Request("DELETE", "/timeseries-*")));
 
+        // DELETE /beyonder-checkpoints
+        launchAndIgnoreFailure(() -> client.performRequest(new Request("DELETE", "/beyonder-checkpoints")));
+        // DELETE /beyonder-leases
+        launchAndIgnoreFailure(() -> client.performRequest(new Request("DELETE", "/beyonder-leases")));
+
         // DELETE /_ingest/pipeline/twitter_pipeline
         launchAndIgnoreFailure(() -> client.performRequest(new Request("DELETE", "/_ingest/pipeline/twitter_pipeline")));
 
         // DELETE /_template/twitter_template
         launchAndIgnoreFailure(() -> client.performRequest(new Request("DELETE", "/_template/twitter_template")));
 
+        // DELETE /_index_template/my_index_template
+        launchAndIgnoreFailure(() -> client.performRequest(new Request("DELETE", "/_index_template/my_index_template")));
         // DELETE /_index_template/template_1
         launchAndIgnoreFailure(() -> client.performRequest(new Request("DELETE", "/_index_template/template_1")));
 
@@ -418,6 +441,44 @@ public class BeyonderRestIT extends AbstractBeyonderTest {
         }
     }
 
+    @Test
+    public void testJsonDataAsBulk() throws Exception {
+        ElasticsearchBeyonder.start(client, "models/data-bulk-and-json-global-with-indices", false, new BeyonderOptions()
+                .setJsonDataAsBulk(true)
+                .setJsonDataFileNameAsId(true)
+                .setBulkMaxActions(3));
+
+        // Refresh the indices
+        client.performRequest(new Request("POST", "/_refresh"));
+
+        // Check that we have 4 documents in person index. This is coming from the 4 person json files
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/person/_search")));
+        String numberOfHits = BeanUtils.getProperty(response, "hits.total.value");
+        assertThat(numberOfHits, equalTo("4"));
+
+        // The file names have been used as ids
+        assertThat(existObjectInElasticsearch("/person/_doc/doc001"), is(true));
+        assertThat(existObjectInElasticsearch("/person/_doc/doc004"), is(true));
+    }
+
+    @Test
+    public void testRequestCompression() throws Exception {
+        BeyonderOptions options = new BeyonderOptions()
+                .setRequestCompression(true)
+                .setRequestCompressionThreshold(0);
+        ElasticsearchBeyonder.start(client, "models/data-bulk-and-json-global-with-indices", false, options);
+
+        // Refresh the indices
+        client.performRequest(new Request("POST", "/_refresh"));
+
+        // Check that we have 4 documents in person index. This is coming from the 4 person json files
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/person/_search")));
+        String numberOfHits = BeanUtils.getProperty(response, "hits.total.value");
+        assertThat(numberOfHits, equalTo("4"));
+
+        assertThat(options.getRequestCompression().getCompressedRequests(), greaterThan(0L));
+    }
+
     @Test
     public void testDataGlobal() throws Exception {
         // 1 index with 10 documents
@@ -466,6 +527,577 @@ public class BeyonderRestIT extends AbstractBeyonderTest {
         }
     }
 
+    @Test
+    public void testDataWithConcurrentBulkRequests() throws Exception {
+        // 2 indices with 10 documents + 1 global bulk file with 10 documents, sent 2 by 2 with up to 4 requests in flight
+        ElasticsearchBeyonder.start(client, "models/data-global-with-indices", false, new BeyonderOptions()
+                .setBulkMaxActions(2)
+                .setBulkConcurrentRequests(4)
+                .setBulkMaxBytesInFlight(1024));
+
+        // Refresh the indices
+        client.performRequest(new Request("POST", "/_refresh"));
+
+        for (String index : asList("twitter", "test_1", "test_2")) {
+            Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/" + index + "/_search")));
+            String numberOfHits = BeanUtils.getProperty(response, "hits.total.value");
+            assertThat(numberOfHits, equalTo("10"));
+        }
+    }
+
+    @Test
+    public void testDataWithAdaptiveBulk() throws Exception {
+        // Start with one action per bulk request. It will grow as the local cluster is fast.
+        BeyonderOptions options = new BeyonderOptions()
+                .setBulkMaxBytes(64 * 1024)
+                .setBulkMaxActions(1)
+                .setAdaptiveBulk(true);
+        ElasticsearchBeyonder.start(client, "models/data-global-with-indices", false, options);
+
+        // Refresh the indices
+        client.performRequest(new Request("POST", "/_refresh"));
+
+        for (String index : asList("twitter", "test_1", "test_2")) {
+            Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/" + index + "/_search")));
+            String numberOfHits = BeanUtils.getProperty(response, "hits.total.value");
+            assertThat(numberOfHits, equalTo("10"));
+        }
+        assertThat(options.getAdaptiveBulkSizing().getBulkMaxActions(), greaterThan(1));
+    }
+
+    @Test
+    public void testDataMetrics() throws Exception {
+        BeyonderOptions options = new BeyonderOptions().setBulkMaxActions(2);
+        List<LoadListener.Request> requests = new CopyOnWriteArrayList<>();
+        options.getLoadMetrics().addListener(requests::add);
+        ElasticsearchBeyonder.start(client, "models/data-global-with-indices", false, options);
+
+        // 30 documents sent 2 by 2 into test_1, test_2 and with the global bulk files
+        LoadMetrics metrics = options.getLoadMetrics();
+        assertThat(metrics.getTotal().getDocuments(), equalTo(30L));
+        assertThat(metrics.getTotal().getRequests(), greaterThanOrEqualTo(15L));
+        assertThat(metrics.getTotal().getFailedItems(), equalTo(0L));
+        assertThat(metrics.getIndices(), hasSize(3));
+        assertThat(metrics.getIndex(LoadMetrics.GLOBAL).getDocuments(), equalTo(10L));
+        assertThat(metrics.getFiles(), hasSize(5));
+        assertThat(metrics.getTotal().getLatency().getCount(), equalTo(metrics.getTotal().getRequests()));
+        assertThat((long) requests.size(), equalTo(metrics.getTotal().getRequests()));
+    }
+
+    @Test
+    public void testDataWithConcurrentIndices() throws Exception {
+        // 2 indices with 10 documents + 1 global bulk file with 10 documents, all loaded at the same time
+        ElasticsearchBeyonder.start(client, "models/data-global-with-indices", false, new BeyonderOptions()
+                .setIndexLoadParallelism(3));
+
+        // Refresh the indices
+        client.performRequest(new Request("POST", "/_refresh"));
+
+        for (String index : asList("twitter", "test_1", "test_2")) {
+            Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/" + index + "/_search")));
+            String numberOfHits = BeanUtils.getProperty(response, "hits.total.value");
+            assertThat(numberOfHits, equalTo("10"));
+        }
+    }
+
+    @Test
+    public void testDataWithConcurrentIndicesAndBoundedInFlight() throws Exception {
+        // 3 loads at the same time share 2 requests and 1kb in flight
+        BeyonderOptions options = new BeyonderOptions()
+                .setIndexLoadParallelism(3)
+                .setBulkMaxActions(2)
+                .setBulkConcurrentRequests(2)
+                .setBulkMaxBytesInFlight(1024);
+        ElasticsearchBeyonder.start(client, "models/data-global-with-indices", false, options);
+
+        // Refresh the indices
+        client.performRequest(new Request("POST", "/_refresh"));
+
+        for (String index : asList("twitter", "test_1", "test_2")) {
+            Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/" + index + "/_search")));
+            String numberOfHits = BeanUtils.getProperty(response, "hits.total.value");
+            assertThat(numberOfHits, equalTo("10"));
+        }
+        assertThat(options.getBulkInFlight().getPeakRequests(), lessThanOrEqualTo(2));
+        assertThat(options.getBulkInFlight().getPeakBytes(), lessThanOrEqualTo(1024));
+    }
+
+    @Test
+    public void testDataWithConcurrentIndicesAndFailures() throws Exception {
+        try {
+            ElasticsearchBeyonder.start(client, "models/data-dead-letter", false, new BeyonderOptions()
+                    .setIndexLoadParallelism(2));
+            fail("We should have failed as one document can not be indexed");
+        } catch (Exception e) {
+            assertThat(e.getMessage(), containsString("Could not load [1] items from file [bulk.ndjson]"));
+        }
+    }
+
+    @Test
+    public void testSchemaInParallel() throws Exception {
+        // The index template waits for its component templates
+        ElasticsearchBeyonder.start(client, "models/templatev2", false, new BeyonderOptions()
+                .setSchemaParallelism(4));
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/_index_template/template_1")));
+        assertThat(BeanUtils.getProperty(response, "index_templates[0].index_template.composed_of[1]"), equalTo("component2"));
+
+        // The indices are created at the same time before their data is loaded
+        ElasticsearchBeyonder.start(client, "models/data-global-with-indices", false, new BeyonderOptions()
+                .setSchemaParallelism(4));
+        client.performRequest(new Request("POST", "/_refresh"));
+        for (String index : asList("twitter", "test_1", "test_2")) {
+            response = asMap(client.performRequest(new Request("GET", "/" + index + "/_search")));
+            assertThat(BeanUtils.getProperty(response, "hits.total.value"), equalTo("10"));
+        }
+    }
+
+    @Test
+    public void testSchemaInParallelWithDateMathIndex() throws Exception {
+        // The date math index waits for the index template which applies to it
+        ElasticsearchBeyonder.start(client, "models/template-date-math", false, new BeyonderOptions()
+                .setSchemaParallelism(4));
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/my-index-*/_mapping")));
+        String index = response.keySet().iterator().next();
+        assertThat(BeanUtils.getProperty(response, index + ".mappings.properties.from_template.type"), equalTo("keyword"));
+    }
+
+    /**
+     * Compare the cost of checking if a date math index exists when thousands of indices match its pattern.
+     * Run it with -Dtests.benchmark=true and optionally -Dtests.benchmark.indices=2000.
+     */
+    @Test
+    public void benchmarkIndexExistence() throws Exception {
+        assumeTrue("Benchmarks are only run with -Dtests.benchmark=true", Boolean.getBoolean("tests.benchmark"));
+        int indices = Integer.getInteger("tests.benchmark.indices", 2000);
+        int iterations = 20;
+
+        setMaxShardsPerNode(indices + 1000);
+        try {
+            String body = "{\"settings\":{\"number_of_shards\":1,\"number_of_replicas\":0},\"mappings\":{\"properties\":{"
+                    + "\"message\":{\"type\":\"text\"},\"user\":{\"type\":\"keyword\"},\"date\":{\"type\":\"date\"}}}}";
+            for (int i = 0; i < indices; i++) {
+                Request request = new Request("PUT", String.format("/my-index-bench-%05d", i));
+                request.setJsonEntity(body);
+                client.performRequest(request);
+            }
+            String dateMathIndex = "%3Cmy-index-%7Bnow%2Fd%7D%3E";
+
+            // What was done before: downloading the settings and mappings of every matching index
+            long fullBytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                Response response = client.performRequest(new Request("GET", "/my-index-*"));
+                fullBytes = IOUtils.toByteArray(response.getEntity().getContent()).length;
+            }
+            long fullMillis = (System.nanoTime() - start) / 1_000_000;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                assertThat(isIndexExist(client, dateMathIndex), is(true));
+            }
+            long resolveMillis = (System.nanoTime() - start) / 1_000_000;
+
+            logger.info("Checking [{}] times if an index exists with [{}] matching indices: GET took [{}] ms for [{}] bytes per call, "
+                    + "_resolve/index took [{}] ms", iterations, indices, fullMillis, fullBytes, resolveMillis);
+        } finally {
+            setMaxShardsPerNode(null);
+        }
+    }
+
+    private static void setMaxShardsPerNode(Integer maxShardsPerNode) throws IOException {
+        Request request = new Request("PUT", "/_cluster/settings");
+        request.setJsonEntity("{\"persistent\":{\"cluster.max_shards_per_node\":" + maxShardsPerNode + "}}");
+        client.performRequest(request);
+    }
+
+    @Test
+    public void testWatchFileRoot() throws Exception {
+        Path dir = rootTmpDir.resolve("watched");
+        Files.createDirectories(dir.resolve("_pipelines"));
+        Files.copy(BeyonderRestIT.class.getResourceAsStream("/models/pipelines/_pipelines/twitter_pipeline.json"),
+                dir.resolve("_pipelines/twitter_pipeline.json"));
+        BeyonderOptions options = new BeyonderOptions().setWatchDebounce(100);
+        ElasticsearchBeyonder.start(client, SettingsReader.fileRoot(dir), false, options);
+        assertThat(isPipelineExist(client, "twitter_pipeline"), is(true));
+
+        try (ElasticsearchBeyonderWatcher watcher = ElasticsearchBeyonderWatcher.watch(client, dir, options)) {
+            Files.writeString(dir.resolve("_pipelines/twitter_pipeline.json"),
+                    "{\"description\":\"Changed\",\"processors\":[{\"set\":{\"field\":\"foo\",\"value\":\"baz\"}}]}");
+            for (int i = 0; i < 100 && watcher.getApplied() == 0; i++) {
+                Thread.sleep(100);
+            }
+            assertThat(watcher.getApplied(), is(1L));
+        }
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/_ingest/pipeline/twitter_pipeline")));
+        assertThat(BeanUtils.getProperty(response, "twitter_pipeline.description"), equalTo("Changed"));
+    }
+
+    @Test
+    public void testIndexMigration() throws Exception {
+        Path dir = rootTmpDir.resolve("migrated");
+        Files.createDirectories(dir.resolve("twitter"));
+        Files.writeString(dir.resolve("twitter/_settings.json"), "{\"mappings\":{\"properties\":{\"message\":{\"type\":\"text\"}}}}");
+        BeyonderOptions options = new BeyonderOptions().setIndexMigration(true).setIndexMigrationPollInterval(100);
+        ElasticsearchBeyonder.start(client, SettingsReader.fileRoot(dir), false, options);
+        assertThat(asMap(client.performRequest(new Request("GET", "/_alias/twitter"))).keySet(), contains("twitter-v1"));
+
+        Request bulk = new Request("POST", "/twitter/_bulk");
+        bulk.addParameter("refresh", "true");
+        bulk.setJsonEntity("{\"index\":{\"_id\":\"1\"}}\n{\"message\":\"foo\"}\n{\"index\":{\"_id\":\"2\"}}\n{\"message\":\"bar\"}\n");
+        client.performRequest(bulk);
+
+        // A text field can not become a keyword field
+        Files.writeString(dir.resolve("twitter/_settings.json"), "{\"mappings\":{\"properties\":{\"message\":{\"type\":\"keyword\"}}}}");
+        ElasticsearchBeyonder.start(client, SettingsReader.fileRoot(dir), false, options);
+        assertThat(asMap(client.performRequest(new Request("GET", "/_alias/twitter"))).keySet(), contains("twitter-v2"));
+        assertThat(isIndexExist(client, "twitter-v1"), is(false));
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/twitter/_mapping")));
+        assertThat(BeanUtils.getProperty(response, "twitter-v2.mappings.properties.message.type"), equalTo("keyword"));
+        response = asMap(client.performRequest(new Request("GET", "/twitter/_count")));
+        assertThat(BeanUtils.getProperty(response, "count"), equalTo("2"));
+
+        // Nothing changed so nothing is migrated
+        ElasticsearchBeyonder.start(client, SettingsReader.fileRoot(dir), false, options);
+        assertThat(asMap(client.performRequest(new Request("GET", "/_alias/twitter"))).keySet(), contains("twitter-v2"));
+    }
+
+    @Test
+    public void testIndexMigrationOfDateMathIndices() throws Exception {
+        // Date math and rollover indices are not migrated
+        for (String root : asList("models/date-math-indices", "models/rollover-date-maths")) {
+            ElasticsearchBeyonder.start(client, root, false, new BeyonderOptions().setIndexMigration(true));
+        }
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/my-index-*,timeseries-*/_alias")));
+        assertThat(response.size(), is(2));
+        for (String index : response.keySet()) {
+            assertThat(index, not(containsString("-v1")));
+            assertThat(index, not(containsString("%")));
+        }
+    }
+
+    @Test
+    public void testIndexMigrationOfAnExistingIndex() throws Exception {
+        Request index = new Request("PUT", "/twitter/_doc/1");
+        index.addParameter("refresh", "true");
+        index.setJsonEntity("{\"message\":\"foo\"}");
+        client.performRequest(index);
+
+        // The index becomes an alias of its first version
+        ElasticsearchBeyonder.start(client, "models/oneindexonetype", false, new BeyonderOptions()
+                .setIndexMigration(true)
+                .setIndexMigrationSlices(2)
+                .setIndexMigrationRequestsPerSecond(1000));
+        assertThat(asMap(client.performRequest(new Request("GET", "/_alias/twitter"))).keySet(), contains("twitter-v1"));
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/twitter/_count")));
+        assertThat(BeanUtils.getProperty(response, "count"), equalTo("1"));
+    }
+
+    @Test
+    public void testLease() throws Exception {
+        // 4 instances start at the same time but only one of them loads the global bulk files
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> starts = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                starts.add(executor.submit(() -> {
+                    ElasticsearchBeyonder.start(client, "models/data-global-with-indices", false, new BeyonderOptions()
+                            .setLease(true));
+                    return null;
+                }));
+            }
+            for (Future<?> start : starts) {
+                start.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        client.performRequest(new Request("POST", "/_refresh"));
+        for (String index : asList("twitter", "test_1", "test_2")) {
+            Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/" + index + "/_search")));
+            assertThat(BeanUtils.getProperty(response, "hits.total.value"), equalTo("10"));
+        }
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/beyonder-leases/_doc/models%2Fdata-global-with-indices")));
+        assertThat(BeanUtils.getProperty(response, "_source.state"), equalTo("completed"));
+        assertThat(BeanUtils.getProperty(response, "_source.configuration"), notNullValue());
+
+        // An instance starting later with the same configuration does not apply it again
+        String seqNo = BeanUtils.getProperty(response, "_seq_no");
+        ElasticsearchBeyonder.start(client, "models/data-global-with-indices", false, new BeyonderOptions()
+                .setLease(true));
+        response = asMap(client.performRequest(new Request("GET", "/beyonder-leases/_doc/models%2Fdata-global-with-indices")));
+        assertThat(BeanUtils.getProperty(response, "_seq_no"), equalTo(seqNo));
+    }
+
+    @Test
+    public void testLeaseTakeover() throws Exception {
+        // An instance died while holding the lease
+        Request lock = new Request("PUT", "/beyonder-leases/_doc/models%2Fdata-one-index");
+        lock.addParameter("refresh", "true");
+        lock.setJsonEntity("{\"owner\":\"dead\",\"state\":\"running\",\"updated\":0}");
+        client.performRequest(lock);
+
+        long start = System.currentTimeMillis();
+        ElasticsearchBeyonder.start(client, "models/data-one-index", false, new BeyonderOptions()
+                .setLease(true)
+                .setLeaseTtl(1000));
+        assertThat(System.currentTimeMillis() - start, greaterThanOrEqualTo(1000L));
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/beyonder-leases/_doc/models%2Fdata-one-index")));
+        assertThat(BeanUtils.getProperty(response, "_source.state"), equalTo("completed"));
+
+        // The lease is held and renewed by someone else for longer than we accept to wait
+        client.performRequest(lock);
+        try {
+            ElasticsearchBeyonder.start(client, "models/data-one-index", false, new BeyonderOptions()
+                    .setLease(true)
+                    .setLeaseTtl(60000)
+                    .setLeaseWaitTimeout(500));
+            fail("We should have failed as the lease is held by someone else");
+        } catch (Exception e) {
+            assertThat(e.getMessage(), containsString("Could not acquire lease [models/data-one-index] held by [dead]"));
+        }
+    }
+
+    @Test
+    public void testSkipUnchangedResources() throws Exception {
+        for (String root : asList("models/templatev2", "models/pipelines", "models/index-lifecycle")) {
+            BeyonderOptions options = new BeyonderOptions().setSkipUnchangedResources(true);
+            ElasticsearchBeyonder.start(client, root, false, options);
+            assertThat(options.getResourceHashing().getSkipped(), is(0L));
+            long applied = options.getResourceHashing().getApplied();
+            assertThat(applied, greaterThan(0L));
+
+            // Nothing changed so nothing is sent again
+            options = new BeyonderOptions().setSkipUnchangedResources(true);
+            ElasticsearchBeyonder.start(client, root, false, options);
+            assertThat(options.getResourceHashing().getApplied(), is(0L));
+            assertThat(options.getResourceHashing().getSkipped(), is(applied));
+        }
+
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/_ilm/policy/index_lifecycle")));
+        assertThat(BeanUtils.getProperty(response, "index_lifecycle.policy._meta.beyonder_hash"), notNullValue());
+
+        // Without the option, the resources are always sent
+        BeyonderOptions options = new BeyonderOptions();
+        ElasticsearchBeyonder.start(client, "models/templatev2", false, options);
+        assertThat(options.getResourceHashing().getApplied(), is(3L));
+        assertThat(options.getResourceHashing().getSkipped(), is(0L));
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        BeyonderOptions options = new BeyonderOptions().setPrefetch(true);
+        ElasticsearchBeyonder.start(client, "models/templatev2", false, options);
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/_index_template/template_1")));
+        assertThat(BeanUtils.getProperty(response, "index_templates[0].index_template.composed_of[1]"), equalTo("component2"));
+
+        // The 3 templates and the missing _aliases.json file have been read in advance
+        assertThat(options.getResourcePrefetcher().getHits(), is(4L));
+        assertThat(options.getResourcePrefetcher().getMisses(), is(0L));
+    }
+
+    @Test
+    public void testClusterSnapshot() throws Exception {
+        // An older date math index exists so today's index is not created
+        client.performRequest(new Request("PUT", "/%3Cmy-index-%7Bnow%2Fd-1d%7D%3E"));
+        ElasticsearchBeyonder.start(client, "models/date-math-indices", false, new BeyonderOptions()
+                .setClusterSnapshot(true));
+        client.performRequest(new Request("POST", "/_refresh"));
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/my-index-*/_search")));
+        assertThat(BeanUtils.getProperty(response, "hits.total.value"), equalTo("0"));
+
+        // The indices are created and loaded once. The global bulk files are loaded each time.
+        for (int i = 0; i < 2; i++) {
+            ElasticsearchBeyonder.start(client, "models/data-global-with-indices", false, new BeyonderOptions()
+                    .setClusterSnapshot(true)
+                    .setSchemaParallelism(4));
+        }
+        client.performRequest(new Request("POST", "/_refresh"));
+        for (String index : asList("test_1", "test_2")) {
+            response = asMap(client.performRequest(new Request("GET", "/" + index + "/_search")));
+            assertThat(BeanUtils.getProperty(response, "hits.total.value"), equalTo("10"));
+        }
+    }
+
+    @Test
+    public void testDataWithParallelFileReaders() throws Exception {
+        // The bulk files are bigger than 100 bytes so they are memory mapped and read by 3 threads
+        ElasticsearchBeyonder.start(client, "models/data-global-with-indices", false, new BeyonderOptions()
+                .setBulkMaxBytes(100)
+                .setBulkFileReaders(3)
+                .setBulkConcurrentRequests(3));
+
+        // Refresh the indices
+        client.performRequest(new Request("POST", "/_refresh"));
+
+        for (String index : asList("twitter", "test_1", "test_2")) {
+            Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/" + index + "/_search")));
+            String numberOfHits = BeanUtils.getProperty(response, "hits.total.value");
+            assertThat(numberOfHits, equalTo("10"));
+        }
+    }
+
+    @Test
+    public void testDataWithDeadLetterFile() throws Exception {
+        // 1 index with 3 documents, one of them can not be indexed
+        Path deadLetterFile = rootTmpDir.resolve("dead-letter.ndjson");
+        ElasticsearchBeyonder.start(client, "models/data-dead-letter", false, new BeyonderOptions()
+                .setDeadLetterFile(deadLetterFile));
+
+        // Refresh the indices
+        client.performRequest(new Request("POST", "/_refresh"));
+
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/twitter/_search")));
+        String numberOfHits = BeanUtils.getProperty(response, "hits.total.value");
+        assertThat(numberOfHits, equalTo("2"));
+
+        // The failed document is in the dead letter file with its action line
+        List<String> lines = Files.readAllLines(deadLetterFile);
+        assertThat(lines, hasSize(2));
+        assertThat(lines.get(1), containsString("message 2"));
+    }
+
+    @Test
+    public void testDataWithFailuresAndNoDeadLetterFile() throws Exception {
+        try {
+            ElasticsearchBeyonder.start(client, "models/data-dead-letter");
+            fail("We should have failed as one document can not be indexed");
+        } catch (Exception e) {
+            assertThat(e.getMessage(), containsString("Could not load [1] items from file [bulk.ndjson]"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> flatSettings(String index) throws IOException {
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/" + index + "/_settings?flat_settings=true")));
+        return (Map<String, Object>) ((Map<String, Object>) response.get(index)).get("settings");
+    }
+
+    @Test
+    public void testDataWithIndexTuning() throws Exception {
+        ElasticsearchBeyonder.start(client, "models/data-global-with-indices", false, new BeyonderOptions()
+                .setTuneIndicesForLoad(true));
+
+        // The indices have been refreshed once the data has been loaded
+        for (String index : asList("twitter", "test_1", "test_2")) {
+            Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/" + index + "/_search")));
+            String numberOfHits = BeanUtils.getProperty(response, "hits.total.value");
+            assertThat(numberOfHits, equalTo("10"));
+
+            // The settings are back to their defaults
+            assertThat(flatSettings(index), not(hasKey("index.refresh_interval")));
+            assertThat(flatSettings(index), hasEntry("index.number_of_replicas", "1"));
+        }
+    }
+
+    @Test
+    public void testDataWithIndexTuningAndFailures() throws Exception {
+        try {
+            ElasticsearchBeyonder.start(client, "models/data-dead-letter", false, new BeyonderOptions()
+                    .setTuneIndicesForLoad(true));
+            fail("We should have failed as one document can not be indexed");
+        } catch (Exception e) {
+            assertThat(e.getMessage(), containsString("Could not load [1] items from file [bulk.ndjson]"));
+        }
+
+        // The settings have been restored anyway
+        assertThat(flatSettings("twitter"), not(hasKey("index.refresh_interval")));
+        assertThat(flatSettings("twitter"), hasEntry("index.number_of_replicas", "1"));
+    }
+
+    @Test
+    public void testDataWithResumableLoad() throws Exception {
+        // The load fails as one document can not be indexed
+        try {
+            ElasticsearchBeyonder.start(client, "models/data-dead-letter", false, new BeyonderOptions()
+                    .setResumableLoad(true));
+            fail("We should have failed as one document can not be indexed");
+        } catch (Exception e) {
+            assertThat(e.getMessage(), containsString("Could not load [1] items from file [bulk.ndjson]"));
+        }
+        String checkpoint = "/beyonder-checkpoints/_doc/" + LoadCheckpoint.id(
+                ElasticsearchCheckpointUpdater.group("models/data-dead-letter", "twitter"), "bulk.ndjson");
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", checkpoint)));
+        assertThat(BeanUtils.getProperty(response, "_source.completed"), equalTo("false"));
+
+        // The index exists now, but its load is resumed
+        Path deadLetterFile = rootTmpDir.resolve("resumed-dead-letter.ndjson");
+        ElasticsearchBeyonder.start(client, "models/data-dead-letter", false, new BeyonderOptions()
+                .setResumableLoad(true)
+                .setDeadLetterFile(deadLetterFile));
+        response = asMap(client.performRequest(new Request("GET", checkpoint)));
+        assertThat(BeanUtils.getProperty(response, "_source.completed"), equalTo("true"));
+        assertThat(Files.readAllLines(deadLetterFile), hasSize(2));
+
+        // Nothing is loaded anymore
+        client.performRequest(new Request("POST", "/_refresh"));
+        String numberOfHits = BeanUtils.getProperty(asMap(client.performRequest(new Request("GET", "/twitter/_search"))), "hits.total.value");
+        ElasticsearchBeyonder.start(client, "models/data-dead-letter", false, new BeyonderOptions()
+                .setResumableLoad(true)
+                .setDeadLetterFile(deadLetterFile));
+        client.performRequest(new Request("POST", "/_refresh"));
+        assertThat(BeanUtils.getProperty(asMap(client.performRequest(new Request("GET", "/twitter/_search"))), "hits.total.value"),
+                equalTo(numberOfHits));
+        assertThat(Files.readAllLines(deadLetterFile), hasSize(2));
+    }
+
+    @Test
+    public void testResumableLoadStoppedAfterIndexCreation() throws Exception {
+        Path dir = rootTmpDir.resolve("resumable");
+        Files.createDirectories(dir.resolve("twitter/_data"));
+        Files.writeString(dir.resolve("twitter/_settings.json"), "{\"mappings\":{\"properties\":{\"message\":{\"type\":\"text\"}}}}");
+        Files.writeString(dir.resolve("twitter/_data/bulk.ndjson"),
+                "{\"index\":{}}\n{\"message\":\"foo\"}\n{\"index\":{}}\n{\"message\":\"bar\"}\n");
+        // The aliases fail once the index has been created, before its data is loaded
+        Files.writeString(dir.resolve("_aliases.json"), "{\"actions\":[{\"remove\":{\"index\":\"missing\",\"alias\":\"test\"}}]}");
+        String root = SettingsReader.fileRoot(dir);
+        try {
+            ElasticsearchBeyonder.start(client, root, false, new BeyonderOptions().setResumableLoad(true));
+            fail("We should have failed as the aliases refer to a missing index");
+        } catch (Exception e) {
+            assertThat(isIndexExist(client, "twitter"), is(true));
+        }
+
+        // The index exists now, but its data is loaded
+        Files.delete(dir.resolve("_aliases.json"));
+        ElasticsearchBeyonder.start(client, root, false, new BeyonderOptions().setResumableLoad(true));
+        client.performRequest(new Request("POST", "/_refresh"));
+        assertThat(BeanUtils.getProperty(asMap(client.performRequest(new Request("GET", "/twitter/_search"))), "hits.total.value"),
+                equalTo("2"));
+    }
+
+    @Test
+    public void testJsonDataWithResumableLoad() throws Exception {
+        String root = "models/data-bulk-and-json-global-with-indices";
+        ElasticsearchBeyonder.start(client, root, false, new BeyonderOptions().setResumableLoad(true));
+        client.performRequest(new Request("POST", "/_refresh"));
+        assertThat(BeanUtils.getProperty(asMap(client.performRequest(new Request("GET", "/person/_search"))), "hits.total.value"),
+                equalTo("4"));
+
+        // The load stopped before the last json file has been checkpointed
+        Request interrupt = new Request("POST", "/beyonder-checkpoints/_update/" + LoadCheckpoint.id(
+                ElasticsearchCheckpointUpdater.group(root, "person"), "doc004.json"));
+        interrupt.addParameter("refresh", "true");
+        interrupt.setJsonEntity("{\"doc\":{\"completed\":false}}");
+        client.performRequest(interrupt);
+
+        // Only this file is loaded again
+        ElasticsearchBeyonder.start(client, root, false, new BeyonderOptions().setResumableLoad(true));
+        client.performRequest(new Request("POST", "/_refresh"));
+        assertThat(BeanUtils.getProperty(asMap(client.performRequest(new Request("GET", "/person/_search"))), "hits.total.value"),
+                equalTo("5"));
+
+        // With the bulk API, the documents without an id can not be loaded again without duplicates
+        client.performRequest(interrupt);
+        try {
+            ElasticsearchBeyonder.start(client, root, false, new BeyonderOptions()
+                    .setResumableLoad(true)
+                    .setJsonDataAsBulk(true));
+            fail("We should have failed as the json documents have no id");
+        } catch (Exception e) {
+            assertThat(e.getMessage(), containsString("Could not resume the load of the json files"));
+        }
+    }
+
     @Test
     public void testDataMoreIndices() throws Exception {
         // 2 indices with 10 documents each
@@ -507,6 +1139,22 @@ public class BeyonderRestIT extends AbstractBeyonderTest {
         assertThat(numberOfHits, equalTo("10"));
     }
 
+    @Test
+    public void testDataCompressed() throws Exception {
+        // 1 index with 5 documents in a gzip file and 5 documents in a zstd file
+        testBeyonder("models/data-compressed",
+                singletonList("twitter"),
+                null, null, null, null);
+
+        // Refresh the indices
+        client.performRequest(new Request("POST", "/_refresh"));
+
+        // Check that we have 10 documents in twitter index
+        Map<String, Object> response = asMap(client.performRequest(new Request("GET", "/twitter/_search")));
+        String numberOfHits = BeanUtils.getProperty(response, "hits.total.value");
+        assertThat(numberOfHits, equalTo("10"));
+    }
+
     @Test
     public void testDataShouldNotBeLoadedTwice() throws Exception {
         // 2 indices with 10 documents each
@@ -0,0 +1,137 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.BulkInFlight;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+public class BulkInFlightTest {
+
+    private static BulkInFlight start(BeyonderOptions options) {
+        BulkInFlight inFlight = options.getBulkInFlight();
+        inFlight.start(options);
+        return inFlight;
+    }
+
+    private static CompletableFuture<Integer> acquireLater(BulkInFlight inFlight, int length) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return inFlight.acquire(length);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private static void assertBlocked(CompletableFuture<Integer> acquired) throws Exception {
+        try {
+            acquired.get(200, TimeUnit.MILLISECONDS);
+            fail("acquire should have been blocked");
+        } catch (TimeoutException expected) {
+        }
+    }
+
+    @Test
+    public void testBoundsRequests() throws Exception {
+        BulkInFlight inFlight = start(new BeyonderOptions()
+                .setBulkConcurrentRequests(2)
+                .setBulkMaxBytesInFlight(1000));
+        int first = inFlight.acquire(100);
+        inFlight.acquire(100);
+
+        CompletableFuture<Integer> third = acquireLater(inFlight, 100);
+        assertBlocked(third);
+        inFlight.release(first);
+        assertThat(third.get(10, TimeUnit.SECONDS), is(100));
+        assertThat(inFlight.getPeakRequests(), is(2));
+        assertThat(inFlight.getPeakBytes(), is(200));
+    }
+
+    @Test
+    public void testBoundsBytes() throws Exception {
+        BulkInFlight inFlight = start(new BeyonderOptions()
+                .setBulkConcurrentRequests(10)
+                .setBulkMaxBytesInFlight(1000));
+        int first = inFlight.acquire(600);
+
+        CompletableFuture<Integer> second = acquireLater(inFlight, 600);
+        assertBlocked(second);
+        inFlight.release(first);
+        assertThat(second.get(10, TimeUnit.SECONDS), is(600));
+        assertThat(inFlight.getPeakBytes(), is(600));
+    }
+
+    @Test
+    public void testBigRequestIsAlone() throws Exception {
+        BulkInFlight inFlight = start(new BeyonderOptions()
+                .setBulkConcurrentRequests(10)
+                .setBulkMaxBytesInFlight(1000));
+        int small = inFlight.acquire(10);
+
+        // The big request waits for the small one and then takes all the bytes
+        CompletableFuture<Integer> big = acquireLater(inFlight, 5000);
+        assertBlocked(big);
+
+        // Requests asking after the big one wait for it
+        Thread.sleep(50);
+        CompletableFuture<Integer> after = acquireLater(inFlight, 10);
+        assertBlocked(after);
+
+        inFlight.release(small);
+        int bigPermits = big.get(10, TimeUnit.SECONDS);
+        assertThat(bigPermits, is(1000));
+        assertBlocked(after);
+        inFlight.release(bigPermits);
+        assertThat(after.get(10, TimeUnit.SECONDS), is(10));
+    }
+
+    @Test
+    public void testResetReadsTheLimitsAgain() throws Exception {
+        BeyonderOptions options = new BeyonderOptions().setBulkConcurrentRequests(1);
+        BulkInFlight inFlight = start(options);
+        inFlight.release(inFlight.acquire(100));
+        assertThat(inFlight.getPeakRequests(), is(1));
+
+        // Without a reset, the limits of the run are kept
+        options.setBulkConcurrentRequests(2);
+        inFlight.start(options);
+        int first = inFlight.acquire(100);
+        CompletableFuture<Integer> second = acquireLater(inFlight, 100);
+        assertBlocked(second);
+        inFlight.release(first);
+        inFlight.release(second.get(10, TimeUnit.SECONDS));
+
+        inFlight.reset();
+        inFlight.start(options);
+        assertThat(inFlight.getPeakRequests(), is(0));
+        inFlight.acquire(100);
+        inFlight.acquire(100);
+        assertThat(inFlight.getPeakRequests(), is(2));
+    }
+}
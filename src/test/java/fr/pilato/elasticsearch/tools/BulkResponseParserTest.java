@@ -0,0 +1,67 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.BulkResponseParser;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+public class BulkResponseParserTest {
+
+    private static List<BulkResponseParser.ItemFailure> parse(String json) throws IOException {
+        return BulkResponseParser.parseFailures(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testNoErrors() throws IOException {
+        assertThat(parse("{\"errors\":false,\"items\":[{\"index\":{\"status\":201}}]}"), hasSize(0));
+        assertThat(parse("{\"errors\":false}"), hasSize(0));
+    }
+
+    @Test
+    public void testFailedItems() throws IOException {
+        List<BulkResponseParser.ItemFailure> failures = parse("{\"errors\":true,\"items\":[" +
+                "{\"index\":{\"status\":201}}," +
+                "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected\"}}}," +
+                "{\"delete\":{\"status\":404}}," +
+                "{\"create\":{\"status\":400,\"error\":{\"type\":\"document_parsing_exception\",\"reason\":\"failed to parse\"," +
+                "\"caused_by\":{\"type\":\"number_format_exception\"}}}}" +
+                "]}");
+        assertThat(failures, hasSize(2));
+
+        assertThat(failures.get(0).getPosition(), is(1));
+        assertThat(failures.get(0).getStatus(), is(429));
+        assertThat(failures.get(0).getType(), is("es_rejected_execution_exception"));
+        assertThat(failures.get(0).isRetryable(), is(true));
+
+        assertThat(failures.get(1).getPosition(), is(3));
+        assertThat(failures.get(1).getStatus(), is(400));
+        assertThat(failures.get(1).getReason(), is("failed to parse"));
+        assertThat(failures.get(1).isRetryable(), is(false));
+    }
+}
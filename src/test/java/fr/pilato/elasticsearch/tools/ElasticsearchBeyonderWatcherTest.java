@@ -0,0 +1,107 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.ResourceList;
+import fr.pilato.elasticsearch.tools.util.SettingsReader;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+public class ElasticsearchBeyonderWatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+    private RestClient client;
+
+    @Before
+    public void createRootDir() throws Exception {
+        dir = folder.getRoot().toPath();
+        Files.createDirectories(dir.resolve("_pipelines"));
+        Files.createDirectories(dir.resolve("twitter/_data"));
+        Files.writeString(dir.resolve("_pipelines/my_pipeline.json"), "{\"processors\":[]}");
+        Files.writeString(dir.resolve("twitter/_settings.json"), "{}");
+        Files.writeString(dir.resolve("twitter/_data/bulk.ndjson"), "");
+        // Nothing listens there, so each resource we apply fails fast
+        client = RestClient.builder(new HttpHost("127.0.0.1", 1)).build();
+    }
+
+    @After
+    public void closeClient() throws Exception {
+        client.close();
+    }
+
+    private static void awaitValue(LongSupplier value, long expected) throws InterruptedException {
+        for (int i = 0; i < 100 && value.getAsLong() < expected; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(value.getAsLong(), is(expected));
+    }
+
+    @Test
+    public void testFileRoot() throws Exception {
+        String root = SettingsReader.fileRoot(dir);
+        assertThat(ResourceList.findIndexNames(root), contains("twitter"));
+        assertThat(ResourceList.getResourceNames(root, "_pipelines"), contains("my_pipeline"));
+        assertThat(ResourceList.findBulkFiles(root, "twitter"), contains("bulk.ndjson"));
+        assertThat(SettingsReader.getJsonContent(root, "_pipelines", "my_pipeline.json"), is("{\"processors\":[]}"));
+    }
+
+    @Test
+    public void testOnlyChangedResourcesAreApplied() throws Exception {
+        try (ElasticsearchBeyonderWatcher watcher = ElasticsearchBeyonderWatcher.watch(client, dir, new BeyonderOptions()
+                .setWatchDebounce(200))) {
+            // Writing the same content or a data file does nothing
+            Files.writeString(dir.resolve("_pipelines/my_pipeline.json"), "{\"processors\":[]}");
+            Files.writeString(dir.resolve("twitter/_data/bulk.ndjson"), "{\"index\":{}}\n{}\n");
+            Thread.sleep(1000);
+            assertThat(watcher.getFailed(), is(0L));
+
+            // A burst of changes of the same file is applied once
+            for (int i = 0; i < 5; i++) {
+                Files.writeString(dir.resolve("_pipelines/my_pipeline.json"), "{\"description\":\"" + i + "\",\"processors\":[]}");
+            }
+            awaitValue(watcher::getFailed, 1);
+
+            // A new index dir is created
+            Files.createDirectories(dir.resolve("person"));
+            Files.writeString(dir.resolve("person/_settings.json"), "{}");
+            awaitValue(watcher::getFailed, 2);
+            Thread.sleep(500);
+            assertThat(watcher.getFailed(), is(2L));
+            assertThat(watcher.getApplied(), is(0L));
+        }
+    }
+}
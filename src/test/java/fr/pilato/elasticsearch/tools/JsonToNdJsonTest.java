@@ -0,0 +1,52 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.JsonToNdJson;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class JsonToNdJsonTest {
+
+    private static String convert(String json, String id) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonToNdJson.writeIndexItem(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), id, out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testPrettyPrintedDocument() throws IOException {
+        assertThat(convert("{\n  \"name\": \"John Doe\",\n  \"tags\": [ \"a\",\n \"b\" ],\n  \"lat\": 48.150000000000000000001\n}\n", null),
+                is("{\"index\":{}}\n{\"name\":\"John Doe\",\"tags\":[\"a\",\"b\"],\"lat\":48.150000000000000000001}\n"));
+    }
+
+    @Test
+    public void testDocumentWithId() throws IOException {
+        assertThat(convert("{ \"name\": \"John \\\"The\\\" Doe\" }", "doc\"001"),
+                is("{\"index\":{\"_id\":\"doc\\\"001\"}}\n{\"name\":\"John \\\"The\\\" Doe\"}\n"));
+    }
+}
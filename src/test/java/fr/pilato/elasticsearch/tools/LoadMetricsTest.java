@@ -0,0 +1,99 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.LatencyHistogram;
+import fr.pilato.elasticsearch.tools.util.LoadListener;
+import fr.pilato.elasticsearch.tools.util.LoadMetrics;
+import fr.pilato.elasticsearch.tools.util.LoadStats;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class LoadMetricsTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getPercentile(50), is(0L));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertThat(histogram.getCount(), is(1000L));
+        assertThat(histogram.getMax(), is(1000L));
+        // Buckets are at most 1/16 wide
+        assertThat(histogram.getPercentile(50), allOf(greaterThanOrEqualTo(500L), lessThanOrEqualTo(500L + 500L / 16)));
+        assertThat(histogram.getPercentile(99), allOf(greaterThanOrEqualTo(990L), lessThanOrEqualTo(1000L)));
+        assertThat(histogram.getPercentile(100), is(1000L));
+    }
+
+    @Test
+    public void testSmallLatenciesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(7);
+        histogram.record(7);
+        histogram.record(Long.MAX_VALUE);
+        assertThat(histogram.getPercentile(25), is(3L));
+        assertThat(histogram.getPercentile(50), is(7L));
+        assertThat(histogram.getPercentile(100), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testMetricsPerFileIndexAndTotal() {
+        LoadMetrics metrics = new LoadMetrics();
+        List<LoadListener.Request> requests = new ArrayList<>();
+        metrics.addListener(requests::add);
+
+        metrics.started("twitter", "bulk.ndjson");
+        metrics.record("twitter", "bulk.ndjson", 0, 10, 1000, 20, 2, 1);
+        metrics.record("twitter", "bulk.ndjson", 1, 2, 200, 30, 0, 0);
+        metrics.started(null, "bulk.ndjson");
+        metrics.record(null, "bulk.ndjson", 0, 5, 500, 10, 0, 0);
+
+        LoadStats file = metrics.getFile("twitter", "bulk.ndjson");
+        assertThat(file.getDocuments(), is(9L));
+        assertThat(file.getBytes(), is(1000L));
+        assertThat(file.getRequests(), is(2L));
+        assertThat(file.getRetries(), is(1L));
+        assertThat(file.getRejectedItems(), is(2L));
+        assertThat(file.getFailedItems(), is(1L));
+        assertThat(file.getLatency().getMax(), is(30L));
+
+        assertThat(metrics.getIndex(LoadMetrics.GLOBAL).getDocuments(), is(5L));
+        assertThat(metrics.getIndex("person"), nullValue());
+        assertThat(metrics.getIndices(), hasSize(2));
+        assertThat(metrics.getTotal().getDocuments(), is(14L));
+        assertThat(metrics.getTotal().getBytes(), is(1500L));
+
+        assertThat(requests, hasSize(3));
+        assertThat(requests.get(2).getIndex(), is(LoadMetrics.GLOBAL));
+        assertThat(requests.get(0).getIndexedItems(), is(7));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.MappedNdJsonBulkReader;
+import fr.pilato.elasticsearch.tools.util.NdJsonBulkReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.startsWith;
+
+public class MappedNdJsonBulkReaderTest {
+
+    private static final String INDEX = "{ \"index\" : { } }\n";
+    private static final String DELETE = "{ \"delete\" : { \"_id\" : \"1\" } }\n";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static String doc(int i) {
+        // Documents of different sizes so the range bounds fall anywhere
+        return "{ \"message\" : \"message " + i + "\", \"padding\" : \"" + "x".repeat(i % 37) + "\" }\n";
+    }
+
+    private List<String> readChunks(String ndjson, int ranges, int maxBytes, int maxActions) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.writeString(file, ndjson);
+        List<String> chunks = new ArrayList<>();
+        for (MappedNdJsonBulkReader reader : MappedNdJsonBulkReader.open(file, ranges, maxBytes, maxActions)) {
+            NdJsonBulkReader.Chunk chunk;
+            while ((chunk = reader.next()) != null) {
+                chunks.add(new String(chunk.getData(), 0, chunk.getLength(), StandardCharsets.UTF_8));
+            }
+        }
+        return chunks;
+    }
+
+    @Test
+    public void testRangesStartOnActions() throws IOException {
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            ndjson.append(i % 10 == 0 ? DELETE : INDEX + doc(i));
+        }
+
+        for (int ranges : new int[]{1, 2, 7, 64}) {
+            List<String> chunks = readChunks(ndjson.toString(), ranges, 2000, 50);
+            for (String chunk : chunks) {
+                assertThat(chunk, anyOf(startsWith(INDEX), startsWith(DELETE)));
+                assertThat(chunk.length(), lessThanOrEqualTo(2000));
+            }
+            // Nothing is lost or duplicated and ranges are read in the file order
+            assertThat(String.join("", chunks), is(ndjson.toString()));
+        }
+    }
+
+    @Test
+    public void testSourcesLookingLikeActions() throws IOException {
+        // Valid documents starting with an object field named like an action
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 == 0) {
+                ndjson.append(DELETE);
+            } else {
+                String field = i % 3 == 0 ? "update" : i % 3 == 1 ? "index" : "create";
+                ndjson.append(INDEX).append("{ \"").append(field).append("\" : { \"by\" : \"").append("x".repeat(i % 37))
+                        .append("\" }, \"message\" : \"message ").append(i).append("\" }\n");
+            }
+        }
+
+        for (int ranges : new int[]{1, 2, 7, 64}) {
+            List<String> chunks = readChunks(ndjson.toString(), ranges, 2000, 50);
+            for (String chunk : chunks) {
+                assertThat(chunk, anyOf(startsWith(INDEX), startsWith(DELETE)));
+            }
+            assertThat(String.join("", chunks), is(ndjson.toString()));
+        }
+    }
+
+    @Test
+    public void testBlankLinesAndNoFinalLineFeed() throws IOException {
+        String ndjson = INDEX + doc(1) + "\n" + INDEX + "\n" + doc(2) + DELETE + INDEX + doc(3).trim();
+        List<String> chunks = readChunks(ndjson, 1, 1000, 1000);
+        assertThat(chunks, hasSize(4));
+        assertThat(chunks.get(0), is(INDEX + doc(1)));
+        assertThat(chunks.get(1), is(INDEX + doc(2)));
+        assertThat(chunks.get(2), is(DELETE));
+        assertThat(chunks.get(3), is(INDEX + doc(3)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingSource() throws IOException {
+        readChunks(INDEX + doc(1) + INDEX, 1, 100, 100);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.NdJsonBulkReader;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+public class NdJsonBulkReaderTest {
+
+    private static final String INDEX = "{ \"index\" : { } }\n";
+    private static final String DELETE = "{ \"delete\" : { \"_id\" : \"1\" } }\n";
+
+    private static String doc(int i) {
+        return "{ \"message\" : \"message " + i + "\" }\n";
+    }
+
+    private static List<String> readChunks(String ndjson, int maxBytes, int maxActions) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        try (NdJsonBulkReader reader = new NdJsonBulkReader(
+                new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)), maxBytes, maxActions)) {
+            NdJsonBulkReader.Chunk chunk;
+            while ((chunk = reader.next()) != null) {
+                chunks.add(new String(chunk.getData(), 0, chunk.getLength(), StandardCharsets.UTF_8));
+            }
+        }
+        return chunks;
+    }
+
+    @Test
+    public void testSplitByActions() throws IOException {
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            ndjson.append(INDEX).append(doc(i));
+        }
+        List<String> chunks = readChunks(ndjson.toString(), Integer.MAX_VALUE, 3);
+        assertThat(chunks, hasSize(4));
+        assertThat(chunks.get(0), is(INDEX + doc(0) + INDEX + doc(1) + INDEX + doc(2)));
+        assertThat(chunks.get(3), is(INDEX + doc(9)));
+        assertThat(String.join("", chunks), is(ndjson.toString()));
+    }
+
+    @Test
+    public void testSplitByBytesKeepsPairsTogether() throws IOException {
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            ndjson.append(INDEX).append(doc(i));
+        }
+        int pairSize = (INDEX + doc(0)).length();
+        // Room for 2 pairs and a half
+        List<String> chunks = readChunks(ndjson.toString(), pairSize * 5 / 2, 1000);
+        assertThat(chunks, hasSize(5));
+        for (int i = 0; i < 4; i++) {
+            assertThat(chunks.get(i), is(INDEX + doc(i * 2) + INDEX + doc(i * 2 + 1)));
+        }
+        assertThat(String.join("", chunks), is(ndjson.toString()));
+    }
+
+    @Test
+    public void testDeleteActionsHaveNoSource() throws IOException {
+        String ndjson = INDEX + doc(1) + DELETE + DELETE + INDEX + doc(2);
+        List<String> chunks = readChunks(ndjson, Integer.MAX_VALUE, 2);
+        assertThat(chunks, hasSize(2));
+        assertThat(chunks.get(0), is(INDEX + doc(1) + DELETE));
+        assertThat(chunks.get(1), is(DELETE + INDEX + doc(2)));
+    }
+
+    @Test
+    public void testBlankLinesAndMissingFinalLineFeed() throws IOException {
+        String ndjson = "\n" + INDEX + "\n  \n" + doc(1) + INDEX + doc(2).trim();
+        List<String> chunks = readChunks(ndjson, Integer.MAX_VALUE, 1000);
+        assertThat(chunks, hasSize(1));
+        assertThat(chunks.get(0), is(INDEX + doc(1) + INDEX + doc(2)));
+    }
+
+    @Test
+    public void testActionBiggerThanTheLimitIsSentAlone() throws IOException {
+        String ndjson = INDEX + doc(1) + INDEX + doc(2);
+        List<String> chunks = readChunks(ndjson, 10, 1000);
+        assertThat(chunks, hasSize(2));
+        assertThat(chunks.get(0), is(INDEX + doc(1)));
+        assertThat(chunks.get(1), is(INDEX + doc(2)));
+    }
+
+    @Test
+    public void testEmptyStream() throws IOException {
+        assertThat(readChunks("", 100, 100), hasSize(0));
+        assertThat(readChunks("\n\n", 100, 100), hasSize(0));
+    }
+
+    @Test
+    public void testSubset() throws IOException {
+        String ndjson = INDEX + doc(0) + DELETE + INDEX + doc(2) + INDEX + doc(3);
+        try (NdJsonBulkReader reader = new NdJsonBulkReader(
+                new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)), 1000, 1000)) {
+            NdJsonBulkReader.Chunk chunk = reader.next();
+            assertThat(chunk.getActions(), is(4));
+            NdJsonBulkReader.Chunk subset = chunk.subset(asList(1, 3));
+            assertThat(subset.getActions(), is(2));
+            assertThat(new String(subset.getData(), 0, subset.getLength(), StandardCharsets.UTF_8), is(DELETE + INDEX + doc(3)));
+            assertThat(subset.getActionStart(1), is(DELETE.length()));
+            assertThat(subset.getActionEnd(1), is(subset.getLength()));
+        }
+    }
+
+    @Test
+    public void testChunkOffsetsCanBeUsedToResume() throws IOException {
+        String ndjson = "\n" + INDEX + doc(0) + "\n" + INDEX + doc(1) + DELETE + INDEX + doc(2) + "\n\n";
+        byte[] bytes = ndjson.getBytes(StandardCharsets.UTF_8);
+        List<NdJsonBulkReader.Chunk> chunks = new ArrayList<>();
+        try (NdJsonBulkReader reader = new NdJsonBulkReader(new ByteArrayInputStream(bytes), 1000, 2)) {
+            NdJsonBulkReader.Chunk chunk;
+            while ((chunk = reader.next()) != null) {
+                chunks.add(chunk);
+            }
+        }
+        assertThat(chunks, hasSize(2));
+        // Chunks follow each other without any gap
+        assertThat(chunks.get(0).getStartOffset(), is(0L));
+        assertThat(chunks.get(1).getStartOffset(), is(chunks.get(0).getEndOffset()));
+        // Trailing blank lines are not part of any chunk
+        assertThat(chunks.get(1).getEndOffset(), is((long) bytes.length - 2));
+
+        // Resuming from the end of the first chunk reads the same second chunk
+        long offset = chunks.get(0).getEndOffset();
+        try (NdJsonBulkReader reader = new NdJsonBulkReader(new ByteArrayInputStream(bytes, (int) offset, bytes.length - (int) offset),
+                1000, 2, offset)) {
+            NdJsonBulkReader.Chunk chunk = reader.next();
+            assertThat(new String(chunk.getData(), 0, chunk.getLength(), StandardCharsets.UTF_8), is(DELETE + INDEX + doc(2)));
+            assertThat(chunk.getStartOffset(), is(offset));
+            assertThat(chunk.getEndOffset(), is((long) bytes.length - 2));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingSource() throws IOException {
+        readChunks(INDEX + doc(1) + INDEX, 100, 100);
+    }
+}
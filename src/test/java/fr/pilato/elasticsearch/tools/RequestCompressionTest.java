@@ -0,0 +1,83 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.RequestCompression;
+import org.apache.http.HttpEntity;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+public class RequestCompressionTest {
+
+    private static String json(int fields) {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < fields; i++) {
+            json.append(i == 0 ? "" : ",").append("\"field").append(i).append("\":\"value").append(i).append("\"");
+        }
+        return json.append("}").toString();
+    }
+
+    @Test
+    public void testDisabledByDefault() throws IOException {
+        RequestCompression compression = new BeyonderOptions().getRequestCompression();
+        String json = json(1000);
+        HttpEntity entity = compression.jsonEntity(json);
+        assertThat(entity.getContentEncoding(), nullValue());
+        assertThat(new String(entity.getContent().readAllBytes(), StandardCharsets.UTF_8), is(json));
+        assertThat(compression.getCompressedRequests(), is(0L));
+    }
+
+    @Test
+    public void testSmallBodyNotCompressed() {
+        RequestCompression compression = new BeyonderOptions()
+                .setRequestCompression(true)
+                .setRequestCompressionThreshold(1024)
+                .getRequestCompression();
+        HttpEntity entity = compression.jsonEntity(json(2));
+        assertThat(entity.getContentEncoding(), nullValue());
+        assertThat(compression.getCompressedRequests(), is(0L));
+    }
+
+    @Test
+    public void testLargeBodyCompressed() throws IOException {
+        RequestCompression compression = new BeyonderOptions()
+                .setRequestCompression(true)
+                .getRequestCompression();
+        String json = json(1000);
+        HttpEntity entity = compression.jsonEntity(json);
+        assertThat(entity.getContentEncoding().getValue(), is("gzip"));
+        try (GZIPInputStream gzip = new GZIPInputStream(entity.getContent())) {
+            assertThat(new String(gzip.readAllBytes(), StandardCharsets.UTF_8), is(json));
+        }
+        assertThat(compression.getCompressedRequests(), is(1L));
+        assertThat(compression.getUncompressedBytes(), is((long) json.length()));
+        assertThat(compression.getCompressedBytes(), is(entity.getContentLength()));
+        assertThat(compression.getCompressedBytes(), lessThan(compression.getUncompressedBytes()));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.ResourceHashing;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+public class ResourceHashingTest {
+
+    private static String readHash(String response) throws IOException {
+        return ResourceHashing.readHash(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testHash() {
+        String hash = ResourceHashing.hash("{\"template\":{}}");
+        assertThat(hash.length(), is(64));
+        assertThat(ResourceHashing.hash("{\"template\":{}}"), is(hash));
+        assertThat(ResourceHashing.hash("{\"template\":{\"settings\":{}}}"), not(hash));
+    }
+
+    @Test
+    public void testWithHash() throws IOException {
+        assertThat(ResourceHashing.withHash("{\"processors\":[{\"set\":{\"field\":\"a\",\"value\":1.5}}]}", "abc"),
+                is("{\"processors\":[{\"set\":{\"field\":\"a\",\"value\":1.5}}],\"_meta\":{\"beyonder_hash\":\"abc\"}}"));
+
+        // The existing _meta is kept but an older hash is replaced
+        assertThat(ResourceHashing.withHash("{\"_meta\":{\"owner\":\"me\",\"beyonder_hash\":\"old\"},\"priority\":1}", "abc"),
+                is("{\"_meta\":{\"owner\":\"me\",\"beyonder_hash\":\"abc\"},\"priority\":1}"));
+
+        // Index lifecycles have their _meta within the policy
+        assertThat(ResourceHashing.withHash("{\"policy\":{\"phases\":{}}}", "abc", "policy"),
+                is("{\"policy\":{\"phases\":{},\"_meta\":{\"beyonder_hash\":\"abc\"}}}"));
+
+        // An index without mappings gets them
+        assertThat(ResourceHashing.withHash("{\"settings\":{\"number_of_shards\":1}}", "abc", "mappings"),
+                is("{\"settings\":{\"number_of_shards\":1},\"mappings\":{\"_meta\":{\"beyonder_hash\":\"abc\"}}}"));
+    }
+
+    @Test
+    public void testReadHash() throws IOException {
+        assertThat(readHash("{\"my_pipeline\":{\"_meta\":{\"beyonder_hash\":\"abc\"}}}"), is("abc"));
+        assertThat(readHash("{\"index_templates\":[{\"index_template\":{\"_meta\":{\"beyonder_hash\":\"abc\"}}}]}"), is("abc"));
+        assertThat(readHash("{}"), nullValue());
+    }
+}
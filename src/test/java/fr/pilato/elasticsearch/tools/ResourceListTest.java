@@ -19,17 +19,24 @@
 
 package fr.pilato.elasticsearch.tools;
 
+import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.NdJsonBulkReader;
 import fr.pilato.elasticsearch.tools.util.ResourceList;
 import fr.pilato.elasticsearch.tools.util.SettingsReader;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.regex.Pattern;
 
 import static fr.pilato.elasticsearch.tools.util.ResourceList.replaceIndexName;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
 
 public class ResourceListTest {
 
@@ -51,6 +58,23 @@ public class ResourceListTest {
         assertThat(pattern.matcher(filename).matches(), is(true));
     }
 
+    @Test
+    public void testCompressedBulkFiles() throws IOException, URISyntaxException {
+        Collection<String> bulkFiles = ResourceList.findBulkFiles("models/data-compressed", "twitter");
+        assertThat(bulkFiles, contains("bulk-001.ndjson.gz", "bulk-002.ndjson.zst"));
+
+        for (String bulkFile : bulkFiles) {
+            try (NdJsonBulkReader reader = new NdJsonBulkReader(SettingsReader.getDataFileAsStream("models/data-compressed",
+                    "twitter/" + DefaultSettings.DataDir, bulkFile), 1024, 1000)) {
+                NdJsonBulkReader.Chunk chunk = reader.next();
+                assertThat(chunk.getActions(), is(5));
+                assertThat(new String(chunk.getData(), 0, chunk.getLength(), StandardCharsets.UTF_8),
+                        startsWith("{ \"index\" : {  } }\n"));
+                assertThat(reader.next(), nullValue());
+            }
+        }
+    }
+
     @Test
     public void testIndexNames() {
         // We test simple index names
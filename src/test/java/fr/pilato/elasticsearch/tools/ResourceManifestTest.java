@@ -0,0 +1,189 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.ResourceList;
+import fr.pilato.elasticsearch.tools.util.ResourceManifest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static java.util.Arrays.asList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assume.assumeTrue;
+
+public class ResourceManifestTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResourceManifestTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndList() throws IOException {
+        Path classes = folder.getRoot().toPath();
+        Files.createDirectories(classes.resolve("es/twitter/_data"));
+        Files.createDirectories(classes.resolve("es/_index_templates"));
+        Files.createDirectories(classes.resolve("es/empty"));
+        Files.writeString(classes.resolve("es/twitter/_settings.json"), "{}");
+        Files.writeString(classes.resolve("es/twitter/_data/bulk.ndjson"), "");
+        Files.writeString(classes.resolve("es/_index_templates/template_1.json"), "{}");
+
+        Path file = ResourceManifest.write(classes, "es");
+        assertThat(file.getFileName().toString(), is(DefaultSettings.ManifestFile));
+        assertThat(Files.readAllLines(file).subList(1, 8), contains(
+                "_index_templates/", "_index_templates/template_1.json", "empty/",
+                "twitter/", "twitter/_data/", "twitter/_data/bulk.ndjson", "twitter/_settings.json"));
+
+        // Writing it again ignores the previous manifest
+        ResourceManifest.write(classes, "es");
+        ResourceManifest manifest;
+        try (InputStream content = Files.newInputStream(file)) {
+            manifest = ResourceManifest.read(content);
+        }
+        assertThat(manifest.list(""), arrayContaining("_index_templates", "empty", "twitter"));
+        assertThat(manifest.list("twitter"), arrayContaining("_data", "_settings.json"));
+        assertThat(manifest.list("twitter/_data/"), arrayContaining("bulk.ndjson"));
+        assertThat(manifest.list("empty"), emptyArray());
+        assertThat(manifest.list("missing"), emptyArray());
+    }
+
+    private Path jar(int indices) throws IOException {
+        Path jar = folder.newFile("resources.jar").toPath();
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            out.putNextEntry(new JarEntry("es/"));
+            out.putNextEntry(new JarEntry("es/_index_templates/"));
+            out.putNextEntry(new JarEntry("es/_index_templates/template_1.json"));
+            for (int i = 0; i < indices; i++) {
+                out.putNextEntry(new JarEntry("es/index_" + i + "/"));
+                out.putNextEntry(new JarEntry("es/index_" + i + "/_settings.json"));
+                out.putNextEntry(new JarEntry("es/index_" + i + "/_data/"));
+                out.putNextEntry(new JarEntry("es/index_" + i + "/_data/bulk.ndjson"));
+            }
+            out.putNextEntry(new JarEntry("fr/pilato/Other.class"));
+        }
+        return jar;
+    }
+
+    @Test
+    public void testFromJar() throws IOException {
+        Path jar = jar(2);
+        ResourceManifest index = ResourceManifest.fromJar(new URL("jar:" + jar.toUri() + "!/es/"));
+        assertThat(index.list(""), arrayContaining("_index_templates", "index_0", "index_1"));
+        assertThat(index.list("_index_templates/"), arrayContaining("template_1.json"));
+        assertThat(index.list("index_1/_data"), arrayContaining("bulk.ndjson"));
+
+        // The URL of a directory does not always end with a slash
+        index = ResourceManifest.fromJar(new URL("jar:" + jar.toUri() + "!/es/index_0/_data"));
+        assertThat(index.list(""), arrayContaining("bulk.ndjson"));
+    }
+
+    @Test
+    public void testFromNestedJar() throws IOException {
+        // A Spring Boot like jar, with our resources in its classes and in one of its libs
+        Path lib = jar(2);
+        Path app = folder.newFile("app.jar").toPath();
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(app))) {
+            out.putNextEntry(new JarEntry("BOOT-INF/"));
+            out.putNextEntry(new JarEntry("BOOT-INF/classes/"));
+            out.putNextEntry(new JarEntry("BOOT-INF/classes/es/"));
+            out.putNextEntry(new JarEntry("BOOT-INF/classes/es/twitter/"));
+            out.putNextEntry(new JarEntry("BOOT-INF/classes/es/twitter/_settings.json"));
+            out.putNextEntry(new JarEntry("BOOT-INF/lib/"));
+            out.putNextEntry(new JarEntry("BOOT-INF/lib/config.jar"));
+            out.write(Files.readAllBytes(lib));
+        }
+
+        ResourceManifest index = ResourceManifest.fromJar(new URL("jar:" + app.toUri() + "!/BOOT-INF/lib/config.jar!/es/"));
+        assertThat(index.list(""), arrayContaining("_index_templates", "index_0", "index_1"));
+        assertThat(index.list("index_1/_data"), arrayContaining("bulk.ndjson"));
+
+        index = ResourceManifest.fromJar(new URL("jar:" + app.toUri() + "!/BOOT-INF/classes!/es/"));
+        assertThat(index.list(""), arrayContaining("twitter"));
+        assertThat(index.list("twitter"), arrayContaining("_settings.json"));
+    }
+
+    /**
+     * Compare listing all the directories of a jar with 100k entries by reading the jar each time, as it used
+     * to be done, with reading it once. Run it with -Dtests.benchmark=true.
+     */
+    @Test
+    public void benchmarkJarIndex() throws IOException {
+        assumeTrue("Benchmarks are only run with -Dtests.benchmark=true", Boolean.getBoolean("tests.benchmark"));
+        int indices = 25_000;
+        Path jar = jar(indices);
+        // Like a start: the root, the resource dirs, and the _data dir of some indices
+        List<String> dirs = new ArrayList<>(asList("", "_index_templates", "_component_templates", "_pipelines",
+                "_index_lifecycles", "_data"));
+        for (int i = 0; i < 100; i++) {
+            dirs.add("index_" + i + "/_data");
+        }
+
+        long start = System.nanoTime();
+        for (String dir : dirs) {
+            ResourceManifest.fromJar(new URL("jar:" + jar.toUri() + "!/es/" + dir)).list("");
+        }
+        long scanMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        ResourceManifest index = ResourceManifest.fromJar(new URL("jar:" + jar.toUri() + "!/es/"));
+        for (String dir : dirs) {
+            index.list(dir);
+        }
+        long indexMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertThat(index.list("").length, is(indices + 1));
+        logger.info("Listing [{}] directories of a jar with [{}] entries: [{}] ms when reading the jar each time, [{}] ms " +
+                "when reading it once", dirs.size(), indices * 4 + 4, scanMillis, indexMillis);
+    }
+
+    @Test
+    public void testResourceListUsesManifest() throws IOException, URISyntaxException {
+        // The not-in-manifest dir exists in the classpath but not in the manifest
+        assertThat(ResourceList.findIndexNames("models/manifest"), contains("twitter"));
+        assertThat(ResourceList.getResourceNames("models/manifest", DefaultSettings.IndexTemplatesDir), contains("template_1"));
+        assertThat(ResourceList.findBulkFiles("models/manifest", "twitter"), empty());
+
+        // Without a manifest, the classpath is scanned
+        assertThat(ResourceManifest.forRoot("models/data-one-index"), nullValue());
+        assertThat(ResourceList.findIndexNames("models/data-one-index"), contains("twitter"));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.ResourcePrefetcher;
+import fr.pilato.elasticsearch.tools.util.SettingsReader;
+import fr.pilato.elasticsearch.tools.util.VariableSources;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class ResourcePrefetcherTest {
+
+    private static final String ROOT = "models/pipelines";
+    private static final String PIPELINE = "twitter_pipeline" + DefaultSettings.JsonFileExtension;
+    private static final List<String> PATHS = List.of(
+            DefaultSettings.PipelinesDir + "/" + PIPELINE,
+            "twitter/" + DefaultSettings.IndexSettingsFileName);
+
+    @Test
+    public void testPrefetch() {
+        ResourcePrefetcher prefetcher = new BeyonderOptions().setPrefetch(true).getResourcePrefetcher();
+        try {
+            prefetcher.prefetch(ROOT, PATHS);
+            byte[] expected = SettingsReader.getJsonBytes(ROOT, DefaultSettings.PipelinesDir, PIPELINE, VariableSources.ENVIRONMENT);
+            assertThat(prefetcher.getJsonBytes(ROOT, DefaultSettings.PipelinesDir, PIPELINE), is(expected));
+            // Missing files are prefetched as well
+            assertThat(prefetcher.getJsonBytes(ROOT, "twitter", DefaultSettings.IndexSettingsFileName), nullValue());
+            assertThat(prefetcher.getHits(), is(2L));
+
+            // A prefetched file is only used once
+            assertThat(prefetcher.getJsonBytes(ROOT, DefaultSettings.PipelinesDir, PIPELINE), is(expected));
+            assertThat(prefetcher.getMisses(), is(1L));
+        } finally {
+            prefetcher.clear();
+        }
+    }
+
+    @Test
+    public void testPrefetchMaxBytes() {
+        ResourcePrefetcher prefetcher = new BeyonderOptions().setPrefetch(true).setPrefetchMaxBytes(10).getResourcePrefetcher();
+        try {
+            prefetcher.prefetch(ROOT, PATHS);
+            // The file is too big to be kept so it is read again
+            assertThat(prefetcher.getJsonBytes(ROOT, DefaultSettings.PipelinesDir, PIPELINE),
+                    is(SettingsReader.getJsonBytes(ROOT, DefaultSettings.PipelinesDir, PIPELINE, VariableSources.ENVIRONMENT)));
+            assertThat(prefetcher.getHits(), is(0L));
+            assertThat(prefetcher.getMisses(), is(1L));
+        } finally {
+            prefetcher.clear();
+        }
+    }
+
+    @Test
+    public void testDisabled() {
+        ResourcePrefetcher prefetcher = new BeyonderOptions().getResourcePrefetcher();
+        prefetcher.prefetch(ROOT, PATHS);
+        assertThat(prefetcher.getJsonBytes(ROOT, DefaultSettings.PipelinesDir, PIPELINE),
+                is(SettingsReader.getJsonBytes(ROOT, DefaultSettings.PipelinesDir, PIPELINE, VariableSources.ENVIRONMENT)));
+        assertThat(prefetcher.getHits(), is(0L));
+        assertThat(prefetcher.getMisses(), is(1L));
+    }
+}
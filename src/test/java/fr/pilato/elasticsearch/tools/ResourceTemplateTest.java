@@ -0,0 +1,159 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.BeyonderOptions;
+import fr.pilato.elasticsearch.tools.util.DefaultSettings;
+import fr.pilato.elasticsearch.tools.util.ResourceTemplate;
+import fr.pilato.elasticsearch.tools.util.SettingsReader;
+import fr.pilato.elasticsearch.tools.util.VariableSources;
+import org.apache.commons.text.StringSubstitutor;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assume.assumeTrue;
+
+public class ResourceTemplateTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResourceTemplateTest.class);
+
+    private static String render(String content, VariableSources sources) {
+        return ResourceTemplate.compile(content).render(sources);
+    }
+
+    @Test
+    public void testRender() {
+        VariableSources sources = new BeyonderOptions().setVariables(Map.of("replicas", "2", "empty", "")).getVariableSources();
+        assertThat(render("{\"number_of_replicas\":${replicas}}", sources), is("{\"number_of_replicas\":2}"));
+        assertThat(render("${replicas}${replicas}-${empty}", sources), is("22-"));
+
+        // Defaults, which can use variables as well
+        assertThat(render("{\"shards\":${shards:-1}}", sources), is("{\"shards\":1}"));
+        assertThat(render("${replicas:-1}", sources), is("2"));
+        assertThat(render("${shards:-${replicas}}", sources), is("2"));
+        assertThat(render("${shards:-{\"a\":1}", sources), is("{\"a\":1"));
+
+        // Unknown variables, escaped and unterminated ones are kept
+        assertThat(render("${unknown_variable}", sources), is("${unknown_variable}"));
+        assertThat(render("$${replicas}", sources), is("${replicas}"));
+        assertThat(render("{\"a\":\"${replicas", sources), is("{\"a\":\"${replicas"));
+        assertThat(render("no variable", sources), is("no variable"));
+        assertThat(ResourceTemplate.compile((String) null), nullValue());
+    }
+
+    @Test
+    public void testRenderBytes() {
+        // A content without variables is sent as it was read
+        byte[] content = "{\"description\":\"caf\u00e9 $ {}\"}".getBytes(StandardCharsets.UTF_8);
+        assertThat(ResourceTemplate.compile(content).renderBytes(VariableSources.ENVIRONMENT), sameInstance(content));
+
+        VariableSources sources = new BeyonderOptions().setVariables(Map.of("name", "\u00e9t\u00e9")).getVariableSources();
+        byte[] rendered = ResourceTemplate.compile("{\"caf\u00e9\":\"${name}\"}".getBytes(StandardCharsets.UTF_8)).renderBytes(sources);
+        assertThat(new String(rendered, StandardCharsets.UTF_8), is("{\"caf\u00e9\":\"\u00e9t\u00e9\"}"));
+    }
+
+    @Test
+    public void testVariableSources() {
+        System.setProperty("beyonder.test.variable", "from system properties");
+        try {
+            BeyonderOptions options = new BeyonderOptions();
+            assertThat(render("${beyonder.test.variable}", options.getVariableSources()), is("${beyonder.test.variable}"));
+
+            options.setSystemPropertiesAsVariables(true);
+            assertThat(render("${beyonder.test.variable}", options.getVariableSources()), is("from system properties"));
+
+            // The variables given in the options come first
+            options.setVariables(Map.of("beyonder.test.variable", "from options"));
+            assertThat(render("${beyonder.test.variable}", options.getVariableSources()), is("from options"));
+        } finally {
+            System.clearProperty("beyonder.test.variable");
+        }
+    }
+
+    @Test
+    public void testForFile() {
+        String name = "twitter_pipeline" + DefaultSettings.JsonFileExtension;
+        // Classpath resources are only compiled once
+        ResourceTemplate template = ResourceTemplate.forFile("models/pipelines", DefaultSettings.PipelinesDir, name);
+        assertThat(ResourceTemplate.forFile("models/pipelines", DefaultSettings.PipelinesDir, name), sameInstance(template));
+        assertThat(ResourceTemplate.forFile("models/pipelines", DefaultSettings.PipelinesDir, "missing.json"), nullValue());
+        assertThat(SettingsReader.getJsonContent("models/pipelines", DefaultSettings.PipelinesDir, name),
+                is(StringSubstitutor.replace(SettingsReader.getFileContent("models/pipelines", DefaultSettings.PipelinesDir, name),
+                        System.getenv())));
+    }
+
+    /**
+     * Compare replacing the variables of a big resource with {@link StringSubstitutor}, which we used to do for
+     * each read, with rendering the resource compiled once. Run it with -Dtests.benchmark=true.
+     */
+    @Test
+    public void benchmarkRender() {
+        assumeTrue("Benchmarks are only run with -Dtests.benchmark=true", Boolean.getBoolean("tests.benchmark"));
+        String variable = System.getenv().keySet().iterator().next();
+        StringBuilder json = new StringBuilder("{\"properties\":{");
+        for (int i = 0; i < 2_000; i++) {
+            json.append(i == 0 ? "" : ",").append("\"field_").append(i).append("\":{\"type\":\"keyword\",\"meta\":{\"a\":\"${")
+                    .append(i % 10 == 0 ? variable : "missing_" + i + ":-none").append("}\"}}");
+        }
+        String content = json.append("}}").toString();
+        String expected = StringSubstitutor.replace(content, System.getenv());
+        int iterations = 500;
+
+        // Warm up both
+        for (int i = 0; i < iterations; i++) {
+            StringSubstitutor.replace(content, System.getenv());
+            ResourceTemplate.compile(content).render(VariableSources.ENVIRONMENT);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            assertThat(StringSubstitutor.replace(content, System.getenv()).length(), is(expected.length()));
+        }
+        long substitutorMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        ResourceTemplate template = ResourceTemplate.compile(content);
+        for (int i = 0; i < iterations; i++) {
+            assertThat(template.render(VariableSources.ENVIRONMENT).length(), is(expected.length()));
+        }
+        long templateMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // What we send: no String at all
+        int expectedBytes = expected.getBytes(StandardCharsets.UTF_8).length;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            assertThat(template.renderBytes(VariableSources.ENVIRONMENT).length, is(expectedBytes));
+        }
+        long bytesMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertThat(template.render(VariableSources.ENVIRONMENT), is(expected));
+        logger.info("Replacing the variables of a [{}] chars resource [{}] times: [{}] ms with StringSubstitutor, [{}] ms " +
+                "when compiled once, [{}] ms without decoding it", content.length(), iterations, substitutorMillis,
+                templateMillis, bytesMillis);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.util.SettingsReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class SettingsReaderTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFileIdentity() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        Files.createDirectories(dir.resolve("_data"));
+        Path file = dir.resolve("_data/data.ndjson");
+        // Bigger than two blocks, so the middle of the file is not read
+        String content = "a".repeat(100_000) + "b".repeat(100_000) + "c".repeat(100_000);
+        Files.writeString(file, content);
+        FileTime modified = Files.getLastModifiedTime(file);
+        String root = SettingsReader.fileRoot(dir);
+
+        String identity = SettingsReader.getFileIdentity(root, "_data", "data.ndjson");
+        assertThat(identity, notNullValue());
+        assertThat(SettingsReader.getFileIdentity(root, "_data", "data.ndjson"), is(identity));
+
+        // The end of the file changes
+        Files.writeString(file, content.substring(0, content.length() - 1) + "d");
+        Files.setLastModifiedTime(file, modified);
+        assertThat(SettingsReader.getFileIdentity(root, "_data", "data.ndjson"), not(identity));
+
+        // Only the date changes
+        Files.writeString(file, content);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() + 1000));
+        assertThat(SettingsReader.getFileIdentity(root, "_data", "data.ndjson"), not(identity));
+
+        assertThat(SettingsReader.getFileIdentity(root, "_data", "missing.ndjson"), nullValue());
+    }
+
+    @Test
+    public void testFileIdentityWithinTheClasspath() throws IOException {
+        String identity = SettingsReader.getFileIdentity("models/data-one-index", "twitter/_data", "bulk.ndjson");
+        assertThat(identity, notNullValue());
+        assertThat(SettingsReader.getFileIdentity("models/data-one-index", "twitter/_data", "bulk.ndjson"), is(identity));
+    }
+}
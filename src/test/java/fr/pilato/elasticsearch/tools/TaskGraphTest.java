@@ -0,0 +1,128 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.tools;
+
+import fr.pilato.elasticsearch.tools.updaters.ElasticsearchIndexTemplateUpdater;
+import fr.pilato.elasticsearch.tools.util.TaskGraph;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+public class TaskGraphTest {
+
+    @Test
+    public void testSequential() throws Exception {
+        List<String> done = new CopyOnWriteArrayList<>();
+        new TaskGraph("test-")
+                .add("a", emptyList(), () -> done.add("a"))
+                .add("b", emptyList(), () -> done.add("b"))
+                .add("c", singletonList("a"), () -> done.add("c"))
+                .run(1);
+        assertThat(done, contains("a", "b", "c"));
+    }
+
+    @Test
+    public void testDependenciesAreRespected() throws Exception {
+        List<String> done = new CopyOnWriteArrayList<>();
+        // b and c can only succeed if they run at the same time
+        CountDownLatch together = new CountDownLatch(2);
+        TaskGraph.Task meet = () -> {
+            together.countDown();
+            if (!together.await(10, TimeUnit.SECONDS)) {
+                throw new Exception("Tasks did not run concurrently");
+            }
+        };
+        new TaskGraph("test-")
+                .add("a", emptyList(), () -> done.add("a"))
+                .add("b", singletonList("a"), () -> {
+                    meet.run();
+                    done.add("b");
+                })
+                .add("c", singletonList("a"), () -> {
+                    meet.run();
+                    done.add("c");
+                })
+                .add("d", asList("b", "c"), () -> done.add("d"))
+                .run(4);
+        assertThat(done.get(0), is("a"));
+        assertThat(done.subList(1, 3), containsInAnyOrder("b", "c"));
+        assertThat(done.get(3), is("d"));
+    }
+
+    @Test
+    public void testFailuresAreReportedInOrder() {
+        List<String> done = new CopyOnWriteArrayList<>();
+        CountDownLatch firstFailed = new CountDownLatch(1);
+        try {
+            new TaskGraph("test-")
+                    .add("a", emptyList(), () -> {
+                        // Fails after b
+                        firstFailed.await(10, TimeUnit.SECONDS);
+                        throw new Exception("a failed");
+                    })
+                    .add("b", emptyList(), () -> {
+                        firstFailed.countDown();
+                        throw new Exception("b failed");
+                    })
+                    .add("c", singletonList("a"), () -> done.add("c"))
+                    .add("d", emptyList(), () -> done.add("d"))
+                    .run(4);
+            fail("We should have failed");
+        } catch (Exception e) {
+            assertThat(e.getMessage(), is("a failed"));
+            assertThat(e.getSuppressed(), arrayWithSize(1));
+            assertThat(e.getSuppressed()[0].getMessage(), is("b failed"));
+        }
+        // c has been skipped but d ran
+        assertThat(done, contains("d"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownDependency() {
+        new TaskGraph("test-").add("a", singletonList("b"), () -> { });
+    }
+
+    @Test
+    public void testIndexTemplateDependencies() throws Exception {
+        ElasticsearchIndexTemplateUpdater.Dependencies dependencies =
+                ElasticsearchIndexTemplateUpdater.readDependencies("models/templatev2", "template_1");
+        assertThat(dependencies.getComposedOf(), contains("component1", "component2"));
+        assertThat(dependencies.matches("test_1"), is(true));
+        assertThat(dependencies.matches("bar"), is(true));
+        assertThat(dependencies.matches("twitter"), is(false));
+        assertThat(dependencies.matches("<te-{now/d}>"), is(true));
+        // Index names come from the directory names, which are encoded
+        assertThat(dependencies.matches("%3Cmy-index-%7Bnow%2Fd%7D%3E"), is(true));
+        assertThat(dependencies.matches("%3Ctimeseries-%7Bnow%2Fd-2d%7D-000001%3E"), is(true));
+    }
+}